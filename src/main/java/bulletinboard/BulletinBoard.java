@@ -10,7 +10,8 @@ public interface BulletinBoard {
                 Arrays.asList(new String[]{""}, new String[]{""}),
             ";",
             "",
-            256);
+            256,
+            Arrays.asList("title", Protocol.CONTENT_FIELD));
 
             int NUM_TO_DISPLAY = 10;
 }
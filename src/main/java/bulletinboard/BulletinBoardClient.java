@@ -7,6 +7,7 @@ import message.Protocol;
 
 import java.io.IOException;
 import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
 import java.util.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -53,31 +54,62 @@ public class BulletinBoardClient {
         return client.publish(post);
     }
 
+    /**
+     * Lists the top-level posts with their reply counts. Replies are read a thread at a time with readThread(),
+     * so a refresh costs the number of threads rather than the size of the board.
+     */
     public void read() {
-        String wc = bbProtocol.getWildcard();
-        Map<Integer, List<Integer>> replyMap = new HashMap<>();
+        LinkedHashMap<Message, Integer> topLevelPosts;
+        try {
+            topLevelPosts = client.retrieveTopLevelPosts();
+        } catch (RemoteException e) {
+            LOGGER.log(Level.SEVERE, "Failed to read top-level posts: " + e.toString());
+            return;
+        }
+        if(topLevelPosts == null) {
+            return;
+        }
+        List<Post> newReadOrderList = new LinkedList<>();
         Map<Integer, Post> idToMessages = new HashMap<>();
-        List<Integer> nonReplies = new LinkedList<>();
-        List<Message> rawResults = client.retrieve(
-                new Message(bbProtocol, bbProtocol.getRetrieveAllQuery(), true));
-
-        int messageId, replyToId;
         Post post;
-        for(Message message: rawResults) {
-            post = new Post(message);
-            messageId = post.getMessageId();
-            replyToId = post.getReplyToId();
+        for(Map.Entry<Message, Integer> topLevelPost: topLevelPosts.entrySet()) {
+            post = new Post(topLevelPost.getKey());
+            post.setNumReplies(topLevelPost.getValue());
+            newReadOrderList.add(post);
+            idToMessages.put(post.getMessageId(), post);
+        }
+        showReadOrder(newReadOrderList, idToMessages);
+    }
 
-            if (replyToId == -1) {
-                nonReplies.add(messageId);
-            } else {
-                List<Integer> replies = replyMap.getOrDefault(replyToId, new LinkedList<>());
-                replies.add(messageId);
-                replyMap.put(replyToId, replies);
-            }
-            idToMessages.put(messageId, post);
+    /**
+     * Lists a post and every reply under it, indented by depth.
+     */
+    public void readThread(int rootMessageId) {
+        List<Message> thread;
+        try {
+            thread = client.retrieveThread(rootMessageId);
+        } catch (RemoteException e) {
+            LOGGER.log(Level.SEVERE, "Failed to read thread " + rootMessageId + ": " + e.toString());
+            return;
+        }
+        if(thread == null) {
+            return;
+        }
+        List<Post> newReadOrderList = new LinkedList<>();
+        Map<Integer, Post> idToMessages = new HashMap<>();
+        Post post, parent;
+        for(Message message: thread) {
+            post = new Post(message);
+            // the server sends each reply right after its parent
+            parent = idToMessages.get(post.getReplyToId());
+            post.setPrintDepth(parent != null ? parent.getPrintDepth() + 1 : 0);
+            newReadOrderList.add(post);
+            idToMessages.put(post.getMessageId(), post);
         }
-        List<Post> newReadOrderList = generateReadOrder(nonReplies, replyMap, idToMessages);
+        showReadOrder(newReadOrderList, idToMessages);
+    }
+
+    private void showReadOrder(List<Post> newReadOrderList, Map<Integer, Post> idToMessages) {
         synchronized (readOrderLock) {
             this.readOrderMessages = newReadOrderList;
             this.idToMessages = idToMessages;
@@ -86,28 +118,6 @@ public class BulletinBoardClient {
         printFirstMessagesInReadOrder();
     }
 
-    private List<Post> generateReadOrder(List<Integer> nonReplies,
-                                         Map<Integer, List<Integer>> replyMap,
-                                         Map<Integer, Post> idToMessages) {
-        List<Post> newReadOrder = new LinkedList<>();
-        addMessagesToReadOrderDfs(nonReplies, replyMap, idToMessages, newReadOrder, 0);
-        return newReadOrder;
-    }
-
-    private void addMessagesToReadOrderDfs(List<Integer> messages,
-                                           Map<Integer, List<Integer>> replyMap,
-                                           Map<Integer, Post> idToMessages,
-                                           List<Post> newReadOrder,
-                                           int printDepth) {
-        for(int messageId: messages) {
-            Post post = idToMessages.get(messageId);
-            post.setPrintDepth(printDepth);
-            newReadOrder.add(post);
-            List<Integer> repliesToMessage = replyMap.getOrDefault(messageId, new LinkedList<>());
-            addMessagesToReadOrderDfs(repliesToMessage, replyMap, idToMessages, newReadOrder, printDepth + 1);
-        }
-    }
-
     private void printFirstMessagesInReadOrder() {
         int messageNum;
         synchronized (readOrderLock) {
@@ -130,9 +140,13 @@ public class BulletinBoardClient {
 
     private void printPostTitle(Post postToPrint) {
         if(postToPrint != null) {
+            String title = postToPrint.getTitle();
+            if(postToPrint.getNumReplies() > 0) {
+                title += " (" + postToPrint.getNumReplies() + " replies)";
+            }
             printPost(
                     postToPrint.getMessageId(),
-                    postToPrint.getTitle(),
+                    title,
                     "",
                     postToPrint.getPrintDepth()
             );
@@ -189,8 +203,26 @@ public class BulletinBoardClient {
         }
     }
 
+    /**
+     * Prints a post in full. read() only lists top-level posts, so a reply that isn't in the last list shown is
+     * fetched from the server as the head of its own thread.
+     */
     public void choose(int messageId) {
-        printWholePost(idToMessages.get(messageId));
+        Post chosen;
+        synchronized (readOrderLock) {
+            chosen = idToMessages != null ? idToMessages.get(messageId) : null;
+        }
+        if(chosen == null) {
+            try {
+                List<Message> thread = client.retrieveThread(messageId);
+                if(thread != null && !thread.isEmpty()) {
+                    chosen = new Post(thread.get(0));
+                }
+            } catch (RemoteException e) {
+                LOGGER.log(Level.SEVERE, "Failed to read post " + messageId + ": " + e.toString());
+            }
+        }
+        printWholePost(chosen);
     }
 
     public void moveToServerAt(String serverIp, int serverPort) {
@@ -18,9 +18,10 @@ public class BulletinBoardClientMain {
                 "Options:" +
                 "\n\tCreate new client:\t\t'create <serverIp> <serverPort>'" +
                 "\n\tSee client list:\t\t'list'" +
-                "\n\tRead list of messages:\t\t'<client number> read" +
+                "\n\tRead list of top-level posts:\t\t'<client number> read" +
+                "\n\tRead a post's thread of replies:\t\t'<client number> thread <messageId>" +
                 "\n\tScroll message list:\t\t'<client number> s" +
-                "\n\tChoose messages:\t\t'<client number> choose <messageId>" +
+                "\n\tChoose messages (any post or reply id):\t\t'<client number> choose <messageId>" +
                 "\n\tPost:\t\t'<client number> post <title;message>'" +
                 "\n\tReply:\t\t'<client number> reply <replyToMessageId;title;message>'" +
                 "\n\tMove client to a different server:\t\t'<client number> move <new server IP> <new server Port>'" +
@@ -128,6 +129,10 @@ public class BulletinBoardClientMain {
                     bbClient.read();
                     success = true;
                     break;
+                case "thread":
+                    bbClient.readThread(Integer.parseInt(parsedInput[2]));
+                    success = true;
+                    break;
                 case "choose":
                     bbClient.choose(Integer.parseInt(parsedInput[2]));
                     success = true;
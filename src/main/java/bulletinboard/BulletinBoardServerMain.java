@@ -1,5 +1,6 @@
 import bulletinboard.BulletinBoard;
 import communicate.Communicate;
+import server.PairedKeyMessageStore;
 import server.ReadYourWritesPolicy;
 import server.ReplicatedPubSubServer;
 import server.SequentialConsistency;
@@ -7,17 +8,20 @@ import server.QuorumConsistency;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.file.Paths;
 
 public class BulletinBoardServerMain {
     private static int nextHeartbeatPort = 9453;
+    private static final String DURABLE_OPTION = "--durable=";
+    private static final long SNAPSHOT_INTERVAL_MILLIS = 60 * 1000;
 
     public static void main(String[] args) {
         try {
-            if(args.length != 6) {
+            if((args.length != 6 && args.length != 7) || (args.length == 7 && !args[6].startsWith(DURABLE_OPTION))) {
                 System.out.println("Wrong number of arguments.");
                 System.out.println("\tUsage: java BulletinBoardServerMain " +
                         "<serverIp> <serverPort> <heartbeatPort> <registryServerIp> " +
-                        "<consistency model> <total num servers planned>");
+                        "<consistency model> <total num servers planned> [--durable=<state directory>]");
                 System.out.println("\tValid consistency models:'sequential', 'readyourwrites', or 'quorum'");
                 return;
             }
@@ -26,6 +30,14 @@ public class BulletinBoardServerMain {
                       "use external IP, otherwise unexpected behavior will result.");
             }
 
+            PairedKeyMessageStore.Builder storeBuilder = new PairedKeyMessageStore.Builder(BulletinBoard.BBPROTOCOL)
+                    .indexReplyThreads("replyTo");
+            if(args.length == 7) {
+                // logged and snapshotted here, so a restarted server keeps its posts
+                storeBuilder.writeAheadLog(Paths.get(args[6].substring(DURABLE_OPTION.length())))
+                        .snapshotIntervalMillis(SNAPSHOT_INTERVAL_MILLIS);
+            }
+
             ReplicatedPubSubServer.Builder replicatedPubSubServerBuilder =
                     new ReplicatedPubSubServer.Builder(BulletinBoard.BBPROTOCOL,
                                                        InetAddress.getByName(args[0]),
@@ -34,6 +46,7 @@ public class BulletinBoardServerMain {
                             .serverPort(Integer.parseInt(args[1]))
                             .heartbeatPort(Integer.parseInt(args[2]))
                             .registryServerAddress(args[3])
+                            .store(storeBuilder.build())
                             .shouldRetrieveMatchesAutomatically(false);
             System.out.println(args[4]);
             switch(args[4]) {
@@ -10,6 +10,7 @@ class Post {
     private String title;
     private String message;
     private int printDepth;
+    private int numReplies;
 
     Post(Message message) {
         setFields(message);
@@ -26,6 +27,7 @@ class Post {
         this.title = parsedFields[3];
         this.message = parsedFields[4];
         this.printDepth = 0;
+        this.numReplies = 0;
     }
 
     int getMessageId() {
@@ -55,4 +57,12 @@ class Post {
     void setPrintDepth(int depth) {
         this.printDepth = depth;
     }
+
+    int getNumReplies() {
+        return numReplies;
+    }
+
+    void setNumReplies(int numReplies) {
+        this.numReplies = numReplies;
+    }
 }
@@ -4,13 +4,18 @@ import java.io.IOException;
 import java.net.*;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
+import java.rmi.UnmarshalException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -18,6 +23,7 @@ import communicate.Communicate;
 import communicate.Communicate.RemoteMessageCall;
 import message.Message;
 import message.Protocol;
+import message.WireFormat;
 
 public class Client implements Runnable {
     private static final Logger LOGGER = Logger.getLogger( Client.class.getName() );
@@ -29,6 +35,8 @@ public class Client implements Runnable {
     private int remoteServerPort;
     private String previousServer;
     private Protocol protocol;
+    // asked for on every Join when the server supports it, else PADDED_TEXT
+    private WireFormat wireFormat;
 
     private boolean terminate;
     private final Object terminateLock = new Object();
@@ -46,7 +54,12 @@ public class Client implements Runnable {
     private final Condition matchesForPendingQueryReceived = pendingQueryLock.newCondition();
 
     public Client(Protocol protocol, int listenPort) throws IOException, NotBoundException {
+        this(protocol, listenPort, WireFormat.PADDED_TEXT);
+    }
+
+    public Client(Protocol protocol, int listenPort, WireFormat wireFormat) throws IOException, NotBoundException {
         this.protocol = protocol;
+        this.wireFormat = wireFormat;
         this.localAddress = InetAddress.getLocalHost();
         this.listenPort = listenPort;
         this.id = null;
@@ -112,11 +125,37 @@ public class Client implements Runnable {
     }
 
     public List<Message> retrieve(Message queryMessage) {
+        return awaitMatches(queryMessage, () -> communicateWithRemote(queryMessage, RemoteMessageCall.RETRIEVE));
+    }
+
+    /**
+     * Retrieves one page of matches to queryMessage, such as the newest 10 posts. The next page resumes after
+     * the last message id of this one; pass MessageStore's FIRST_PAGE (-1) for the first.
+     *
+     * @return the page, in id order or newest first, or null if the server could not be asked
+     */
+    public List<Message> retrievePage(Message queryMessage, int resumeAfterId, int limit, boolean newestFirst) {
+        return awaitMatches(queryMessage, () -> {
+            try {
+                synchronized (communicateLock) {
+                    return this.communicate != null && this.communicate.RetrievePage(
+                            this.localAddress.getHostAddress(), this.listenPort, queryMessage.asRawMessage(),
+                            resumeAfterId, limit, newestFirst);
+                }
+            } catch (RemoteException e) {
+                LOGGER.log(Level.SEVERE, "Remote server call failed for retrieve page: " + e.toString());
+                return false;
+            }
+        });
+    }
+
+    // Makes the retrieve call, then blocks until the listener has every match the server said it would send.
+    private List<Message> awaitMatches(Message queryMessage, BooleanSupplier retrieveCall) {
         String query = queryMessage.asRawMessage();
         pendingQueryLock.lock();
         try {
             listener.addPendingQueryToMatch(query);
-            if(communicateWithRemote(queryMessage, RemoteMessageCall.RETRIEVE)) {
+            if(retrieveCall.getAsBoolean()) {
                 List<Message> matches = listener.consumeMatchesIfAllReceivedFor(query);
                 while(matches == null) {
                     try {
@@ -142,6 +181,46 @@ public class Client implements Runnable {
         return this.communicate.getHighestMessageIdStored();
     }
 
+    /**
+     * @return the post and every reply under it, depth first, each reply directly after its parent, or null if
+     * this client isn't connected to a server
+     */
+    public List<Message> retrieveThread(int rootMessageId) throws RemoteException {
+        List<String> posts;
+        synchronized (communicateLock) {
+            if (this.communicate == null) {
+                LOGGER.log(Level.SEVERE, "Not connected to a server: cannot retrieve thread " + rootMessageId);
+                return null;
+            }
+            posts = this.communicate.RetrieveThread(rootMessageId);
+        }
+        List<Message> thread = new ArrayList<>();
+        for (String post : posts) {
+            thread.add(Message.received(protocol, post));
+        }
+        return thread;
+    }
+
+    /**
+     * @return the posts that reply to nothing, in id order, each mapped to its number of direct replies, or null
+     * if this client isn't connected to a server
+     */
+    public LinkedHashMap<Message, Integer> retrieveTopLevelPosts() throws RemoteException {
+        LinkedHashMap<String, Integer> posts;
+        synchronized (communicateLock) {
+            if (this.communicate == null) {
+                LOGGER.log(Level.SEVERE, "Not connected to a server: cannot retrieve top-level posts");
+                return null;
+            }
+            posts = this.communicate.RetrieveTopLevelPosts();
+        }
+        LinkedHashMap<Message, Integer> topLevelPosts = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> post : posts.entrySet()) {
+            topLevelPosts.put(Message.received(protocol, post.getKey()), post.getValue());
+        }
+        return topLevelPosts;
+    }
+
     private boolean ping() throws RemoteException {
         return this.communicate.Ping();
     }
@@ -178,7 +257,7 @@ public class Client implements Runnable {
         if (message == null) {
             switch (call) {
                 case JOIN:
-                    boolean isCallSuccessful = this.communicate.Join(address, this.listenPort, this.id, this.previousServer);
+                    boolean isCallSuccessful = negotiateJoin(address);
                     if (isCallSuccessful) {
                         ensureThisHasId();
                     }
@@ -212,6 +291,30 @@ public class Client implements Runnable {
         }
     }
 
+    /**
+     * Joins in this client's wire format if the server lists it as supported, else with the original
+     * PADDED_TEXT Join. The listener is told first, as the server may write before Join returns.
+     */
+    private boolean negotiateJoin(String address) throws IOException, NotBoundException, InterruptedException {
+        if (wireFormat != WireFormat.PADDED_TEXT && serverSupports(wireFormat)) {
+            listener.useWireFormat(wireFormat);
+            return this.communicate.Join(address, this.listenPort, this.id, this.previousServer, wireFormat);
+        }
+        listener.useWireFormat(WireFormat.PADDED_TEXT);
+        return this.communicate.Join(address, this.listenPort, this.id, this.previousServer);
+    }
+
+    private boolean serverSupports(WireFormat format) throws RemoteException {
+        try {
+            return this.communicate.getSupportedWireFormats().contains(format);
+        } catch (UnmarshalException e) {
+            // servers older than the capability query don't have the method, and only speak PADDED_TEXT
+            LOGGER.log(Level.WARNING, "Server doesn't list its wire formats, joining with "
+                    + WireFormat.PADDED_TEXT + ": " + e.toString());
+            return false;
+        }
+    }
+
     private void ensureThisHasId() {
 
         if (id == null) {
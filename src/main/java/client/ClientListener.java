@@ -2,8 +2,11 @@ package client;
 
 import runnableComponents.TcpListener;
 import message.Message;
+import message.MessageFrameCodec;
 import message.Protocol;
+import message.WireFormat;
 
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.net.SocketException;
 import java.util.*;
@@ -18,6 +21,9 @@ public class ClientListener extends TcpListener {
     private FeedManager feedManager;
 
     private Protocol protocol;
+    // set by Client before each Join, while no connection is open; read when the server's connection is accepted
+    private volatile WireFormat wireFormat;
+    private final MessageFrameCodec frameCodec;
 
     private final Lock idReceivedByListenerLock;
     private final Condition idHasBeenSet;
@@ -27,6 +33,8 @@ public class ClientListener extends TcpListener {
                    Lock pendingQueryLock, Condition matchesForPendingQueryReceived) {
         super();
         this.protocol = protocol;
+        this.wireFormat = WireFormat.PADDED_TEXT;
+        this.frameCodec = new MessageFrameCodec(protocol);
         this.receivedClientId = null;
         this.idReceivedByListenerLock = idReceivedByListenerLock;
         this.idHasBeenSet = idHasBeenSet;
@@ -40,6 +48,15 @@ public class ClientListener extends TcpListener {
         return receivedClientId;
     }
 
+    void useWireFormat(WireFormat wireFormat) {
+        this.wireFormat = wireFormat;
+    }
+
+    @Override
+    protected boolean readsFramedMessages() {
+        return wireFormat == WireFormat.LENGTH_PREFIXED;
+    }
+
     @Override
     public void forceCloseSocket() {
         try {
@@ -89,9 +106,10 @@ public class ClientListener extends TcpListener {
     }
 
     private Message getMessageFromRemote() throws IOException {
-        String rawMessage = super.receiveMessage();
+        DataInputStream frames = messageData;
+        String rawMessage = frames != null ? frameCodec.read(frames) : super.receiveMessage();
 //        String rawMessage = new String(packetToReceive.getData(), 0, packetToReceive.getLength());
-        return new Message(protocol, rawMessage, false);
+        return Message.received(protocol, rawMessage);
     }
 
     private void setReceivedIdAndSignalClient(String clientId) {
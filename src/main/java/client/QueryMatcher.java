@@ -72,7 +72,7 @@ public class QueryMatcher {
         if(allMatchesReceivedFor(query)) {
             List<Message> allMatches = Collections.synchronizedList(new LinkedList<>());
             for(String match: queryMatches.get(query)) {
-                allMatches.add(new Message(protocol, match, false));
+                allMatches.add(Message.received(protocol, match));
             }
             queryMatches.put(query, Collections.synchronizedList(new LinkedList<>()));
             return allMatches;
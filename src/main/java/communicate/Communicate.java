@@ -1,9 +1,13 @@
 package communicate;
 
+import message.WireFormat;
+
 import java.io.IOException;
 import java.rmi.NotBoundException;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.LinkedHashMap;
+import java.util.List;
 
 public interface Communicate extends Remote {
     String NAME = "Communicate";
@@ -14,11 +18,20 @@ public interface Communicate extends Remote {
 
     boolean Join(String IP, int Port, String existingClientId, String previousServer)
             throws NotBoundException, IOException, InterruptedException;
+    // Like Join, but messages to the client are framed in wireFormat rather than as padded text
+    boolean Join(String IP, int Port, String existingClientId, String previousServer, WireFormat wireFormat)
+            throws NotBoundException, IOException, InterruptedException;
+    // The wire formats the Join above accepts
+    List<WireFormat> getSupportedWireFormats() throws RemoteException;
     boolean Leave(String IP, int Port) throws RemoteException;
     boolean Subscribe(String IP, int Port, String Message) throws RemoteException;
     boolean Unsubscribe(String IP, int Port, String Message) throws RemoteException;
     boolean Retrieve(String IP, int Port, String queryMessage) throws RemoteException;
+    boolean RetrievePage(String IP, int Port, String queryMessage, int resumeAfterId, int limit, boolean newestFirst)
+            throws RemoteException;
     boolean Publish(String Message, String IP, int Port) throws RemoteException;
+    List<String> RetrieveThread(int rootMessageId) throws RemoteException;
+    LinkedHashMap<String, Integer> RetrieveTopLevelPosts() throws RemoteException;
     boolean Ping() throws RemoteException;
     Communicate getCoordinator() throws NotBoundException, IOException;
 //    boolean isCoordinatorKnown() throws RemoteException;
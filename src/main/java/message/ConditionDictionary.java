@@ -0,0 +1,133 @@
+package message;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dense int ids for a protocol's closed conditions, so stores can key their posting lists by array index
+ * instead of building and hashing "field_value" strings. Every field's wildcard and enumerated values are
+ * numbered up front, and the dictionary never grows after that. Other values (free-form fields, text search
+ * terms, and numeric messageIds and clientIds) are open conditions: they have no id, and stores keep them
+ * keyed by value where their lists can be dropped once compaction empties them.
+ */
+public final class ConditionDictionary {
+    // idOf() for a condition that isn't numbered
+    public static final int OPEN = -1;
+
+    private final List<String> fields;
+    // one slot past the query fields holds text search terms
+    private final int termField;
+    private final List<Map<String, Integer>> idsByValue;
+    private final int[] wildcardIds;
+    private final List<String> conditions;
+
+    ConditionDictionary(List<String> fields, List<String[]> allowedFieldValues, String wildcard) {
+        this.fields = fields;
+        this.termField = fields.size();
+        this.idsByValue = new ArrayList<>(fields.size());
+        this.conditions = new ArrayList<>();
+        this.wildcardIds = new int[fields.size()];
+        for (int i = 0; i < fields.size(); i++) {
+            Map<String, Integer> ids = new HashMap<>();
+            idsByValue.add(ids);
+            wildcardIds[i] = number(i, wildcard);
+            for (String allowedValue : allowedFieldValues.get(i)) {
+                number(i, allowedValue);
+            }
+        }
+    }
+
+    private int number(int field, String value) {
+        Integer existing = idsByValue.get(field).get(value);
+        if (existing != null) {
+            return existing;
+        }
+        int id = conditions.size();
+        conditions.add(conditionOf(field, value));
+        idsByValue.get(field).put(value, id);
+        return id;
+    }
+
+    /**
+     * @return the id of the condition that field (its index in the protocol's query fields) has value, or
+     * OPEN if that value isn't numbered
+     */
+    public int idOf(int field, String value) {
+        if (field == termField) {
+            return OPEN;
+        }
+        Integer id = idsByValue.get(field).get(value);
+        return id != null ? id : OPEN;
+    }
+
+    public int wildcardIdOf(int field) {
+        return wildcardIds[field];
+    }
+
+    /**
+     * @return the pseudo-field that text search terms are conditions of, one past the query fields
+     */
+    public int termField() {
+        return termField;
+    }
+
+    /**
+     * @return the field (or termField()) of a condition given in string form, as conditionOf() returns it
+     */
+    public int fieldOf(String condition) {
+        if (condition.startsWith(Protocol.TERM_CONDITION_PREFIX)) {
+            return termField;
+        }
+        // field names can prefix one another ("org", "orginator"), so take the longest that matches
+        int field = -1;
+        for (int i = 0; i < fields.size(); i++) {
+            if (condition.startsWith(fields.get(i) + "_")
+                    && (field < 0 || fields.get(i).length() > fields.get(field).length())) {
+                field = i;
+            }
+        }
+        if (field < 0) {
+            throw new IllegalArgumentException("ConditionDictionary: not a condition of this protocol: " + condition);
+        }
+        return field;
+    }
+
+    /**
+     * @return the value of a condition in string form, given its fieldOf()
+     */
+    public String valueOf(int field, String condition) {
+        return condition.substring(field == termField ?
+                Protocol.TERM_CONDITION_PREFIX.length() : fields.get(field).length() + 1);
+    }
+
+    /**
+     * @return the id of a condition given in string form, or OPEN if it isn't numbered
+     */
+    public int idOf(String condition) {
+        int field = fieldOf(condition);
+        return idOf(field, valueOf(field, condition));
+    }
+
+    public String conditionOf(int id) {
+        if (id < 0 || id >= conditions.size()) {
+            throw new IllegalArgumentException("ConditionDictionary: unknown condition id " + id);
+        }
+        return conditions.get(id);
+    }
+
+    /**
+     * @return the usual string form of the condition that field has value, numbered or not
+     */
+    public String conditionOf(int field, String value) {
+        return field == termField ? Protocol.TERM_CONDITION_PREFIX + value : fields.get(field) + "_" + value;
+    }
+
+    /**
+     * @return one more than the highest id, fixed when the protocol is built
+     */
+    public int size() {
+        return conditions.size();
+    }
+}
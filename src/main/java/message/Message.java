@@ -4,12 +4,23 @@ import java.util.Date;
 import java.util.Set;
 
 public class Message {
+    // an id field that is empty or not a number
+    private static final int NO_ID = -1;
 
     private Protocol protocol;
     private String asString;
-    private Query query;
+    // built on first use; only messages a store indexes or matches ever need one
+    private volatile Query query;
     private boolean isSubscription;
+    // delivered to this client by a server, so neither validated nor ever queried
+    private boolean receivedOnly;
     private String withoutInternal;
+    // asString split into fields once, then shared by validation, the query and id lookups. Null for
+    // control messages.
+    private MessageFields fields;
+    // parsed from fields once; NO_ID for control messages and ids that are empty or not numbers
+    private int messageId;
+    private int clientId;
 
     public Message(Protocol protocol, String rawMessage, boolean isSubscription) {
         this.protocol = protocol;
@@ -19,17 +30,47 @@ public class Message {
             if (!validate(isSubscription)) {
                 throw new IllegalArgumentException("Was an invalid message: " + asString);
             }
-            setQuery();
         } else {
             this.asString = protocol.padMessage(rawMessage);
+            this.messageId = NO_ID;
+            this.clientId = NO_ID;
         }
     }
 
+    private Message(Protocol protocol, String rawMessage) {
+        this.protocol = protocol;
+        this.isSubscription = false;
+        this.receivedOnly = true;
+        if (!isControlMessage(rawMessage)) {
+            setProcessedMessage(rawMessage, protocol);
+        } else {
+            this.asString = protocol.padMessage(rawMessage);
+            this.messageId = NO_ID;
+            this.clientId = NO_ID;
+        }
+    }
+
+    /**
+     * A message as a client receives it from a server: a publication or control message the server already
+     * validated. It skips validation, and asking it for query conditions or cursors is an error, so reading
+     * one costs no more than padding and splitting it.
+     */
+    public static Message received(Protocol protocol, String rawMessage) {
+        return new Message(protocol, rawMessage);
+    }
+
+    // original with one of its internal fields replaced, already split as fields
+    private Message(Message original, MessageFields fields) {
+        this.protocol = original.protocol;
+        this.isSubscription = original.isSubscription;
+        this.receivedOnly = original.receivedOnly;
+        setFields(fields);
+    }
+
     private void setProcessedMessage(String rawMessage, Protocol protocol) {
         String processedMessage = rawMessage;
-        String[] fieldsInMessage = protocol.parse(rawMessage);
-        // message contents is an "assumed field": its in fieldsInMessage but never counted in externalFields
-        if(fieldsInMessage.length == protocol.getNumExternalFields() + 1) {
+        // message contents is an "assumed field": its in the message but never counted in externalFields
+        if(protocol.countFields(rawMessage) == protocol.getNumExternalFields() + 1) {
             processedMessage = protocol.getEmptyInternalFields() + rawMessage;
         }
 
@@ -38,11 +79,22 @@ public class Message {
             processedMessage = protocol.padMessage(processedMessage);
 //        }
 
-        this.asString = processedMessage;
+        setAsString(processedMessage);
+    }
+
+    private void setAsString(String message) {
+        setFields(protocol.fieldsOf(message));
+    }
+
+    private void setFields(MessageFields fields) {
+        this.fields = fields;
+        this.asString = fields.getMessage();
+        this.messageId = fields.parseId(0);
+        this.clientId = fields.parseId(1);
     }
 
     private boolean validate(boolean isSubscription) {
-        return protocol.validate(asString, isSubscription);
+        return protocol.validate(fields, isSubscription);
     }
 
     public String asRawMessage() {
@@ -56,52 +108,108 @@ public class Message {
         return withoutInternal;
     }
 
-    private void setQuery() {
-        this.query = generateQuery(this, this.protocol);
+    private Query query() {
+        Query built = query;
+        if (built == null) {
+            synchronized (this) {
+                built = query;
+                if (built == null) {
+                    if (receivedOnly || fields == null) {
+                        throw new IllegalStateException("Message has no query: " + asString);
+                    }
+                    built = generateQuery(this, this.protocol);
+                    query = built;
+                }
+            }
+        }
+        return built;
     }
 
     private Query generateQuery(Message message, Protocol protocol) {
+        String[] parsed = message.fields.toArray();
         return new Query(protocol.getQueryFields(),
-                protocol.parse(message.asRawMessage()),
+                parsed,
+                protocol.extractTerms(parsed, message.isSubscription()),
                 protocol.getWildcard(),
-                message.isSubscription())
+                message.isSubscription(),
+                protocol.getConditionDictionary())
 
                 .generate();
     }
 
+    /**
+     * Drops the query, cursors included, so the next use builds a fresh one.
+     */
     public void regenerateQuery() {
-        setQuery();
+        this.query = null;
     }
     public Set<String> getQueryConditions() {
-        return this.query.getConditions();
+        return query().getConditions();
+    }
+
+    public Set<String> getConstrainedQueryConditions() {
+        return query().getConstrainedConditions();
+    }
+
+    public int[] getQueryConditionIds() {
+        return query().getConditionIds();
+    }
+
+    public int[] getConstrainedQueryConditionIds() {
+        return query().getConstrainedConditionIds();
+    }
+
+    /**
+     * @return the fields of the conditions the protocol's dictionary doesn't number; see Query
+     */
+    public int[] getOpenQueryConditionFields() {
+        return query().getOpenConditionFields();
+    }
+
+    public String[] getOpenQueryConditionValues() {
+        return query().getOpenConditionValues();
+    }
+
+    /**
+     * @return the numeric messageId stores look up directly instead of as a condition, or Query.NO_ID
+     */
+    public int getDirectMessageId() {
+        return query().getDirectMessageId();
+    }
+
+    /**
+     * @return the numeric clientId stores look up directly instead of as a condition, or Query.NO_ID
+     */
+    public int getDirectClientId() {
+        return query().getDirectClientId();
     }
 
     public Protocol getProtocol() {
         return protocol;
     }
 
-    public String getLastRetrievedFor(String condition) {
-        return this.query.getLastRetrievedFor(condition);
+    public int getLastRetrievedIdFor(int conditionId) {
+        return query().getLastRetrievedIdFor(conditionId);
     }
 
-    public void setLastRetrievedFor(String condition, String lastRetrieved) {
-        this.query.setLastRetrievedFor(condition, lastRetrieved);
+    public void setLastRetrievedIdFor(int conditionId, int lastRetrievedId) {
+        query().setLastRetrievedIdFor(conditionId, lastRetrievedId);
     }
 
     public Date getLastAccess() {
-        return this.query.getLastAccess();
+        return query().getLastAccess();
     }
 
     public void setLastAccess(Date current) {
-        this.query.setLastAccess(current);
+        query().setLastAccess(current);
     }
 
     public boolean isSubscription() {
         return isSubscription;
     }
 
-    public void refreshAccessOffsets() {
-        this.query.refreshAccessOffsets();
+    public void refreshAccessOffsets(int compactedThroughId) {
+        query().refreshAccessOffsets(compactedThroughId);
     }
 
     private boolean isControlMessage(String message) {
@@ -109,7 +217,8 @@ public class Message {
     }
 
     public boolean isCoordinatorPortMessage() {
-        return protocol.isCoordinatorPortMessage(protocol.stripPadding(asString));
+        // the padding only ever follows the control delimiter, so it doesn't need stripping first
+        return protocol.isCoordinatorPortMessage(asString);
     }
 
     public String extractIdIfThisIsIdMessage() {
@@ -127,20 +236,67 @@ public class Message {
 //        }
 //    }
 
-    public void insertMessageId(String messageId) {
-        this.asString = protocol.insertMessageId(asString, messageId);
+    /**
+     * @return a copy of this message with messageId in place of its own. Its query is built afresh.
+     */
+    public Message insertMessageId(String messageId) {
+        return new Message(this, fieldsToReplace().replaced(0, messageId));
+    }
+
+    /**
+     * @return a copy of this message with clientId in place of its own. Its query is built afresh.
+     */
+    public Message insertClientId(String clientId) {
+        return new Message(this, fieldsToReplace().replaced(1, clientId));
     }
 
-    public void insertClientId(String clientId) {
-        this.asString = protocol.insertClientId(asString, clientId);
+    private MessageFields fieldsToReplace() {
+        if (fields == null) {
+            throw new IllegalStateException("Control messages have no internal fields: " + asString);
+        }
+        return fields;
     }
 
     public String getMessageId() {
-        return protocol.getMessageIdAsString(asString);
+        return fields != null ? fields.get(0) : protocol.getMessageIdAsString(asString);
     }
 
     public String getClientId() {
-        return protocol.getClientIdAsString(asString);
+        return fields != null ? fields.get(1) : protocol.getClientIdAsString(asString);
+    }
+
+    /**
+     * @return whether the messageId field is non-empty, whatever it holds
+     */
+    public boolean hasMessageId() {
+        return !getMessageId().isEmpty();
+    }
+
+    /**
+     * @return whether the clientId field is non-empty, whatever it holds
+     */
+    public boolean hasClientId() {
+        return !getClientId().isEmpty();
+    }
+
+    /**
+     * @throws IllegalArgumentException if the messageId is missing or not a number, as Integer.parseInt() of it would
+     */
+    public int getMessageIdAsInt() {
+        if (messageId == NO_ID) {
+            throw new IllegalArgumentException("Message has no numeric message id: " + asString);
+        }
+        return messageId;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the clientId is missing or not a number, as Integer.parseInt() of it would
+     */
+    public int getClientIdAsInt() {
+        if (clientId == NO_ID) {
+            throw new IllegalArgumentException("Message has no numeric client id: " + asString);
+        }
+        return clientId;
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,178 @@
+package message;
+
+/**
+ * Field boundaries of a message, found in a single indexOf pass over it instead of a regex split per check.
+ * Fields are only copied out as Strings when asked for, and comparisons run against the message in place, so
+ * validating a message, detecting control messages and reading its ids share one tokenization and allocate
+ * little. Splits exactly like String.split(delimiter, -1) with a literal delimiter: n delimiters always give
+ * n + 1 fields, empty ones included.
+ */
+final class MessageFields {
+    private final String message;
+    private final int delimiterLength;
+    // starts[i] is where field i begins; starts[count] is one delimiter past the end of the message
+    private final int[] starts;
+    private final int count;
+    private String[] values;
+
+    private MessageFields(String message, String delimiter) {
+        this.message = message;
+        this.delimiterLength = delimiter.length();
+        int[] found = new int[8];
+        int numFields = 0;
+        found[numFields++] = 0;
+        int next = message.indexOf(delimiter);
+        while (next >= 0) {
+            if (numFields + 1 == found.length) {
+                int[] grown = new int[found.length * 2];
+                System.arraycopy(found, 0, grown, 0, numFields);
+                found = grown;
+            }
+            found[numFields++] = next + delimiterLength;
+            next = message.indexOf(delimiter, next + delimiterLength);
+        }
+        found[numFields] = message.length() + delimiterLength;
+        this.starts = found;
+        this.count = numFields;
+    }
+
+    private MessageFields(String message, int delimiterLength, int[] starts, int count) {
+        this.message = message;
+        this.delimiterLength = delimiterLength;
+        this.starts = starts;
+        this.count = count;
+    }
+
+    static MessageFields of(String message, String delimiter) {
+        if (delimiter.isEmpty()) {
+            throw new IllegalArgumentException("MessageFields: empty delimiter");
+        }
+        return new MessageFields(message, delimiter);
+    }
+
+    /**
+     * Number of fields String.split(delimiter, -1) would return, without recording where they are.
+     */
+    static int count(String message, String delimiter) {
+        int numFields = 1;
+        for (int next = message.indexOf(delimiter); next >= 0; next = message.indexOf(delimiter, next + delimiter.length())) {
+            numFields++;
+        }
+        return numFields;
+    }
+
+    String getMessage() {
+        return message;
+    }
+
+    int count() {
+        return count;
+    }
+
+    int start(int field) {
+        return starts[field];
+    }
+
+    int end(int field) {
+        return starts[field + 1] - delimiterLength;
+    }
+
+    int length(int field) {
+        return end(field) - start(field);
+    }
+
+    String get(int field) {
+        if (values != null) {
+            return values[field];
+        }
+        return message.substring(start(field), end(field));
+    }
+
+    boolean isEmpty(int field) {
+        return length(field) == 0;
+    }
+
+    boolean fieldEquals(int field, String value) {
+        return length(field) == value.length() && message.startsWith(value, start(field));
+    }
+
+    /**
+     * @return the field as a non-negative int, or -1 if it is empty or isn't one
+     */
+    int parseId(int field) {
+        int start = start(field);
+        int end = end(field);
+        if (start == end || end - start > 10) {
+            return -1;
+        }
+        long id = 0;
+        for (int i = start; i < end; i++) {
+            char c = message.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            id = id * 10 + (c - '0');
+        }
+        return id <= Integer.MAX_VALUE ? (int) id : -1;
+    }
+
+    /**
+     * The message with field set to value, and its fields, without searching it for delimiters again. A
+     * longer value takes its room from trailing whitespace where there is some, so a padded message stays
+     * padded to the same size when it can.
+     */
+    MessageFields replaced(int field, String value) {
+        int start = start(field);
+        int end = end(field);
+        int growth = value.length() - (end - start);
+        int trim = 0;
+        if (growth > 0) {
+            int padding = message.length() - Math.max(end, Protocol.paddedEnd(message, 0));
+            trim = Math.min(growth, padding);
+        }
+        String replaced = new StringBuilder(message.length() + growth - trim)
+                .append(message, 0, start)
+                .append(value)
+                .append(message, end, message.length() - trim)
+                .toString();
+        int[] shifted = new int[count + 1];
+        System.arraycopy(starts, 0, shifted, 0, field + 1);
+        for (int i = field + 1; i < count; i++) {
+            shifted[i] = starts[i] + growth;
+        }
+        shifted[count] = replaced.length() + delimiterLength;
+        return new MessageFields(replaced, delimiterLength, shifted, count);
+    }
+
+    /**
+     * True if the field is value followed by nothing but whitespace.
+     */
+    boolean equalsIgnoringTrailingWhitespace(int field, String value) {
+        int start = start(field);
+        int end = end(field);
+        if (end - start < value.length() || !message.startsWith(value, start)) {
+            return false;
+        }
+        for (int i = start + value.length(); i < end; i++) {
+            if (!Protocol.isPadding(message.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Every field, as String.split(delimiter, -1) would return them. Built once and then shared, so callers
+     * must not modify it.
+     */
+    String[] toArray() {
+        if (values == null) {
+            String[] all = new String[count];
+            for (int i = 0; i < count; i++) {
+                all[i] = message.substring(start(i), end(i));
+            }
+            values = all;
+        }
+        return values;
+    }
+}
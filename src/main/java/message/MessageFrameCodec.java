@@ -0,0 +1,288 @@
+package message;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads and writes messages in the LENGTH_PREFIXED wire format. Padding is never sent, and a message may
+ * contain newlines.
+ *
+ * Frame layout (varints are unsigned LEB128):
+ *   [varint bodyLength][byte kind][body]
+ *   kind TEXT:   UTF-8 message, used for control messages and anything that isn't a full set of fields
+ *   kind FIELDS: messageId, clientId, then [varint byteLength][UTF-8 field] for each remaining field
+ * An id that is a plain decimal int goes as varint (id + 1). Any other id goes as varint 0 followed by
+ * [varint byteLength][UTF-8 id].
+ *
+ * Decoding rebuilds exactly the unpadded text message. A codec reuses its buffers, so a message costs one
+ * String to read and nothing to write. Each connection needs its own codec, used by one thread at a time.
+ */
+public final class MessageFrameCodec {
+    private static final byte TEXT = 0;
+    private static final byte FIELDS = 1;
+    private static final int ID_AS_TEXT = 0;
+
+    private final String delimiter;
+    private final byte[] delimiterBytes;
+    private final int numFields;
+    private final int maxBodyLength;
+
+    private byte[] body;
+    private byte[] text;
+    // bytes of body encoded so far
+    private int length;
+    // next byte of body to decode
+    private int position;
+
+    public MessageFrameCodec(Protocol protocol) {
+        this.delimiter = protocol.getDelimiter();
+        this.delimiterBytes = delimiter.getBytes(StandardCharsets.UTF_8);
+        // the query fields and then the contents
+        this.numFields = protocol.getQueryFields().size() + 1;
+        // a char never takes more than 3 UTF-8 bytes, and no length prefix more than 5
+        this.maxBodyLength = 1 + 3 * protocol.getMessageSize() + 5 * (numFields + 1);
+        this.body = new byte[256];
+        this.text = new byte[256];
+    }
+
+    /**
+     * Writes message, less its padding, as one frame. Doesn't flush out.
+     */
+    public void write(OutputStream out, String message) throws IOException {
+        int start = Protocol.paddedStart(message);
+        int end = Protocol.paddedEnd(message, start);
+        length = 0;
+        if (hasAllFields(message, start, end)) {
+            appendByte(FIELDS);
+            int fieldStart = start;
+            for (int field = 0; field < numFields; field++) {
+                int fieldEnd = field == numFields - 1 ? end : message.indexOf(delimiter, fieldStart);
+                if (field < 2) {
+                    appendId(message, fieldStart, fieldEnd);
+                } else {
+                    appendVarint(utf8Length(message, fieldStart, fieldEnd));
+                    appendUtf8(message, fieldStart, fieldEnd);
+                }
+                fieldStart = fieldEnd + delimiter.length();
+            }
+        } else {
+            appendByte(TEXT);
+            appendUtf8(message, start, end);
+        }
+        writeVarint(out, length);
+        out.write(body, 0, length);
+    }
+
+    /**
+     * Reads the next frame and returns its message, unpadded.
+     *
+     * @throws EOFException if the stream ends, before or during a frame
+     */
+    public String read(DataInputStream in) throws IOException {
+        int bodyLength = readVarint(in);
+        if (bodyLength < 1 || bodyLength > maxBodyLength) {
+            throw new IOException("MessageFrameCodec: frame of " + bodyLength + " bytes exceeds protocol");
+        }
+        body = ensureCapacity(body, bodyLength);
+        in.readFully(body, 0, bodyLength);
+        if (body[0] == TEXT) {
+            return new String(body, 1, bodyLength - 1, StandardCharsets.UTF_8);
+        }
+        if (body[0] != FIELDS) {
+            throw new IOException("MessageFrameCodec: unknown frame kind " + body[0]);
+        }
+
+        text = ensureCapacity(text, bodyLength + 2 * 10 + numFields * delimiterBytes.length);
+        int textLength = 0;
+        position = 1;
+        for (int field = 0; field < numFields; field++) {
+            if (field > 0) {
+                System.arraycopy(delimiterBytes, 0, text, textLength, delimiterBytes.length);
+                textLength += delimiterBytes.length;
+            }
+            int value = readBodyVarint(bodyLength);
+            if (field < 2 && value != ID_AS_TEXT) {
+                if (value < 0) {
+                    throw new IOException("MessageFrameCodec: id out of range in frame");
+                }
+                textLength = appendDecimal(value - 1, textLength);
+                continue;
+            }
+            if (field < 2) {
+                // the id's length follows its ID_AS_TEXT marker
+                value = readBodyVarint(bodyLength);
+            }
+            if (value < 0 || value > bodyLength - position) {
+                throw new IOException("MessageFrameCodec: field runs past the end of its frame");
+            }
+            System.arraycopy(body, position, text, textLength, value);
+            textLength += value;
+            position += value;
+        }
+        if (position != bodyLength) {
+            throw new IOException("MessageFrameCodec: " + (bodyLength - position) + " unread bytes in frame");
+        }
+        return new String(text, 0, textLength, StandardCharsets.UTF_8);
+    }
+
+    private int readBodyVarint(int bodyLength) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35 && position < bodyLength; shift += 7) {
+            byte b = body[position++];
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("MessageFrameCodec: malformed varint in frame");
+    }
+
+    private boolean hasAllFields(String message, int start, int end) {
+        int found = 1;
+        for (int next = message.indexOf(delimiter, start); next >= 0 && next + delimiter.length() <= end;
+             next = message.indexOf(delimiter, next + delimiter.length())) {
+            found++;
+        }
+        return found == numFields;
+    }
+
+    private void appendId(String message, int start, int end) {
+        int id = parseId(message, start, end);
+        if (id >= 0) {
+            appendVarint(id + 1);
+        } else {
+            appendVarint(ID_AS_TEXT);
+            appendVarint(utf8Length(message, start, end));
+            appendUtf8(message, start, end);
+        }
+    }
+
+    /**
+     * @return the id if message[start, end) is one written the way appendDecimal writes it, otherwise -1
+     */
+    private static int parseId(String message, int start, int end) {
+        int digits = end - start;
+        if (digits < 1 || digits > 10 || (digits > 1 && message.charAt(start) == '0')) {
+            return -1;
+        }
+        long id = 0;
+        for (int i = start; i < end; i++) {
+            char c = message.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            id = id * 10 + (c - '0');
+        }
+        // id + 1 must still fit the varint's int
+        return id < Integer.MAX_VALUE ? (int) id : -1;
+    }
+
+    private int appendDecimal(int value, int textLength) {
+        int digits = 1;
+        for (int rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        for (int i = textLength + digits - 1; i >= textLength; i--) {
+            text[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return textLength + digits;
+    }
+
+    private static int utf8Length(String message, int start, int end) {
+        int bytes = 0;
+        for (int i = start; i < end; i++) {
+            char c = message.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(message.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                bytes++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    // matches String.getBytes(UTF_8), which writes a lone surrogate as '?'
+    private void appendUtf8(String message, int start, int end) {
+        body = ensureCapacity(body, length + 3 * (end - start));
+        for (int i = start; i < end; i++) {
+            char c = message.charAt(i);
+            if (c < 0x80) {
+                body[length++] = (byte) c;
+            } else if (c < 0x800) {
+                body[length++] = (byte) (0xC0 | (c >> 6));
+                body[length++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(message.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, message.charAt(++i));
+                    body[length++] = (byte) (0xF0 | (codePoint >> 18));
+                    body[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    body[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    body[length++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else {
+                    body[length++] = '?';
+                }
+            } else {
+                body[length++] = (byte) (0xE0 | (c >> 12));
+                body[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                body[length++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    private void appendByte(byte b) {
+        body = ensureCapacity(body, length + 1);
+        body[length++] = b;
+    }
+
+    private void appendVarint(int value) {
+        body = ensureCapacity(body, length + 5);
+        while ((value & ~0x7F) != 0) {
+            body[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        body[length++] = (byte) value;
+    }
+
+    private static void writeVarint(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("MessageFrameCodec: stream ended");
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("MessageFrameCodec: malformed frame length");
+    }
+
+    private static byte[] ensureCapacity(byte[] buffer, int needed) {
+        if (buffer.length >= needed) {
+            return buffer;
+        }
+        byte[] grown = new byte[Math.max(needed, buffer.length * 2)];
+        System.arraycopy(buffer, 0, grown, 0, buffer.length);
+        return grown;
+    }
+}
@@ -0,0 +1,103 @@
+package message;
+
+import java.util.List;
+
+/**
+ * A Protocol's validation rules, compiled once. Only fields with a restricted set of allowed values are kept.
+ * Each has an open-addressing table of its values, probed with a hash taken over the field's characters in
+ * place. So checking a message is one pass over the offsets MessageFields already found, with no substrings,
+ * no regexes and no scan through every allowed value.
+ */
+final class MessageValidator {
+    private final int messageSize;
+    private final int numFields;
+    private final String wildcard;
+    private final boolean textSearchable;
+    // positions of the restricted fields, and for each its allowed values by hash slot (null when empty)
+    private final int[] restrictedFields;
+    private final String[][] allowedValueTables;
+
+    MessageValidator(int messageSize, int numFields, List<String[]> allowedFieldValues, String wildcard,
+                     boolean textSearchable) {
+        this.messageSize = messageSize;
+        this.numFields = numFields;
+        this.wildcard = wildcard;
+        this.textSearchable = textSearchable;
+
+        int numRestricted = 0;
+        for (String[] allowedValues : allowedFieldValues) {
+            if (isRestricted(allowedValues)) {
+                numRestricted++;
+            }
+        }
+        this.restrictedFields = new int[numRestricted];
+        this.allowedValueTables = new String[numRestricted][];
+        int i = 0;
+        int field = 0;
+        for (String[] allowedValues : allowedFieldValues) {
+            if (isRestricted(allowedValues)) {
+                restrictedFields[i] = field;
+                allowedValueTables[i] = buildTable(allowedValues);
+                i++;
+            }
+            field++;
+        }
+    }
+
+    // a field whose only allowed value is the wildcard takes any value
+    private boolean isRestricted(String[] allowedValues) {
+        return !(allowedValues.length == 1 && allowedValues[0].equals(wildcard));
+    }
+
+    private static String[] buildTable(String[] allowedValues) {
+        // a power of two more than twice the values, so probe chains stay short and always end
+        String[] table = new String[Integer.highestOneBit(Math.max(1, allowedValues.length) * 2) * 2];
+        for (String value : allowedValues) {
+            int slot = spread(value.hashCode()) & (table.length - 1);
+            while (table[slot] != null && !table[slot].equals(value)) {
+                slot = (slot + 1) & (table.length - 1);
+            }
+            table[slot] = value;
+        }
+        return table;
+    }
+
+    boolean validate(MessageFields fields, boolean isSubscription) {
+        if (fields.getMessage().length() != messageSize || fields.count() != numFields) {
+            return false;
+        }
+        for (int i = 0; i < restrictedFields.length; i++) {
+            if (!isAllowed(fields, restrictedFields[i], allowedValueTables[i])) {
+                return false;
+            }
+        }
+        boolean lastFieldEmpty = fields.equalsIgnoringTrailingWhitespace(numFields - 1, wildcard);
+
+        if (isSubscription) {
+            // non-empty contents in a subscription are search terms
+            return lastFieldEmpty || textSearchable;
+        }
+        return !lastFieldEmpty;
+    }
+
+    private static boolean isAllowed(MessageFields fields, int field, String[] table) {
+        String message = fields.getMessage();
+        int start = fields.start(field);
+        int end = fields.end(field);
+        // String.hashCode() of the field, without making it a String
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + message.charAt(i);
+        }
+        for (int slot = spread(hash) & (table.length - 1); table[slot] != null; slot = (slot + 1) & (table.length - 1)) {
+            if (fields.fieldEquals(field, table[slot])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
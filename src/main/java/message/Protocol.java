@@ -1,14 +1,23 @@
 package message;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 import java.util.logging.Logger;
-import java.util.regex.Pattern;
 
 public class Protocol {
     private static final Logger LOGGER = Logger.getLogger( Protocol.class.getName() );
 
+    // Names the free-text message contents in textSearchFields; it isn't a query field.
+    public static final String CONTENT_FIELD = "content";
+    // Conditions are otherwise "field_value", so a term condition can't collide with one.
+    public static final String TERM_CONDITION_PREFIX = "#";
+
     // It is understood that all messages have data/payload fields,
     // so we only indicate others (i.e., the query fields).
     private List<String> queryFields;
@@ -20,6 +29,13 @@ public class Protocol {
     private String emptyInternalFields;
     private int numInternalFields;
     private int numExternalFields;
+    // positions, in a parsed message, of the fields whose words are indexed as terms
+    private int[] textSearchFieldIndexes;
+    private ConditionDictionary conditionDictionary;
+    private MessageValidator validator;
+    // messageSize spaces, copied from when padding
+    private char[] padding;
+    private ThreadLocal<char[]> padBuffer;
 
     public Protocol(List<String> fields, List<String[]> allowedFieldValues,
                     String delimiter, String wildcard, int messageSize) {
@@ -28,6 +44,23 @@ public class Protocol {
 
     public Protocol(List<String> fields, List<String[]> allowedFieldValues,
                     String delimiter, String controlDelimiter, String wildcard, int messageSize) {
+        this(fields, allowedFieldValues, delimiter, controlDelimiter, wildcard, messageSize,
+                Collections.emptyList());
+    }
+
+    /**
+     * @param textSearchFields fields (CONTENT_FIELD for the message contents) whose words are indexed, so a
+     *                         subscription can put terms in its contents and match only publications that
+     *                         contain all of them. Empty to disable text search.
+     */
+    public Protocol(List<String> fields, List<String[]> allowedFieldValues,
+                    String delimiter, String wildcard, int messageSize, List<String> textSearchFields) {
+        this(fields, allowedFieldValues, delimiter, ":", wildcard, messageSize, textSearchFields);
+    }
+
+    public Protocol(List<String> fields, List<String[]> allowedFieldValues,
+                    String delimiter, String controlDelimiter, String wildcard, int messageSize,
+                    List<String> textSearchFields) {
         for(String field: fields) {
             if (field.equals("messageId") || field.equals("clientId")) {
                 throw new IllegalArgumentException("Fields 'messageId' and 'clientId' internally reserved.");
@@ -38,9 +71,28 @@ public class Protocol {
         this.controlDelimiter = controlDelimiter;
         this.messageSize = messageSize;
         this.wildcard = wildcard;
+        this.padding = new char[messageSize];
+        Arrays.fill(padding, ' ');
+        this.padBuffer = ThreadLocal.withInitial(() -> new char[messageSize]);
 
         combineInternalAndExternalFields(fields, allowedFieldValues);
+        this.conditionDictionary = new ConditionDictionary(queryFields, this.allowedFieldValues, wildcard);
+        setTextSearchFields(textSearchFields);
+        this.validator = new MessageValidator(messageSize, queryFields.size() + 1, this.allowedFieldValues,
+                wildcard, isTextSearchable());
+    }
 
+    private void setTextSearchFields(List<String> textSearchFields) {
+        this.textSearchFieldIndexes = new int[textSearchFields.size()];
+        for (int i = 0; i < textSearchFieldIndexes.length; i++) {
+            String field = textSearchFields.get(i);
+            // contents come after every query field
+            int index = field.equals(CONTENT_FIELD) ? queryFields.size() : queryFields.indexOf(field);
+            if (index < 0) {
+                throw new IllegalArgumentException("Text search field is not a protocol field: " + field);
+            }
+            textSearchFieldIndexes[i] = index;
+        }
     }
     private void combineInternalAndExternalFields(List<String> externalFields,
                                                   List<String[]> allowedExternalFieldValues) {
@@ -59,6 +111,10 @@ public class Protocol {
         this.allowedFieldValues.addAll(allowedExternalFieldValues);
     }
 
+    public ConditionDictionary getConditionDictionary() {
+        return conditionDictionary;
+    }
+
     int getNumExternalFields() {
         return numExternalFields;
     }
@@ -68,11 +124,19 @@ public class Protocol {
     }
 
     public String[] parse(String message) {
-        return message.split(this.delimiter, -1);
+        return fieldsOf(message).toArray();
     }
 
     public String[] controlParse(String message) {
-        return message.split(this.controlDelimiter, -1);
+        return MessageFields.of(message, this.controlDelimiter).toArray();
+    }
+
+    MessageFields fieldsOf(String message) {
+        return MessageFields.of(message, this.delimiter);
+    }
+
+    int countFields(String message) {
+        return MessageFields.count(message, this.delimiter);
     }
 
     public int getMessageSize() {
@@ -93,106 +157,174 @@ public class Protocol {
         return queryFields;
     }
 
+    public boolean isTextSearchable() {
+        return textSearchFieldIndexes.length > 0;
+    }
+
+    /**
+     * Terms a message is indexed or searched under. A publication's are the words of its text search fields;
+     * a subscription's are the words of its contents, all of which a match must contain.
+     */
+    Set<String> extractTerms(String[] parsedMessage, boolean isSubscription) {
+        if (!isTextSearchable() || parsedMessage.length <= queryFields.size()) {
+            return Collections.emptySet();
+        }
+        if (isSubscription) {
+            return tokenize(parsedMessage[queryFields.size()]);
+        }
+        Set<String> terms = new LinkedHashSet<>();
+        for (int index : textSearchFieldIndexes) {
+            terms.addAll(tokenize(parsedMessage[index]));
+        }
+        return terms;
+    }
+
+    /**
+     * Splits text into lower-cased runs of letters and digits.
+     */
+    public Set<String> tokenize(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        int termStart = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean inTerm = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (inTerm && termStart < 0) {
+                termStart = i;
+            } else if (!inTerm && termStart >= 0) {
+                terms.add(text.substring(termStart, i).toLowerCase());
+                termStart = -1;
+            }
+        }
+        return terms;
+    }
+
     public boolean validate(String message, boolean isSubscription) {
         if(isControlMessage(message)) {
             return true;
         }
+        return message != null && validate(fieldsOf(message), isSubscription);
+    }
 
-        if (!isBasicallyValid(message)) {
-            return false;
-        }
-        String[] parsedMessage = parse(message);
-        boolean lastFieldEmpty = Pattern.matches(
-                "^" + this.wildcard + "\\s*$", parsedMessage[parsedMessage.length - 1]);
+    /**
+     * validate() for a message already known not to be a control message, reusing its tokenization.
+     */
+    boolean validate(MessageFields fields, boolean isSubscription) {
+        return validator.validate(fields, isSubscription);
+    }
 
-        if(isSubscription) {
-            return lastFieldEmpty;
+    /**
+     * Strips rawMessage and pads it with spaces to exactly messageSize. A message that is already padded
+     * (as everything read off the wire is) comes back as the same instance; otherwise the only allocation is
+     * the result, built in a per-thread buffer.
+     */
+    public String padMessage(String rawMessage) {
+        int start = paddedStart(rawMessage);
+        int end = paddedEnd(rawMessage, start);
+        checkFits(end - start);
+        if (start == 0 && rawMessage.length() == messageSize && isSpaces(rawMessage, end)) {
+            return rawMessage;
         }
-        return !lastFieldEmpty;
+        char[] buffer = padBuffer.get();
+        rawMessage.getChars(start, end, buffer, 0);
+        System.arraycopy(padding, 0, buffer, end - start, messageSize - (end - start));
+        return new String(buffer, 0, messageSize);
     }
 
-    public String padMessage(String rawMessage) {
+    /**
+     * Writes what padMessage(rawMessage) would return straight to out, without building it.
+     */
+    public void writePadded(Writer out, String rawMessage) throws IOException {
+        int start = paddedStart(rawMessage);
+        int end = paddedEnd(rawMessage, start);
+        checkFits(end - start);
+        out.write(rawMessage, start, end - start);
+        out.write(padding, 0, messageSize - (end - start));
+    }
 
-        String message = stripPadding(rawMessage);
+    /**
+     * Removes leading and trailing whitespace. Returns paddedMessage itself if there is none.
+     */
+    public String stripPadding(String paddedMessage) {
+        int start = paddedStart(paddedMessage);
+        int end = paddedEnd(paddedMessage, start);
+        return (start == 0 && end == paddedMessage.length()) ? paddedMessage : paddedMessage.substring(start, end);
+    }
 
-        if(message.length() > messageSize) {
+    private void checkFits(int messageLength) {
+        if(messageLength > messageSize) {
             throw new IllegalArgumentException(
                     "Tried to create message violating protocol: message too large");
         }
+    }
 
+    static int paddedStart(String message) {
+        int start = 0;
+        while (start < message.length() && isPadding(message.charAt(start))) {
+            start++;
+        }
+        return start;
+    }
 
-        StringBuilder padder = new StringBuilder(message);
-        while (padder.length() < messageSize) {
-            padder.append(" ");
+    static int paddedEnd(String message, int start) {
+        int end = message.length();
+        while (end > start && isPadding(message.charAt(end - 1))) {
+            end--;
         }
-        return padder.toString();
+        return end;
     }
 
-    public String stripPadding(String paddedMessage) {
-        return paddedMessage.replaceAll("^\\s+", "").replaceAll("\\s+$", "");
+    private static boolean isSpaces(String message, int from) {
+        for (int i = from; i < message.length(); i++) {
+            if (message.charAt(i) != ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // the characters the regex \s matches
+    static boolean isPadding(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
     }
 
     boolean isControlMessage(String message) {
-        return isClientIdMessage(message) || isCoordinatorPortMessage(message) || isRetrieveNotification(message);
+        return isControlMessage(MessageFields.of(message, controlDelimiter));
+    }
+
+    // control is the message split on the control delimiter
+    private boolean isControlMessage(MessageFields control) {
+        return isClientIdMessage(control) || isCoordinatorPortMessage(control) || isRetrieveNotification(control);
     }
 
-    private boolean isClientIdMessage(String message) {
-        String[] parsed = controlParse(message);
-        return parsed.length > 1
-                && parsed[0].equals("clientId")
-                && !parsed[1].isEmpty();
+    private boolean isClientIdMessage(MessageFields control) {
+        return control.count() > 1
+                && control.fieldEquals(0, "clientId")
+                && !control.isEmpty(1);
     }
 
     boolean isCoordinatorPortMessage(String message) {
-        String[] parsed = controlParse(message);
-        return parsed.length >= 1
-                && parsed[0].equals("fromCoordinator");
+        return isCoordinatorPortMessage(MessageFields.of(message, controlDelimiter));
+    }
+
+    private boolean isCoordinatorPortMessage(MessageFields control) {
+        return control.fieldEquals(0, "fromCoordinator");
     }
 
     public boolean isRetrieveNotification(String message) {
-        String[] parsed = controlParse(message);
-        return parsed.length == 3
-                && parsed[0].equals("retrieveNotification")
-                && !parsed[1].equals("")
-                && !parsed[2].equals("");
+        return isRetrieveNotification(MessageFields.of(message, controlDelimiter));
     }
 
-    private boolean isBasicallyValid(String message) throws IllegalArgumentException {
-        if(message == null || message.length() != this.messageSize) {
-            return false;
-        }
-        String[] parsedValues = parse(message);
-        int valuesLength = parsedValues.length;
-
-        return (valuesLength == queryFields.size() + 1) && adheresToValueRestrictions(message);
-    }
-
-    private boolean adheresToValueRestrictions(String message) {
-        String[] parsedValues = parse(message);
-        for(int i = 0; i < allowedFieldValues.size(); i++) {
-            String[] allowedValues = allowedFieldValues.get(i);
-            String parsedValue = parsedValues[i];
-            if(!(allowedValues.length == 1 && allowedValues[0].equals(wildcard))) {
-                boolean foundValidValue = false;
-                int j = 0;
-                while (!foundValidValue && j < allowedValues.length) {
-                    if (parsedValue.equals(allowedValues[j])) {
-                        foundValidValue = true;
-                    }
-                    j++;
-                }
-                if(!foundValidValue) {
-                    return false;
-                }
-            }
-        }
-        return true;
+    private boolean isRetrieveNotification(MessageFields control) {
+        return control.count() == 3
+                && control.fieldEquals(0, "retrieveNotification")
+                && !control.isEmpty(1)
+                && !control.isEmpty(2);
     }
 
     public String extractIdIfThisIsIdMessage(String message) {
-        if(isControlMessage(message)) {
+        MessageFields control = MessageFields.of(message, controlDelimiter);
+        if(isControlMessage(control)) {
             // client id message format: "clientId;<ID>" if ';' is delimiter
-            return controlParse(message)[1];
+            return control.get(1);
         }
         return "";
     }
@@ -230,30 +362,6 @@ public class Protocol {
         return message.toString();
     }
 
-    String insertMessageId(String message, String messageId) {
-        String[] parsed = parse(message);
-        parsed[0] = messageId;
-
-        StringBuilder result = new StringBuilder();
-        result.append(parsed[0]);
-        for(int i = 1; i < parsed.length; i++) {
-            result.append(delimiter).append(parsed[i]);
-        }
-        return result.toString();
-    }
-
-    String insertClientId(String message, String clientId) {
-        String[] parsed = parse(message);
-        parsed[1] = clientId;
-
-        StringBuilder result = new StringBuilder();
-        result.append(parsed[0]);
-        for(int i = 1; i < parsed.length; i++) {
-            result.append(delimiter).append(parsed[i]);
-        }
-        return result.toString();
-    }
-
     public String buildRetrieveNotification(String query, int numRetrieved) {
 
         String strippedQuery = stripPadding(query);
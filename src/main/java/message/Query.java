@@ -1,60 +1,259 @@
 package message;
 
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 public class Query {
+    public static final int NONE_RETRIEVED = -1;
+    // Cursor key for stores that track a query as a whole rather than per condition, and for queries with no
+    // condition at all. Condition ids are never negative, so it can't collide with one.
+    public static final int QUERY_CURSOR = -1;
+    // cursor keys for the ids returned by getDirectMessageId() and getDirectClientId()
+    public static final int MESSAGE_ID_CURSOR = -2;
+    public static final int CLIENT_ID_CURSOR = -3;
+    private static final int NUM_RESERVED_CURSORS = 3;
+    // open conditions' cursor keys count down from here, see openCursorKey()
+    private static final int FIRST_OPEN_CURSOR = -NUM_RESERVED_CURSORS - 1;
+    public static final int NO_ID = -1;
+
+    private static final int MESSAGE_ID_FIELD = 0;
+    private static final int CLIENT_ID_FIELD = 1;
+
     private List<String> fields;
     private String[] values;
     private boolean isSubscription;
     private String wildcard;
-    private Map<String, String> query;
+    private Set<String> terms;
+    private ConditionDictionary dictionary;
+    // conditions as dictionary ids, each at most once; constrained ones are a subset
+    private int[] conditionIds;
+    private int[] constrainedConditionIds;
+    // Conditions the dictionary doesn't number, as field (or the dictionary's termField()) and value. They are
+    // never the wildcard, so all of them are constrained.
+    private int[] openConditionFields;
+    private String[] openConditionValues;
+    // Numeric messageId and clientId values, which aren't dictionary conditions: every message brings a new
+    // one, so stores look them up directly. NO_ID where the field is the wildcard or not a number.
+    private int directMessageId;
+    private int directClientId;
+    // the same conditions as strings, only built for stores that key by string
+    private volatile Set<String> conditions;
+    private volatile Set<String> constrainedConditions;
+    // cursors for conditionIds, by position there, then the open conditions', then the reserved ones
+    private AtomicIntegerArray lastRetrievedByConditionId;
     private Date lastAccess;
     private final Object lastAccessLock = new Object();
 
-    Query(List<String> fields, String[] values, String wildcard, boolean isSubscription) {
+    /**
+     * @param terms text search terms, indexed or searched for as conditions of their own alongside the
+     *              field-value pairs
+     */
+    Query(List<String> fields, String[] values, Set<String> terms, String wildcard, boolean isSubscription,
+          ConditionDictionary dictionary) {
         this.fields = fields;
         this.values = values;
-        this.query = new ConcurrentHashMap<>();
+        this.terms = terms;
+        this.dictionary = dictionary;
         this.wildcard = wildcard;
         this.isSubscription = isSubscription;
         this.lastAccess = new Date();
     }
 
     Query generate() {
-        int i;
         int numFields = fields.size();
-        String field, value;
-
-        for (i = 0; i < numFields; i++) {
-            field = fields.get(i);
-            value = values[i];
-            query.put(field + "_" + value, "");
+        int[] all = new int[(isSubscription ? numFields : 2 * numFields) + terms.size()];
+        int[] constrained = new int[numFields];
+        int[] openFields = new int[numFields + terms.size()];
+        String[] openValues = new String[numFields + terms.size()];
+        int numAll = 0;
+        int numConstrained = 0;
+        int numOpen = 0;
+        this.directMessageId = directIdOf(values[MESSAGE_ID_FIELD]);
+        this.directClientId = directIdOf(values[CLIENT_ID_FIELD]);
 
+        for (int i = 0; i < numFields; i++) {
+            String value = values[i];
+            boolean isDirect = (i == MESSAGE_ID_FIELD && directMessageId != NO_ID)
+                    || (i == CLIENT_ID_FIELD && directClientId != NO_ID);
+            if (!isDirect) {
+                int condition = dictionary.idOf(i, value);
+                if (condition == ConditionDictionary.OPEN) {
+                    openFields[numOpen] = i;
+                    openValues[numOpen++] = value;
+                } else {
+                    all[numAll++] = condition;
+                    if (!value.equals(wildcard)) {
+                        constrained[numConstrained++] = condition;
+                    }
+                }
+            }
             // Messages to be published need to be added to wildcard buckets
-            if (!isSubscription) {
-                query.put(field + "_" + wildcard, "");
+            if (!isSubscription && !value.equals(wildcard)) {
+                all[numAll++] = dictionary.wildcardIdOf(i);
             }
         }
+        for (String term : terms) {
+            openFields[numOpen] = dictionary.termField();
+            openValues[numOpen++] = term;
+        }
+        this.conditionIds = Arrays.copyOf(all, numAll);
+        this.constrainedConditionIds = Arrays.copyOf(constrained, numConstrained);
+        this.openConditionFields = Arrays.copyOf(openFields, numOpen);
+        this.openConditionValues = Arrays.copyOf(openValues, numOpen);
+        this.lastRetrievedByConditionId = new AtomicIntegerArray(numAll + numOpen + NUM_RESERVED_CURSORS);
+        for (int i = 0; i < lastRetrievedByConditionId.length(); i++) {
+            lastRetrievedByConditionId.set(i, NONE_RETRIEVED);
+        }
         return this;
     }
 
-    public void refreshAccessOffsets() {
-        for(String fieldValuePair: query.keySet()) {
-            setLastRetrievedFor(fieldValuePair, "");
+    /**
+     * @return value as an id if it is a non-negative int written the way Integer.toString() would write it,
+     * else NO_ID. Other forms, "007" say, stay open conditions so they only match themselves.
+     */
+    public static int directIdOf(String value) {
+        int length = value.length();
+        if (length == 0 || length > 10 || (length > 1 && value.charAt(0) == '0')) {
+            return NO_ID;
+        }
+        long id = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return NO_ID;
+            }
+            id = id * 10 + (c - '0');
+        }
+        return id <= Integer.MAX_VALUE ? (int) id : NO_ID;
+    }
+
+    /**
+     * Called after the store has compacted away every id <= compactedThroughId: cursors behind that point
+     * are moved up to it, so they never point into the pruned range.
+     */
+    public void refreshAccessOffsets(int compactedThroughId) {
+        for (int i = 0; i < lastRetrievedByConditionId.length(); i++) {
+            if (lastRetrievedByConditionId.get(i) < compactedThroughId) {
+                lastRetrievedByConditionId.set(i, compactedThroughId);
+            }
         }
     }
 
+    /**
+     * @return the cursor key of the index-th open condition: negative, and never one of the reserved keys
+     */
+    public static int openCursorKey(int index) {
+        return FIRST_OPEN_CURSOR - index;
+    }
+
+    /**
+     * @return the index among the open conditions that cursorKey stands for, or -1 if it isn't an open one
+     */
+    public static int openConditionIndexOf(int cursorKey) {
+        return cursorKey <= FIRST_OPEN_CURSOR ? FIRST_OPEN_CURSOR - cursorKey : -1;
+    }
+
     public Set<String> getConditions() {
-        return query.keySet();
+        if (conditions == null) {
+            conditions = toConditionStrings(conditionIds);
+        }
+        return conditions;
     }
 
-    public String getLastRetrievedFor(String fieldValuePair) {
-        return query.get(fieldValuePair);
+    /**
+     * @return only the conditions whose value is not the wildcard, i.e., the fields this message actually
+     * constrains. Never includes wildcard buckets.
+     */
+    public Set<String> getConstrainedConditions() {
+        if (constrainedConditions == null) {
+            constrainedConditions = toConditionStrings(constrainedConditionIds);
+        }
+        return constrainedConditions;
     }
 
-    public void setLastRetrievedFor(String fieldValuePair, String lastRetrieved) {
-        query.put(fieldValuePair, lastRetrieved);
+    // in string form the open conditions and direct ids are conditions like any other
+    private Set<String> toConditionStrings(int[] ids) {
+        Set<String> strings = new HashSet<>((ids.length + openConditionFields.length) * 2 + 4);
+        for (int id : ids) {
+            strings.add(dictionary.conditionOf(id));
+        }
+        for (int i = 0; i < openConditionFields.length; i++) {
+            strings.add(dictionary.conditionOf(openConditionFields[i], openConditionValues[i]));
+        }
+        if (directMessageId != NO_ID) {
+            strings.add(fields.get(MESSAGE_ID_FIELD) + "_" + values[MESSAGE_ID_FIELD]);
+        }
+        if (directClientId != NO_ID) {
+            strings.add(fields.get(CLIENT_ID_FIELD) + "_" + values[CLIENT_ID_FIELD]);
+        }
+        return Collections.unmodifiableSet(strings);
+    }
+
+    /**
+     * getConditions() as ConditionDictionary ids, less the open conditions and direct ids. Callers must not
+     * modify it.
+     */
+    public int[] getConditionIds() {
+        return conditionIds;
+    }
+
+    /**
+     * getConstrainedConditions() as ConditionDictionary ids, less the open conditions and direct ids. Callers
+     * must not modify it.
+     */
+    public int[] getConstrainedConditionIds() {
+        return constrainedConditionIds;
+    }
+
+    /**
+     * The fields of the conditions the dictionary doesn't number, the i-th with value getOpenConditionValues()[i].
+     * Callers must not modify it.
+     */
+    public int[] getOpenConditionFields() {
+        return openConditionFields;
+    }
+
+    public String[] getOpenConditionValues() {
+        return openConditionValues;
+    }
+
+    public int getDirectMessageId() {
+        return directMessageId;
+    }
+
+    public int getDirectClientId() {
+        return directClientId;
+    }
+
+    /**
+     * @param conditionId one of getConditionIds(), an openCursorKey(), or one of the reserved cursor keys
+     */
+    public int getLastRetrievedIdFor(int conditionId) {
+        return lastRetrievedByConditionId.get(positionOf(conditionId));
+    }
+
+    public void setLastRetrievedIdFor(int conditionId, int lastRetrievedId) {
+        lastRetrievedByConditionId.set(positionOf(conditionId), lastRetrievedId);
+    }
+
+    // a query has a handful of conditions, so a scan beats hashing
+    private int positionOf(int conditionId) {
+        if (conditionId < 0) {
+            int openIndex = openConditionIndexOf(conditionId);
+            if (openIndex < 0) {
+                return conditionIds.length + openConditionFields.length - conditionId - 1;
+            }
+            if (openIndex < openConditionFields.length) {
+                return conditionIds.length + openIndex;
+            }
+            throw new IllegalArgumentException("Query has no open condition " + openIndex);
+        }
+        for (int i = 0; i < conditionIds.length; i++) {
+            if (conditionIds[i] == conditionId) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Query has no condition with id " + conditionId);
     }
 
     public Date getLastAccess() {
@@ -0,0 +1,11 @@
+package message;
+
+/**
+ * How a client's messages are framed on its TCP message socket. The client asks for one in Join.
+ */
+public enum WireFormat {
+    // every message padded to Protocol.getMessageSize() characters and ended with a newline
+    PADDED_TEXT,
+    // every message length-prefixed and written with MessageFrameCodec, so it carries no padding
+    LENGTH_PREFIXED
+}
@@ -1,7 +1,9 @@
 package runnableComponents;
 
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.*;
@@ -13,7 +15,9 @@ public abstract class TcpListener extends Scheduler {
     protected ServerSocket listenSocket = null;
     protected Socket messageSocket = null;
     private final Object socketLock = new Object();
+    // a connection is read through exactly one of these, chosen when it is accepted
     protected BufferedReader messageIn;
+    protected DataInputStream messageData;
 
     protected TcpListener() {
         super();
@@ -31,8 +35,12 @@ public abstract class TcpListener extends Scheduler {
 //                System.out.println("Accepted new socket request from remote in initializeMessageSocketIfNeeded");
                 messageSocket.setKeepAlive(true);
                 messageSocket.setReceiveBufferSize(messageSocket.getReceiveBufferSize() * 2);
-                messageIn = new BufferedReader(
-                        new InputStreamReader(messageSocket.getInputStream()));
+                if (readsFramedMessages()) {
+                    messageData = new DataInputStream(new BufferedInputStream(messageSocket.getInputStream()));
+                } else {
+                    messageIn = new BufferedReader(
+                            new InputStreamReader(messageSocket.getInputStream()));
+                }
 
             }
         }
@@ -44,11 +52,20 @@ public abstract class TcpListener extends Scheduler {
             messageSocket.close();
             messageSocket = null;
             messageIn = null;
+            messageData = null;
         }
     }
 
     public abstract void forceCloseSocket();
 
+    /**
+     * Asked once per accepted connection: true to read it as binary frames through messageData, false to read
+     * newline-ended text through messageIn.
+     */
+    protected boolean readsFramedMessages() {
+        return false;
+    }
+
     protected String receiveMessage() throws IOException {
         return messageIn.readLine();
     }
@@ -0,0 +1,211 @@
+package server;
+
+import message.Message;
+import message.Protocol;
+import message.Query;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * MessageStore whose condition index is a CompressedIdBitmap per condition key instead of a PublicationList.
+ * Dense lists such as the wildcard buckets cost about a bit per message and sparse ones two bytes, and a
+ * multi-condition retrieve is a bucket-wise AND of the condition bitmaps.
+ */
+public class BitmapMessageStore implements MessageStore {
+
+    private Map<String, CompressedIdBitmap> store;
+    private MessageTable messageTable;
+    private Protocol protocol;
+
+    // Bitmaps aren't thread safe: publishes mutate them under the write lock, retrieves read under the read lock.
+    private final ReadWriteLock indexLock = new ReentrantReadWriteLock();
+
+    private int highestMessageIdStored;
+
+    public BitmapMessageStore(Protocol protocol) {
+        this.store = new ConcurrentHashMap<>();
+        this.messageTable = new HeapMessageTable();
+        this.protocol = protocol;
+        this.highestMessageIdStored = -1;
+    }
+
+    @Override
+    public Set<String> retrieve(Message subscription) {
+        if (!subscription.isSubscription()) {
+            throw new IllegalArgumentException("Store retrieve() received non-subscription message.");
+        }
+
+        subscription.setLastAccess(new Date());
+
+        Set<String> conditions = subscription.getQueryConditions();
+        List<CompressedIdBitmap> candidates = new ArrayList<>(conditions.size());
+        // A message is new for the subscription only if it is past the highest id any of its conditions
+        // had last time, so one cursor for the whole query is enough.
+        int retrieveAfter = subscription.getLastRetrievedIdFor(Query.QUERY_CURSOR);
+        int highestLast = retrieveAfter;
+        boolean anyConditionEmpty = false;
+
+        indexLock.readLock().lock();
+        try {
+            for (String condition : conditions) {
+                CompressedIdBitmap bitmap = store.get(condition);
+                if (bitmap == null || bitmap.isEmpty()) {
+                    anyConditionEmpty = true;
+                    continue;
+                }
+                highestLast = Math.max(highestLast, bitmap.last());
+                candidates.add(bitmap);
+            }
+            if (highestLast > retrieveAfter) {
+                subscription.setLastRetrievedIdFor(Query.QUERY_CURSOR, highestLast);
+            }
+            if (anyConditionEmpty || candidates.isEmpty()) {
+                return new LinkedHashSet<>();
+            }
+            return resolveMessages(intersect(candidates, retrieveAfter), retrieveAfter);
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Set<String> retrieveRange(Message query, long fromIdExclusive, long toIdInclusive, int limit) {
+        if (!query.isSubscription()) {
+            throw new IllegalArgumentException("Store retrieveRange() received non-subscription message.");
+        }
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Store retrieveRange() limit must be positive: " + limit);
+        }
+        int afterId = (int) Math.max(fromIdExclusive, -1);
+        int throughId = (int) Math.min(toIdInclusive, Integer.MAX_VALUE);
+        Set<String> matchedPublications = new LinkedHashSet<>();
+        if (throughId <= afterId) {
+            return matchedPublications;
+        }
+
+        indexLock.readLock().lock();
+        try {
+            List<CompressedIdBitmap> candidates = new ArrayList<>();
+            for (String condition : query.getQueryConditions()) {
+                CompressedIdBitmap bitmap = store.get(condition);
+                if (bitmap == null || bitmap.isEmpty()) {
+                    return matchedPublications;
+                }
+                candidates.add(bitmap);
+            }
+            if (candidates.isEmpty()) {
+                return matchedPublications;
+            }
+            CompressedIdBitmap matched = intersect(candidates, afterId);
+            int id = matched.nextAfter(afterId);
+            while (id >= 0 && id <= throughId && matchedPublications.size() < limit) {
+                matchedPublications.add(messageTable.get(id));
+                id = matched.nextAfter(id);
+            }
+            return matchedPublications;
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    private static CompressedIdBitmap intersect(List<CompressedIdBitmap> candidates, int retrieveAfter) {
+        // Smallest first, so every intermediate result is as small as it can be.
+        candidates.sort(Comparator.comparingInt(CompressedIdBitmap::cardinality));
+        CompressedIdBitmap matched = candidates.get(0);
+        for (int i = 1; i < candidates.size() && !matched.isEmpty(); i++) {
+            matched = matched.andFrom(candidates.get(i), retrieveAfter + 1);
+        }
+        return matched;
+    }
+
+    private Set<String> resolveMessages(CompressedIdBitmap matched, int retrieveAfter) {
+        Set<String> matchedPublications = new LinkedHashSet<>();
+        int id = matched.nextAfter(retrieveAfter);
+        while (id >= 0) {
+            matchedPublications.add(messageTable.get(id));
+            id = matched.nextAfter(id);
+        }
+        return matchedPublications;
+    }
+
+    @Override
+    public boolean publish(Message message) {
+        message.setLastAccess(new Date());
+        int messageId = message.getMessageIdAsInt();
+        // stored without wire padding; it's added back on delivery
+        if (!messageTable.putIfAbsent(messageId, protocol.stripPadding(message.asRawMessage()))) {
+            return false;
+        }
+        Set<String> conditions = message.getQueryConditions();
+        indexLock.writeLock().lock();
+        try {
+            for (String condition : conditions) {
+                store.computeIfAbsent(condition, key -> new CompressedIdBitmap()).add(messageId);
+            }
+            highestMessageIdStored = Math.max(highestMessageIdStored, messageId);
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+        return true;
+    }
+
+    @Override
+    public int publishAll(Collection<Message> messages) {
+        Date now = new Date();
+        List<Message> stored = new ArrayList<>(messages.size());
+        int[] storedIds = new int[messages.size()];
+        for (Message message : messages) {
+            message.setLastAccess(now);
+            int messageId = message.getMessageIdAsInt();
+            if (messageTable.putIfAbsent(messageId, protocol.stripPadding(message.asRawMessage()))) {
+                storedIds[stored.size()] = messageId;
+                stored.add(message);
+            }
+        }
+        if (stored.isEmpty()) {
+            return 0;
+        }
+        indexLock.writeLock().lock();
+        try {
+            for (int i = 0; i < stored.size(); i++) {
+                int messageId = storedIds[i];
+                for (String condition : stored.get(i).getQueryConditions()) {
+                    store.computeIfAbsent(condition, key -> new CompressedIdBitmap()).add(messageId);
+                }
+                highestMessageIdStored = Math.max(highestMessageIdStored, messageId);
+            }
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+        return stored.size();
+    }
+
+    @Override
+    public int getHighestMessageIdStored() {
+        indexLock.readLock().lock();
+        try {
+            return highestMessageIdStored;
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return approximate heap bytes used by the condition index, excluding the message bodies
+     */
+    long indexSizeInBytes() {
+        indexLock.readLock().lock();
+        try {
+            long bytes = 0;
+            for (CompressedIdBitmap bitmap : store.values()) {
+                bytes += bitmap.sizeInBytes();
+            }
+            return bytes;
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+}
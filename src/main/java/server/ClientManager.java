@@ -1,8 +1,11 @@
 package server;
 
 import message.Message;
+import message.MessageFrameCodec;
 import message.Protocol;
+import message.WireFormat;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
@@ -20,7 +23,11 @@ public class ClientManager implements CommunicationManager {
     private String clientId;
 
     private Socket clientMessageSocket;
+    private WireFormat wireFormat;
+    // writer for PADDED_TEXT clients; frameOut and frameCodec for LENGTH_PREFIXED ones
     private BufferedWriter writer;
+    private BufferedOutputStream frameOut;
+    private MessageFrameCodec frameCodec;
 
     private boolean clientLeft;
 
@@ -33,6 +40,10 @@ public class ClientManager implements CommunicationManager {
     private final Object publicationLock = new Object();
 
     ClientManager(String clientIp, int clientPort, Protocol protocol) throws IOException {
+        this(clientIp, clientPort, protocol, WireFormat.PADDED_TEXT);
+    }
+
+    ClientManager(String clientIp, int clientPort, Protocol protocol, WireFormat wireFormat) throws IOException {
         this.clientIp = clientIp;
         this.clientPort = clientPort;
         this.clientId = null;
@@ -40,6 +51,7 @@ public class ClientManager implements CommunicationManager {
         this.clientLeft = false;
 
         this.protocol = protocol;
+        this.wireFormat = wireFormat;
 
         this.subscriptions = new LinkedList<>();
         this.publications = new ArrayList<>();
@@ -53,9 +65,14 @@ public class ClientManager implements CommunicationManager {
             clientMessageSocket = new Socket(clientIp, clientPort);
             clientMessageSocket.setReceiveBufferSize(clientMessageSocket.getReceiveBufferSize() * 2);
             clientMessageSocket.setKeepAlive(true);
-            writer = new BufferedWriter(
-                    new OutputStreamWriter(
-                            clientMessageSocket.getOutputStream()));
+            if (wireFormat == WireFormat.LENGTH_PREFIXED) {
+                frameOut = new BufferedOutputStream(clientMessageSocket.getOutputStream());
+                frameCodec = new MessageFrameCodec(protocol);
+            } else {
+                writer = new BufferedWriter(
+                        new OutputStreamWriter(
+                                clientMessageSocket.getOutputStream()));
+            }
         }
     }
 
@@ -123,6 +140,18 @@ public class ClientManager implements CommunicationManager {
         deliverPublications(toDeliver, protocol.getMessageSize());
     }
 
+    /**
+     * Like retrieve(), but delivers only one page of matches, in page order. The notification carries the
+     * page size, so the client knows when the page is complete.
+     */
+    @Override
+    public void retrieve(Message queryMessage, MessageStore store, int resumeAfterId, int limit, boolean newestFirst) {
+        List<String> page = store.retrievePage(queryMessage, resumeAfterId, limit, newestFirst);
+        String retrieveNotification = protocol.buildRetrieveNotification(queryMessage.asRawMessage(), page.size());
+        deliverControlMessage(new Message(protocol, retrieveNotification, true));
+        deliverPublications(page, protocol.getMessageSize());
+    }
+
     @Override
     public void publish(Message message, MessageStore store) {
 //        Removed, as this was put in consistency policy instead
@@ -133,6 +162,14 @@ public class ClientManager implements CommunicationManager {
         store.publish(message);
     }
 
+    @Override
+    public void publishAll(List<Message> messages, MessageStore store) {
+        synchronized (publicationLock) {
+            this.publications.addAll(messages);
+        }
+        store.publishAll(messages);
+    }
+
     private Set<String> getSingleQueryMatches(Message queryMessage, MessageStore store) {
         Message[] singleQuery = new Message[]{queryMessage};
         return getSubscriptionMatches(singleQuery, store);
@@ -174,14 +211,16 @@ public class ClientManager implements CommunicationManager {
         return toDeliver;
     }
 
-    private void deliverPublications(Set<String> publicationsToDeliver, int messageSize) {
-        String paddedPublication;
+    private void deliverPublications(Collection<String> publicationsToDeliver, int messageSize) {
+        if (wireFormat == WireFormat.LENGTH_PREFIXED) {
+            deliverFrames(publicationsToDeliver);
+            return;
+        }
         try {
             if(!clientLeft) {
                 for (String publication : publicationsToDeliver) {
-                    paddedPublication = this.protocol.padMessage(publication);
-                    //                messageBuffer = paddedPublication.getBytes();
-                    writer.write(paddedPublication);
+                    // padded as it is written, so no padded copy is built per delivery
+                    this.protocol.writePadded(writer, publication);
                     writer.newLine();
                     writer.flush();
                 }
@@ -194,6 +233,25 @@ public class ClientManager implements CommunicationManager {
         }
     }
 
+    private void deliverFrames(Collection<String> publicationsToDeliver) {
+        // the codec's buffers are shared, so a whole batch goes out before another starts
+        synchronized (frameOut) {
+            try {
+                if(!clientLeft) {
+                    for (String publication : publicationsToDeliver) {
+                        frameCodec.write(frameOut, publication);
+                    }
+                    frameOut.flush();
+                } else {
+                    frameOut.close();
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Failed to send matched publications in ClientManager: " + e.toString());
+                e.printStackTrace();
+            }
+        }
+    }
+
     private void deliverPublication(String publicationToDeliver, int messageSize) {
         Set<String> singlePublicationSet = new HashSet<>();
         singlePublicationSet.add(publicationToDeliver);
@@ -0,0 +1,346 @@
+package server;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Immutable file of publications demoted from a TieredMessageStore's hot tier: their bodies in id order,
+ * followed by a delta-encoded posting list per condition. The file is memory-mapped read-only. The heap only
+ * holds a sparse index over the bodies (the id and offset of every SPARSE_INDEX_INTERVAL-th one) and where
+ * each posting list starts, so looking up a body scans at most one interval of records.
+ *
+ * File layout (cold-<segmentNumber>.seg, ids delta-encoded as varints where marked):
+ *   [int magic][int version][int numMessages][int firstId][int lastId]
+ *   numMessages x ([int messageId][int bodyLength][UTF-8 body])
+ *   [int numSparseEntries] numSparseEntries x ([int messageId][int recordOffset])
+ *   [int numLists] numLists x ([int conditionLength][UTF-8 condition][int numIds][int numBytes][varint id deltas])
+ *   [int sparseIndexOffset][int listsOffset][int magic]
+ */
+final class ColdSegment {
+    static final String SEGMENT_PREFIX = "cold-";
+    static final String SEGMENT_SUFFIX = ".seg";
+    static final int SPARSE_INDEX_INTERVAL = 32;
+    // key of the list holding every id in the segment; conditions are always "field_value" or "#term"
+    private static final String ALL_MESSAGES_LIST = "*";
+    private static final int MAGIC = 0x5105_C01D;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 5 * 4;
+    private static final int TRAILER_BYTES = 3 * 4;
+    private static final int RECORD_HEADER_BYTES = 4 + 4;
+
+    private final Path file;
+    private final MappedByteBuffer buffer;
+    private final int numMessages;
+    private final int firstId;
+    private final int lastId;
+    private final int recordsEnd;
+    private final int[] sparseIds;
+    private final int[] sparseOffsets;
+    // condition -> number of ids in its list (high 32 bits) and offset of its first varint (low 32 bits)
+    private final Map<String, Long> listLocations;
+    private boolean closed;
+
+    private ColdSegment(Path file, MappedByteBuffer buffer) throws IOException {
+        int size = buffer.capacity();
+        if (size < HEADER_BYTES + TRAILER_BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+                || buffer.getInt(size - 4) != MAGIC) {
+            throw new IOException("ColdSegment: unrecognized segment file " + file);
+        }
+        this.file = file;
+        this.buffer = buffer;
+        this.numMessages = buffer.getInt(8);
+        this.firstId = buffer.getInt(12);
+        this.lastId = buffer.getInt(16);
+        this.recordsEnd = buffer.getInt(size - TRAILER_BYTES);
+
+        int numSparseEntries = buffer.getInt(recordsEnd);
+        this.sparseIds = new int[numSparseEntries];
+        this.sparseOffsets = new int[numSparseEntries];
+        for (int i = 0; i < numSparseEntries; i++) {
+            sparseIds[i] = buffer.getInt(recordsEnd + 4 + 8 * i);
+            sparseOffsets[i] = buffer.getInt(recordsEnd + 4 + 8 * i + 4);
+        }
+
+        ByteBuffer lists = buffer.duplicate();
+        lists.position(buffer.getInt(size - TRAILER_BYTES + 4));
+        int numLists = lists.getInt();
+        this.listLocations = new HashMap<>(numLists * 2);
+        for (int i = 0; i < numLists; i++) {
+            byte[] condition = new byte[lists.getInt()];
+            lists.get(condition);
+            int numIds = lists.getInt();
+            int numBytes = lists.getInt();
+            listLocations.put(new String(condition, StandardCharsets.UTF_8),
+                    ((long) numIds << 32) | lists.position());
+            lists.position(lists.position() + numBytes);
+        }
+    }
+
+    static ColdSegment open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new ColdSegment(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    int getNumMessages() {
+        return numMessages;
+    }
+
+    int getFirstId() {
+        return firstId;
+    }
+
+    int getLastId() {
+        return lastId;
+    }
+
+    /**
+     * @return the body stored under messageId, or null if this segment doesn't hold it
+     */
+    String get(int messageId) {
+        if (messageId < firstId || messageId > lastId) {
+            return null;
+        }
+        int entry = Arrays.binarySearch(sparseIds, messageId);
+        // the closest indexed id below messageId otherwise; sparseIds[0] is firstId, so there is one
+        int offset = sparseOffsets[entry >= 0 ? entry : -entry - 2];
+        for (int i = 0; i < SPARSE_INDEX_INTERVAL && offset < recordsEnd; i++) {
+            int recordId = buffer.getInt(offset);
+            int bodyLength = buffer.getInt(offset + 4);
+            if (recordId == messageId) {
+                ByteBuffer record = buffer.duplicate();
+                record.position(offset + RECORD_HEADER_BYTES);
+                byte[] body = new byte[bodyLength];
+                record.get(body);
+                return new String(body, StandardCharsets.UTF_8);
+            }
+            if (recordId > messageId) {
+                return null;
+            }
+            offset += RECORD_HEADER_BYTES + bodyLength;
+        }
+        return null;
+    }
+
+    /**
+     * Adds to matches (id to body) the first limit publications, in id order or newest first, that have ids in
+     * (afterId, throughId] and are in every one of conditions' lists. No conditions means every publication.
+     */
+    void collectMatches(Set<String> conditions, int afterId, int throughId, int limit, boolean newestFirst,
+                        Map<Integer, String> matches) {
+        PostingCursor[] candidates;
+        if (conditions.isEmpty()) {
+            candidates = new PostingCursor[]{getIdsBetween(ALL_MESSAGES_LIST, afterId, throughId)};
+        } else {
+            candidates = new PostingCursor[conditions.size()];
+            int i = 0;
+            for (String condition : conditions) {
+                candidates[i++] = getIdsBetween(condition, afterId, throughId);
+            }
+        }
+        if (!PairedKeyMessageStore.planRetrieve(candidates)) {
+            return;
+        }
+        PostingIntersection intersection = new PostingIntersection(candidates);
+        int id;
+        for (int found = 0;
+             found < limit && (id = newestFirst ? intersection.previousMatch() : intersection.nextMatch())
+                     != PostingCursor.NO_MORE;
+             found++) {
+            matches.put(id, get(id));
+        }
+    }
+
+    private PostingCursor getIdsBetween(String condition, int afterId, int throughId) {
+        Long location = listLocations.get(condition);
+        if (location == null) {
+            return PostingCursor.EMPTY;
+        }
+        ByteBuffer deltas = buffer.duplicate();
+        deltas.position((int) (long) location);
+        int[] ids = new int[(int) (location >>> 32)];
+        int start = 0;
+        int end = 0;
+        int previous = -1;
+        while (end < ids.length) {
+            previous += readVarint(deltas);
+            if (previous > throughId) {
+                break;
+            }
+            if (previous <= afterId) {
+                start++;
+            }
+            ids[end++] = previous;
+        }
+        return new PostingCursor(ids, start, end);
+    }
+
+    /**
+     * Unmaps the file, so its pages are released now rather than whenever the buffer is collected, and the file
+     * can be deleted on platforms that refuse to delete a mapped file. Reading the segment afterwards would touch
+     * unmapped memory, so the caller must make sure nothing does.
+     */
+    synchronized void close() {
+        if (!closed) {
+            closed = true;
+            unmap(buffer);
+        }
+    }
+
+    // Java has no public unmap, so this reaches the JDK's cleaner; if that fails the mapping is left to the GC.
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            // Java 9+
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        } catch (NoSuchMethodException e) {
+            try {
+                // Java 8
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            } catch (ReflectiveOperationException | RuntimeException ignored) {
+                // left to the GC
+            }
+        } catch (ReflectiveOperationException | RuntimeException ignored) {
+            // left to the GC
+        }
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Collects publications for a new segment. They must be added in increasing id order.
+     */
+    static final class Writer {
+        private final List<String> bodies;
+        private final Map<String, PublicationList> lists;
+        private int lastIdAdded;
+
+        Writer() {
+            this.bodies = new ArrayList<>();
+            this.lists = new TreeMap<>();
+            this.lastIdAdded = -1;
+        }
+
+        void add(int messageId, String body, Collection<String> conditions) {
+            if (messageId <= lastIdAdded) {
+                throw new IllegalArgumentException("ColdSegment: ids must be added in increasing order, got "
+                        + messageId + " after " + lastIdAdded);
+            }
+            bodies.add(body);
+            lists.computeIfAbsent(ALL_MESSAGES_LIST, key -> new PublicationList())
+                    .synchronizedAdd(messageId);
+            for (String condition : conditions) {
+                lists.computeIfAbsent(condition, key -> new PublicationList()).synchronizedAdd(messageId);
+            }
+            lastIdAdded = messageId;
+        }
+
+        boolean isEmpty() {
+            return bodies.isEmpty();
+        }
+
+        /**
+         * Writes the segment and opens it. The file only appears under its final name once it is complete and
+         * synced.
+         */
+        ColdSegment writeTo(Path file) throws IOException {
+            if (isEmpty()) {
+                throw new IllegalStateException("ColdSegment: nothing to write to " + file);
+            }
+            Path partial = file.resolveSibling(file.getFileName() + ".tmp");
+            PostingCursor ids = lists.get(ALL_MESSAGES_LIST).getIdsAfter(-1);
+            try (FileOutputStream fileOut = new FileOutputStream(partial.toFile());
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(bodies.size());
+                out.writeInt(ids.advanceTo(0));
+                out.writeInt(lastIdAdded);
+
+                int[] sparseIds = new int[(bodies.size() + SPARSE_INDEX_INTERVAL - 1) / SPARSE_INDEX_INTERVAL];
+                int[] sparseOffsets = new int[sparseIds.length];
+                for (int i = 0; i < bodies.size(); i++) {
+                    int messageId = ids.next();
+                    if (i % SPARSE_INDEX_INTERVAL == 0) {
+                        sparseIds[i / SPARSE_INDEX_INTERVAL] = messageId;
+                        sparseOffsets[i / SPARSE_INDEX_INTERVAL] = out.size();
+                    }
+                    byte[] body = bodies.get(i).getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(messageId);
+                    out.writeInt(body.length);
+                    out.write(body);
+                }
+
+                int sparseIndexOffset = out.size();
+                out.writeInt(sparseIds.length);
+                for (int i = 0; i < sparseIds.length; i++) {
+                    out.writeInt(sparseIds[i]);
+                    out.writeInt(sparseOffsets[i]);
+                }
+
+                int listsOffset = out.size();
+                out.writeInt(lists.size());
+                ByteArrayOutputStream deltaBytes = new ByteArrayOutputStream();
+                DataOutputStream deltas = new DataOutputStream(deltaBytes);
+                for (Map.Entry<String, PublicationList> list : lists.entrySet()) {
+                    deltaBytes.reset();
+                    PostingCursor listIds = list.getValue().getIdsAfter(-1);
+                    int numIds = listIds.remaining();
+                    int previous = -1;
+                    while (listIds.hasNext()) {
+                        int id = listIds.next();
+                        StoreSnapshot.writeVarint(deltas, id - previous);
+                        previous = id;
+                    }
+                    byte[] condition = list.getKey().getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(condition.length);
+                    out.write(condition);
+                    out.writeInt(numIds);
+                    out.writeInt(deltaBytes.size());
+                    deltaBytes.writeTo(out);
+                }
+
+                out.writeInt(sparseIndexOffset);
+                out.writeInt(listsOffset);
+                out.writeInt(MAGIC);
+                // size() stops counting at Integer.MAX_VALUE, past which offsets no longer fit
+                if (out.size() == Integer.MAX_VALUE) {
+                    throw new IOException("ColdSegment: segment too large for " + file);
+                }
+                out.flush();
+                fileOut.getFD().sync();
+            }
+            Files.move(partial, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return open(file);
+        }
+    }
+}
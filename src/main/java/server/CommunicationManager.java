@@ -3,6 +3,7 @@ package server;
 import message.Message;
 
 import java.io.IOException;
+import java.util.List;
 
 public interface CommunicationManager {
 
@@ -15,7 +16,9 @@ public interface CommunicationManager {
     void subscribe(Message message);
     void unsubscribe(Message message);
     void retrieve(Message queryMessage, MessageStore store);
+    void retrieve(Message queryMessage, MessageStore store, int resumeAfterId, int limit, boolean newestFirst);
     void publish(Message message, MessageStore store);
+    void publishAll(List<Message> messages, MessageStore store);
     void pullSubscriptionMatchesFromStore(MessageStore store) throws IOException;
     void setClientId(String clientId);
     String getClientId();
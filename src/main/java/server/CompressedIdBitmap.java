@@ -0,0 +1,468 @@
+package server;
+
+import java.util.Arrays;
+
+/**
+ * Compressed set of non-negative int message ids, laid out like a roaring bitmap: ids are bucketed by
+ * their high 16 bits, and each bucket's low 16 bits live either in a sorted char array (sparse buckets,
+ * 2 bytes per id) or in a 65536-bit bitmap (dense buckets, 1 bit per id). A condition list that holds
+ * every message therefore costs about one bit per message, and AND/OR run bucket by bucket.
+ *
+ * Not thread safe; BitmapMessageStore guards its bitmaps with its own lock.
+ */
+final class CompressedIdBitmap {
+    // Past this many ids a bucket is smaller as a bitmap than as an array.
+    private static final int ARRAY_CONTAINER_MAX = 4096;
+
+    private char[] keys;
+    private Container[] containers;
+    private int numContainers;
+    private int cardinality;
+
+    CompressedIdBitmap() {
+        this.keys = new char[4];
+        this.containers = new Container[4];
+        this.numContainers = 0;
+        this.cardinality = 0;
+    }
+
+    boolean add(int id) {
+        if (id < 0) {
+            throw new IllegalArgumentException("CompressedIdBitmap.add(): ids must be non-negative: " + id);
+        }
+        char key = highBits(id);
+        int idx = findContainer(key);
+        if (idx < 0) {
+            idx = -(idx + 1);
+            insertContainer(idx, key, new ArrayContainer());
+        }
+        Container container = containers[idx];
+        int before = container.cardinality();
+        containers[idx] = container.add(lowBits(id));
+        if (containers[idx].cardinality() == before) {
+            return false;
+        }
+        cardinality++;
+        return true;
+    }
+
+    boolean contains(int id) {
+        if (id < 0) {
+            return false;
+        }
+        int idx = findContainer(highBits(id));
+        return idx >= 0 && containers[idx].contains(lowBits(id));
+    }
+
+    int cardinality() {
+        return cardinality;
+    }
+
+    boolean isEmpty() {
+        return cardinality == 0;
+    }
+
+    int last() {
+        if (numContainers == 0) {
+            throw new IllegalStateException("CompressedIdBitmap.last(): bitmap is empty");
+        }
+        return (keys[numContainers - 1] << 16) | containers[numContainers - 1].last();
+    }
+
+    /**
+     * @return the smallest id in the bitmap greater than afterId, or -1 if there is none
+     */
+    int nextAfter(int afterId) {
+        if (afterId == Integer.MAX_VALUE) {
+            return -1;
+        }
+        int target = Math.max(afterId + 1, 0);
+        int idx = findContainer(highBits(target));
+        int low = lowBits(target);
+        if (idx < 0) {
+            idx = -(idx + 1);
+            low = 0;
+        }
+        for (; idx < numContainers; idx++) {
+            int found = containers[idx].nextAtLeast(low);
+            if (found >= 0) {
+                return (keys[idx] << 16) | found;
+            }
+            low = 0;
+        }
+        return -1;
+    }
+
+    CompressedIdBitmap and(CompressedIdBitmap other) {
+        return andFrom(other, 0);
+    }
+
+    /**
+     * Intersects only the buckets that can hold ids >= fromId. Ids below fromId in the first such bucket may
+     * still appear in the result, so callers that need a strict bound should iterate with nextAfter().
+     */
+    CompressedIdBitmap andFrom(CompressedIdBitmap other, int fromId) {
+        CompressedIdBitmap result = new CompressedIdBitmap();
+        char fromKey = highBits(Math.max(fromId, 0));
+        int i = lowerBound(fromKey);
+        int j = other.lowerBound(fromKey);
+        while (i < numContainers && j < other.numContainers) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                Container intersection = containers[i].and(other.containers[j]);
+                if (intersection.cardinality() > 0) {
+                    result.appendContainer(keys[i], intersection);
+                }
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    CompressedIdBitmap or(CompressedIdBitmap other) {
+        CompressedIdBitmap result = new CompressedIdBitmap();
+        int i = 0, j = 0;
+        while (i < numContainers || j < other.numContainers) {
+            if (j >= other.numContainers || (i < numContainers && keys[i] < other.keys[j])) {
+                result.appendContainer(keys[i], containers[i].copy());
+                i++;
+            } else if (i >= numContainers || keys[i] > other.keys[j]) {
+                result.appendContainer(other.keys[j], other.containers[j].copy());
+                j++;
+            } else {
+                result.appendContainer(keys[i], containers[i].or(other.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return approximate heap bytes used by the id data, for sizing comparisons
+     */
+    long sizeInBytes() {
+        long bytes = keys.length * 2L + containers.length * 8L;
+        for (int i = 0; i < numContainers; i++) {
+            bytes += containers[i].sizeInBytes();
+        }
+        return bytes;
+    }
+
+    private static char highBits(int id) {
+        return (char) (id >>> 16);
+    }
+
+    private static char lowBits(int id) {
+        return (char) id;
+    }
+
+    private int findContainer(char key) {
+        // appends are by far the common case, so check the last bucket first
+        if (numContainers > 0 && keys[numContainers - 1] == key) {
+            return numContainers - 1;
+        }
+        return Arrays.binarySearch(keys, 0, numContainers, key);
+    }
+
+    private int lowerBound(char key) {
+        int idx = Arrays.binarySearch(keys, 0, numContainers, key);
+        return idx >= 0 ? idx : -(idx + 1);
+    }
+
+    private void insertContainer(int idx, char key, Container container) {
+        if (numContainers == keys.length) {
+            keys = Arrays.copyOf(keys, numContainers * 2);
+            containers = Arrays.copyOf(containers, numContainers * 2);
+        }
+        System.arraycopy(keys, idx, keys, idx + 1, numContainers - idx);
+        System.arraycopy(containers, idx, containers, idx + 1, numContainers - idx);
+        keys[idx] = key;
+        containers[idx] = container;
+        numContainers++;
+    }
+
+    private void appendContainer(char key, Container container) {
+        insertContainer(numContainers, key, container);
+        cardinality += container.cardinality();
+    }
+
+    private static abstract class Container {
+        abstract Container add(char low);
+        abstract boolean contains(char low);
+        abstract int cardinality();
+        abstract int last();
+        abstract int nextAtLeast(int low);
+        abstract Container and(Container other);
+        abstract Container or(Container other);
+        abstract Container copy();
+        abstract long sizeInBytes();
+    }
+
+    private static final class ArrayContainer extends Container {
+        private char[] values;
+        private int size;
+
+        ArrayContainer() {
+            this(new char[4], 0);
+        }
+
+        ArrayContainer(char[] values, int size) {
+            this.values = values;
+            this.size = size;
+        }
+
+        @Override
+        Container add(char low) {
+            if (size > 0 && values[size - 1] < low) {
+                return append(low);
+            }
+            int idx = Arrays.binarySearch(values, 0, size, low);
+            if (idx >= 0) {
+                return this;
+            }
+            if (size == ARRAY_CONTAINER_MAX) {
+                return toBitmap().add(low);
+            }
+            idx = -(idx + 1);
+            ensureCapacity();
+            System.arraycopy(values, idx, values, idx + 1, size - idx);
+            values[idx] = low;
+            size++;
+            return this;
+        }
+
+        private Container append(char low) {
+            if (size == ARRAY_CONTAINER_MAX) {
+                return toBitmap().add(low);
+            }
+            ensureCapacity();
+            values[size++] = low;
+            return this;
+        }
+
+        private void ensureCapacity() {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, Math.min(ARRAY_CONTAINER_MAX, Math.max(4, size * 2)));
+            }
+        }
+
+        private BitmapContainer toBitmap() {
+            BitmapContainer bitmap = new BitmapContainer();
+            for (int i = 0; i < size; i++) {
+                bitmap.add(values[i]);
+            }
+            return bitmap;
+        }
+
+        @Override
+        boolean contains(char low) {
+            return Arrays.binarySearch(values, 0, size, low) >= 0;
+        }
+
+        @Override
+        int cardinality() {
+            return size;
+        }
+
+        @Override
+        int last() {
+            return values[size - 1];
+        }
+
+        @Override
+        int nextAtLeast(int low) {
+            int idx = Arrays.binarySearch(values, 0, size, (char) low);
+            if (idx < 0) {
+                idx = -(idx + 1);
+            }
+            return idx < size ? values[idx] : -1;
+        }
+
+        @Override
+        Container and(Container other) {
+            char[] result = new char[size];
+            int k = 0;
+            if (other instanceof ArrayContainer) {
+                ArrayContainer array = (ArrayContainer) other;
+                int i = 0, j = 0;
+                while (i < size && j < array.size) {
+                    if (values[i] < array.values[j]) {
+                        i++;
+                    } else if (values[i] > array.values[j]) {
+                        j++;
+                    } else {
+                        result[k++] = values[i];
+                        i++;
+                        j++;
+                    }
+                }
+            } else {
+                for (int i = 0; i < size; i++) {
+                    if (other.contains(values[i])) {
+                        result[k++] = values[i];
+                    }
+                }
+            }
+            return new ArrayContainer(result, k);
+        }
+
+        @Override
+        Container or(Container other) {
+            if (other instanceof BitmapContainer) {
+                return other.or(this);
+            }
+            ArrayContainer array = (ArrayContainer) other;
+            char[] merged = new char[size + array.size];
+            int i = 0, j = 0, k = 0;
+            while (i < size || j < array.size) {
+                if (j >= array.size || (i < size && values[i] < array.values[j])) {
+                    merged[k++] = values[i++];
+                } else if (i >= size || values[i] > array.values[j]) {
+                    merged[k++] = array.values[j++];
+                } else {
+                    merged[k++] = values[i++];
+                    j++;
+                }
+            }
+            ArrayContainer result = new ArrayContainer(merged, k);
+            return k > ARRAY_CONTAINER_MAX ? result.toBitmap() : result;
+        }
+
+        @Override
+        Container copy() {
+            return new ArrayContainer(Arrays.copyOf(values, Math.max(size, 1)), size);
+        }
+
+        @Override
+        long sizeInBytes() {
+            return 16 + values.length * 2L;
+        }
+    }
+
+    private static final class BitmapContainer extends Container {
+        private final long[] words;
+        private int cardinality;
+
+        BitmapContainer() {
+            this(new long[1024], 0);
+        }
+
+        BitmapContainer(long[] words, int cardinality) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        Container add(char low) {
+            long bit = 1L << low;
+            int word = low >>> 6;
+            if ((words[word] & bit) == 0) {
+                words[word] |= bit;
+                cardinality++;
+            }
+            return this;
+        }
+
+        @Override
+        boolean contains(char low) {
+            return (words[low >>> 6] & (1L << low)) != 0;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        int last() {
+            for (int word = words.length - 1; word >= 0; word--) {
+                if (words[word] != 0) {
+                    return word * 64 + 63 - Long.numberOfLeadingZeros(words[word]);
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        int nextAtLeast(int low) {
+            int word = low >>> 6;
+            if (word >= words.length) {
+                return -1;
+            }
+            long remaining = words[word] & (-1L << low);
+            while (remaining == 0) {
+                if (++word == words.length) {
+                    return -1;
+                }
+                remaining = words[word];
+            }
+            return word * 64 + Long.numberOfTrailingZeros(remaining);
+        }
+
+        @Override
+        Container and(Container other) {
+            if (other instanceof ArrayContainer) {
+                return other.and(this);
+            }
+            BitmapContainer bitmap = (BitmapContainer) other;
+            long[] result = new long[words.length];
+            int count = 0;
+            for (int i = 0; i < words.length; i++) {
+                result[i] = words[i] & bitmap.words[i];
+                count += Long.bitCount(result[i]);
+            }
+            if (count <= ARRAY_CONTAINER_MAX) {
+                return toArray(result, count);
+            }
+            return new BitmapContainer(result, count);
+        }
+
+        private static ArrayContainer toArray(long[] words, int count) {
+            char[] values = new char[Math.max(count, 1)];
+            int k = 0;
+            for (int i = 0; i < words.length; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    values[k++] = (char) (i * 64 + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            return new ArrayContainer(values, count);
+        }
+
+        @Override
+        Container or(Container other) {
+            BitmapContainer result = (BitmapContainer) copy();
+            if (other instanceof ArrayContainer) {
+                ArrayContainer array = (ArrayContainer) other;
+                for (int i = 0; i < array.size; i++) {
+                    result.add(array.values[i]);
+                }
+            } else {
+                long[] otherWords = ((BitmapContainer) other).words;
+                int count = 0;
+                for (int i = 0; i < result.words.length; i++) {
+                    result.words[i] |= otherWords[i];
+                    count += Long.bitCount(result.words[i]);
+                }
+                result.cardinality = count;
+            }
+            return result;
+        }
+
+        @Override
+        Container copy() {
+            return new BitmapContainer(words.clone(), cardinality);
+        }
+
+        @Override
+        long sizeInBytes() {
+            return 16 + words.length * 8L;
+        }
+    }
+}
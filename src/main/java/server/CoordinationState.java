@@ -6,8 +6,12 @@ class CoordinationState {
     private int nextClientId;
     private final Object clientIdLock = new Object();
 
-    CoordinationState() {
-        this.nextMessageId = 0;
+    /**
+     * @param nextMessageId the first id to hand out: one past the highest the store already holds, so a server
+     *                      restarted on a durable store doesn't reuse ids (which the store would drop)
+     */
+    CoordinationState(int nextMessageId) {
+        this.nextMessageId = nextMessageId;
         this.nextClientId = 0;
     }
 
@@ -2,9 +2,13 @@ package server;
 
 import message.Message;
 import message.Protocol;
+import message.WireFormat;
 import runnableComponents.Scheduler;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
@@ -81,8 +85,12 @@ class Dispatcher {
     }
 
     public void addNewClient(String ip, int port) throws IOException {
+        addNewClient(ip, port, WireFormat.PADDED_TEXT);
+    }
+
+    public void addNewClient(String ip, int port, WireFormat wireFormat) throws IOException {
         if(!clientToClientManager.containsKey(ServerUtils.getIpPortString(ip, port, protocol))) {
-            CommunicationManager newClientManager = new ClientManager(ip, port, this.protocol);
+            CommunicationManager newClientManager = new ClientManager(ip, port, this.protocol, wireFormat);
             clientToClientManager.put(ServerUtils.getIpPortString(ip, port, protocol), newClientManager);
         }
     }
@@ -119,10 +127,59 @@ class Dispatcher {
         return createMessageTask(IP, Port, queryMessage, CommunicationManager.Call.RETRIEVE, true);
     }
 
+    /**
+     * Queues a retrieve of a single page of matches; see MessageStore.retrievePage().
+     */
+    public boolean retrievePage(String IP, int Port, String queryMessage,
+                                int resumeAfterId, int limit, boolean newestFirst) {
+        if (limit <= 0) {
+            LOGGER.log(Level.WARNING, "Rejected retrieve page with non-positive limit " + limit);
+            return false;
+        }
+        Message newMessage = createNewMessage(queryMessage, true);
+        if(newMessage == null) {
+            return false;
+        }
+        CommunicationManager manager = getManagerFor(IP, Port);
+        if(manager == null) {
+            LOGGER.log(Level.WARNING, "Client had no manager. May not have joined.");
+            return false;
+        }
+        this.clientTaskExecutor.execute(
+                () -> manager.retrieve(newMessage, store, resumeAfterId, limit, newestFirst));
+        return true;
+    }
+
     public boolean publish(String Message, String IP, int Port) {
         return createMessageTask(IP, Port, Message, CommunicationManager.Call.PUBLISH, false);
     }
 
+    /**
+     * Publishes a batch of messages as a single task, so catching up on thousands of messages costs one
+     * store batch instead of one executor task per message. Invalid messages are dropped.
+     *
+     * @return false if any message was invalid or the client has no manager
+     */
+    public boolean publishAll(Collection<String> rawMessages, String IP, int Port) {
+        List<Message> newMessages = new ArrayList<>(rawMessages.size());
+        boolean allValid = true;
+        for (String rawMessage : rawMessages) {
+            Message newMessage = createNewMessage(rawMessage, false);
+            if (newMessage == null) {
+                allValid = false;
+            } else {
+                newMessages.add(newMessage);
+            }
+        }
+        CommunicationManager manager = getManagerFor(IP, Port);
+        if(manager == null) {
+            LOGGER.log(Level.WARNING, "Client had no manager. May not have joined.");
+            return false;
+        }
+        this.clientTaskExecutor.execute(() -> manager.publishAll(newMessages, store));
+        return allValid;
+    }
+
     private boolean createMessageTask(String ip, int port, String rawMessage,
                                       CommunicationManager.Call call, boolean isSubscription) {
 
@@ -0,0 +1,74 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MessageTable that keeps every body on the Java heap, encoded as a UTF-8 byte array rather than a String:
+ * stored messages are mostly ASCII, so this halves the char data a String would hold.
+ */
+class HeapMessageTable implements MessageTable {
+    private Map<Integer, StoredMessage> messages;
+    private AtomicLong totalBytes;
+
+    HeapMessageTable() {
+        this.messages = new ConcurrentHashMap<>();
+        this.totalBytes = new AtomicLong(0);
+    }
+
+    @Override
+    public boolean putIfAbsent(int messageId, String message, long storedAtMillis) {
+        StoredMessage stored = new StoredMessage(message, storedAtMillis);
+        if (messages.putIfAbsent(messageId, stored) == null) {
+            totalBytes.addAndGet(stored.sizeInBytes());
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public String get(int messageId) {
+        StoredMessage stored = messages.get(messageId);
+        return stored != null ? new String(stored.body, StandardCharsets.UTF_8) : null;
+    }
+
+    @Override
+    public long getStoredAtMillis(int messageId) {
+        StoredMessage stored = messages.get(messageId);
+        return stored != null ? stored.storedAtMillis : -1;
+    }
+
+    @Override
+    public void remove(int messageId) {
+        StoredMessage removed = messages.remove(messageId);
+        if (removed != null) {
+            totalBytes.addAndGet(-removed.sizeInBytes());
+        }
+    }
+
+    @Override
+    public int size() {
+        return messages.size();
+    }
+
+    @Override
+    public long totalBytes() {
+        return totalBytes.get();
+    }
+
+    private static final class StoredMessage {
+        private final byte[] body;
+        private final long storedAtMillis;
+
+        StoredMessage(String message, long storedAtMillis) {
+            this.body = message.getBytes(StandardCharsets.UTF_8);
+            this.storedAtMillis = storedAtMillis;
+        }
+
+        long sizeInBytes() {
+            return body.length;
+        }
+    }
+}
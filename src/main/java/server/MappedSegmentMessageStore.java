@@ -0,0 +1,30 @@
+package server;
+
+import message.Protocol;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * PairedKeyMessageStore whose publication bodies live in fixed-size memory-mapped segment files rather than
+ * on the heap. The posting lists stay in memory and resolve ids through MappedSegmentMessageTable, so a
+ * server can hold far more history than its heap, and GC work doesn't grow with the store.
+ *
+ * Select it with ReplicatedPubSubServer.Builder.store(new MappedSegmentMessageStore(...)).
+ */
+public class MappedSegmentMessageStore extends PairedKeyMessageStore {
+    public static final int DEFAULT_SEGMENT_SIZE_BYTES = 64 * 1024 * 1024;
+
+    public MappedSegmentMessageStore(Protocol protocol, Path segmentDirectory) throws IOException {
+        this(new PairedKeyMessageStore.Builder(protocol), segmentDirectory, DEFAULT_SEGMENT_SIZE_BYTES);
+    }
+
+    /**
+     * @param builder index and retention options, as for an on-heap PairedKeyMessageStore
+     */
+    public MappedSegmentMessageStore(PairedKeyMessageStore.Builder builder, Path segmentDirectory,
+                                     int segmentSizeBytes) throws IOException {
+        super(builder, new MappedSegmentMessageTable(segmentDirectory, segmentSizeBytes));
+        recover(builder);
+    }
+}
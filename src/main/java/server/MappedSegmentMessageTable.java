@@ -0,0 +1,255 @@
+package server;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * MessageTable that appends bodies to fixed-size memory-mapped segment files instead of the heap. The only
+ * per-message heap cost is one long in a location array indexed by message id (ids are handed out densely
+ * by the coordinator), packing the segment number and the record's offset in that segment. Reads decode
+ * straight out of the mapped buffer.
+ *
+ * Segment record layout: [int messageId][int bodyLength][long storedAtMillis][UTF-8 body].
+ *
+ * Segments are scratch space for the in-memory index, not a durable log: existing segment files in the
+ * directory are deleted on startup.
+ */
+class MappedSegmentMessageTable implements MessageTable {
+    private static final Logger LOGGER = Logger.getLogger( MappedSegmentMessageTable.class.getName() );
+
+    static final String SEGMENT_PREFIX = "segment-";
+    static final String SEGMENT_SUFFIX = ".dat";
+    private static final int RECORD_HEADER_BYTES = 4 + 4 + 8;
+    private static final long NO_LOCATION = -1;
+
+    private final Path directory;
+    private final int segmentSizeBytes;
+
+    // appended under tableLock, read without it
+    private final List<Segment> segments;
+    private Segment activeSegment;
+
+    // location of message id i, or NO_LOCATION. Replaced (never shrunk in place) when it has to grow.
+    private volatile long[] locationsById;
+
+    private int size;
+    private long totalBytes;
+    private final Object tableLock = new Object();
+
+    MappedSegmentMessageTable(Path directory, int segmentSizeBytes) throws IOException {
+        if (segmentSizeBytes <= RECORD_HEADER_BYTES) {
+            throw new IllegalArgumentException("MappedSegmentMessageTable: segment size too small: " + segmentSizeBytes);
+        }
+        this.directory = directory;
+        this.segmentSizeBytes = segmentSizeBytes;
+        this.segments = new CopyOnWriteArrayList<>();
+        this.locationsById = new long[1024];
+        Arrays.fill(locationsById, NO_LOCATION);
+        this.size = 0;
+        this.totalBytes = 0;
+
+        Files.createDirectories(directory);
+        deleteStaleSegments();
+        this.activeSegment = openSegment(0);
+    }
+
+    private void deleteStaleSegments() throws IOException {
+        try (DirectoryStream<Path> stale = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path segmentFile : stale) {
+                Files.delete(segmentFile);
+            }
+        }
+    }
+
+    private Segment openSegment(int segmentNumber) throws IOException {
+        Path file = directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, segmentNumber, SEGMENT_SUFFIX));
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw");
+             FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSizeBytes);
+            Segment segment = new Segment(segmentNumber, file, buffer);
+            segments.add(segment);
+            return segment;
+        }
+    }
+
+    @Override
+    public boolean putIfAbsent(int messageId, String message, long storedAtMillis) {
+        byte[] body = message.getBytes(StandardCharsets.UTF_8);
+        int recordBytes = RECORD_HEADER_BYTES + body.length;
+        if (recordBytes > segmentSizeBytes) {
+            throw new IllegalArgumentException("MappedSegmentMessageTable: message larger than a segment: " + messageId);
+        }
+        synchronized (tableLock) {
+            if (getLocation(messageId) != NO_LOCATION) {
+                return false;
+            }
+            if (activeSegment.writeOffset + recordBytes > segmentSizeBytes) {
+                rollActiveSegment();
+            }
+            int offset = activeSegment.writeOffset;
+            ByteBuffer buffer = activeSegment.buffer;
+            buffer.putInt(offset, messageId);
+            buffer.putInt(offset + 4, body.length);
+            buffer.putLong(offset + 8, storedAtMillis);
+            ByteBuffer bodyWriter = buffer.duplicate();
+            bodyWriter.position(offset + RECORD_HEADER_BYTES);
+            bodyWriter.put(body);
+            activeSegment.writeOffset += recordBytes;
+            activeSegment.liveRecords++;
+
+            setLocation(messageId, ((long) activeSegment.number << 32) | offset);
+            size++;
+            totalBytes += recordBytes;
+            return true;
+        }
+    }
+
+    private void rollActiveSegment() {
+        try {
+            activeSegment = openSegment(activeSegment.number + 1);
+        } catch (IOException e) {
+            throw new RuntimeException("MappedSegmentMessageTable: failed to open new segment: " + e.toString());
+        }
+    }
+
+    @Override
+    public String get(int messageId) {
+        long location = getLocation(messageId);
+        if (location == NO_LOCATION) {
+            return null;
+        }
+        ByteBuffer record = recordAt(location);
+        if (record == null) {
+            return null;
+        }
+        int bodyLength = record.getInt(4);
+        byte[] body = new byte[bodyLength];
+        record.position(RECORD_HEADER_BYTES);
+        record.get(body);
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public long getStoredAtMillis(int messageId) {
+        ByteBuffer record = recordAt(getLocation(messageId));
+        return record == null ? -1 : record.getLong(8);
+    }
+
+    // Independent view positioned at the record, so concurrent readers never share buffer position. Null if
+    // the record was removed, including when its whole segment was deleted after the location was read.
+    private ByteBuffer recordAt(long location) {
+        if (location == NO_LOCATION) {
+            return null;
+        }
+        Segment segment = segments.get((int) (location >>> 32));
+        if (segment == null) {
+            return null;
+        }
+        ByteBuffer view = segment.buffer.duplicate();
+        view.position((int) location);
+        return view.slice();
+    }
+
+    @Override
+    public void remove(int messageId) {
+        synchronized (tableLock) {
+            long location = getLocation(messageId);
+            if (location == NO_LOCATION) {
+                return;
+            }
+            Segment segment = segments.get((int) (location >>> 32));
+            totalBytes -= RECORD_HEADER_BYTES + segment.buffer.getInt((int) location + 4);
+            size--;
+            setLocation(messageId, NO_LOCATION);
+            if (--segment.liveRecords == 0 && segment != activeSegment) {
+                deleteSegmentFile(segment);
+            }
+        }
+    }
+
+    private void deleteSegmentFile(Segment segment) {
+        // Nothing points into the segment any more. Dropping our reference lets the mapping be collected
+        // (Java has no explicit unmap); the slot stays so segment numbers keep indexing the list.
+        segments.set(segment.number, null);
+        try {
+            Files.deleteIfExists(segment.file);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to delete emptied segment " + segment.file + ": " + e.toString());
+        }
+    }
+
+    @Override
+    public int size() {
+        synchronized (tableLock) {
+            return size;
+        }
+    }
+
+    @Override
+    public long totalBytes() {
+        synchronized (tableLock) {
+            return totalBytes;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (tableLock) {
+            for (Segment segment : segments) {
+                if (segment != null) {
+                    segment.buffer.force();
+                }
+            }
+        }
+    }
+
+    private long getLocation(int messageId) {
+        long[] locations = locationsById;
+        return (messageId >= 0 && messageId < locations.length) ? locations[messageId] : NO_LOCATION;
+    }
+
+    // Caller must hold tableLock.
+    private void setLocation(int messageId, long location) {
+        if (messageId < 0) {
+            throw new IllegalArgumentException("MappedSegmentMessageTable: negative message id " + messageId);
+        }
+        long[] locations = locationsById;
+        if (messageId >= locations.length) {
+            int oldLength = locations.length;
+            locations = Arrays.copyOf(locations, Math.max(messageId + 1, oldLength * 2));
+            Arrays.fill(locations, oldLength, locations.length, NO_LOCATION);
+            locations[messageId] = location;
+            locationsById = locations;
+        } else {
+            locations[messageId] = location;
+        }
+    }
+
+    private static final class Segment {
+        private final int number;
+        private final Path file;
+        private final MappedByteBuffer buffer;
+        private int writeOffset;
+        private int liveRecords;
+
+        Segment(int number, Path file, MappedByteBuffer buffer) {
+            this.number = number;
+            this.file = file;
+            this.buffer = buffer;
+            this.writeOffset = 0;
+            this.liveRecords = 0;
+        }
+    }
+}
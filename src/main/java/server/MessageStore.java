@@ -2,10 +2,92 @@ package server;
 
 import message.Message;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Set;
 
-public interface MessageStore {
+public interface MessageStore extends Closeable {
+    // resumeAfterId for the first page of retrievePage()
+    int FIRST_PAGE = -1;
+
     Set<String> retrieve(Message subscription);
     boolean publish(Message message);
+
+    /**
+     * Looks up the publications matching query with ids in (fromIdExclusive, toIdInclusive], in id order
+     * and at most limit of them. Unlike retrieve(), this leaves the query's cursors untouched, so peers and
+     * clients can fetch exactly the slice they are missing.
+     */
+    Set<String> retrieveRange(Message query, long fromIdExclusive, long toIdInclusive, int limit);
+
+    /**
+     * Looks up one page of the publications matching query, leaving its cursors untouched like
+     * retrieveRange(). Pages run in id order, or newest first; the next page resumes after the last id of
+     * this one.
+     *
+     * This default reads every match before the page to find the newest ones. Stores that can walk their
+     * indexes backwards should override it to stop once the page is full.
+     *
+     * @param resumeAfterId last id of the previous page, or FIRST_PAGE
+     */
+    default List<String> retrievePage(Message query, int resumeAfterId, int limit, boolean newestFirst) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Store retrievePage() limit must be positive: " + limit);
+        }
+        if (!newestFirst) {
+            return new ArrayList<>(retrieveRange(query, resumeAfterId, Integer.MAX_VALUE, limit));
+        }
+        long throughId = resumeAfterId == FIRST_PAGE ? Integer.MAX_VALUE : resumeAfterId - 1L;
+        List<String> oldestFirst = new ArrayList<>(retrieveRange(query, FIRST_PAGE, throughId, Integer.MAX_VALUE));
+        List<String> page = new ArrayList<>(
+                oldestFirst.subList(Math.max(0, oldestFirst.size() - limit), oldestFirst.size()));
+        Collections.reverse(page);
+        return page;
+    }
+
+    /**
+     * Publishes a batch, such as a replica catching up from its peers. Same semantics as publishing each
+     * message in turn, but stores can index the whole batch with one lock acquisition per posting list.
+     *
+     * @return how many of the messages were newly stored
+     */
+    default int publishAll(Collection<Message> messages) {
+        int numStored = 0;
+        for (Message message : messages) {
+            if (publish(message)) {
+                numStored++;
+            }
+        }
+        return numStored;
+    }
+
     int getHighestMessageIdStored();
+
+    /**
+     * Returns a post and all the replies under it, depth first, each reply directly after its parent.
+     * Only available from stores that index reply threads.
+     *
+     * @return the thread, or an empty list if the post isn't stored
+     */
+    default List<String> retrieveThread(int rootMessageId) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not index reply threads.");
+    }
+
+    /**
+     * Returns every post that replies to nothing, in id order, each mapped to its number of direct replies.
+     * Only available from stores that index reply threads.
+     */
+    default LinkedHashMap<String, Integer> retrieveTopLevelPosts() {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not index reply threads.");
+    }
+
+    @Override
+    default void close() throws IOException {
+        // stores that hold nothing outside the heap have nothing to release
+    }
 }
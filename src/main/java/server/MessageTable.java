@@ -0,0 +1,45 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Holds each stored publication exactly once, keyed by its message id. PublicationLists only refer to
+ * messages by id and resolve bodies here when a retrieve needs them. Also tracks when each message was
+ * stored and the table's total size, which retention limits are checked against.
+ *
+ * Stores hand the table messages with their wire padding stripped; ClientManager pads them again when it
+ * writes them to a client. Implementations keep bodies as length-prefixed UTF-8, so a message costs about
+ * its content length.
+ */
+interface MessageTable extends Closeable {
+    default boolean putIfAbsent(int messageId, String message) {
+        return putIfAbsent(messageId, message, System.currentTimeMillis());
+    }
+
+    /**
+     * Takes the storage time explicitly, so a message restored from a snapshot keeps its original age.
+     */
+    boolean putIfAbsent(int messageId, String message, long storedAtMillis);
+
+    /**
+     * @return the message, or null if it isn't in the table
+     */
+    String get(int messageId);
+
+    /**
+     * @return when the message was stored, or -1 if it isn't in the table
+     */
+    long getStoredAtMillis(int messageId);
+
+    void remove(int messageId);
+
+    int size();
+
+    long totalBytes();
+
+    @Override
+    default void close() throws IOException {
+        // nothing held outside the heap by default
+    }
+}
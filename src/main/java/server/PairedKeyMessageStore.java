@@ -1,59 +1,419 @@
 package server;
 
+import message.ConditionDictionary;
 import message.Message;
 import message.Protocol;
+import message.Query;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class PairedKeyMessageStore implements MessageStore {
+    private static final Logger LOGGER = Logger.getLogger( PairedKeyMessageStore.class.getName() );
 
-    private Map<String, PublicationList> store;
-    private Date lastStoreFlush;
+    // Evicted ids are pruned from the posting lists in batches of at least this many, or of an eighth of the
+    // ids stored if that's more, so the cost of rewriting every list is spread over that many evictions.
+    static final int MIN_PRUNE_BATCH = 64;
+    private static final int PRUNE_BATCH_DIVISOR = 8;
+
+    // posting lists by ConditionDictionary id
+    private PostingListTable store;
+    // Posting lists for open conditions (see ConditionDictionary), by field and then value. Unlike ids, these
+    // come and go with the values published, so compaction drops the lists it empties.
+    private List<Map<String, PublicationList>> openLists;
+    // posting lists by direct clientId (see Query.getDirectClientId()); direct messageIds need none
+    private Map<Integer, PublicationList> clientLists;
+    // Every stored id in order, independent of any condition. Only kept without wildcard buckets: with them,
+    // the messageId bucket already holds every id (see allMessagesAfter()).
+    private PublicationList publicationLog;
+    private MessageTable messageTable;
     private Protocol protocol;
+    private ConditionDictionary conditionDictionary;
+    private boolean indexWildcardBuckets;
+    // null unless reply threads are indexed
+    private ReplyThreadIndex replyThreadIndex;
+
+    private int maxMessagesRetained;
+    private long maxMessageAgeMillis;
+    private long maxBytesRetained;
+    // Every id <= compactedThroughId has been evicted from the table. Posting lists keep evicted ids until
+    // there are enough to prune in one pass (see compact()); retrieves skip over them meanwhile.
+    private volatile int compactedThroughId;
+    private volatile Date lastStoreFlush;
+    private final Object compactionLock = new Object();
+    // Publishes hold the read lock from checking compactedThroughId through indexing; eviction holds the write
+    // lock. So every publication that passed the check is indexed, and seen by the eviction walk, before
+    // compactedThroughId moves past it, and none can land in the table below it afterwards.
+    private final ReadWriteLock evictionLock = new ReentrantReadWriteLock();
+    // evicted ids not yet pruned from the posting lists; guarded by compactionLock
+    private int numEvictedUnpruned;
+    // prune passes so far, and the posting lists they walked; guarded by compactionLock
+    private long numPrunePasses;
+    private long numListsPruned;
+
+    // null unless durability was configured
+    private Path durableStateDirectory;
+    private WriteAheadLog writeAheadLog;
+    private ScheduledExecutorService snapshotScheduler;
+    // Publishes hold the read lock from logging through indexing, so a snapshot taken under the write lock
+    // holds every publication logged before the generation it starts.
+    private final ReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+    private final Object snapshotWriteLock = new Object();
 
     private int highestMessageIdStored;
     private final Object highestMessageIdStoredLock = new Object();
 
 
     PairedKeyMessageStore(Protocol protocol) {
-        this.store = new ConcurrentHashMap<>();
+        this(new Builder(protocol), new HeapMessageTable());
+    }
+
+    PairedKeyMessageStore(Builder builder, MessageTable messageTable) {
+        this.store = new PostingListTable();
+        this.openLists = new ArrayList<>();
+        for (int field = 0; field <= builder.protocol.getConditionDictionary().termField(); field++) {
+            openLists.add(new ConcurrentHashMap<>());
+        }
+        this.clientLists = new ConcurrentHashMap<>();
+        this.publicationLog = builder.indexWildcardBuckets ? null : new PublicationList();
+        this.messageTable = messageTable;
         this.lastStoreFlush = new Date();
-        this.protocol = protocol;
+        this.protocol = builder.protocol;
+        this.conditionDictionary = builder.protocol.getConditionDictionary();
+        this.indexWildcardBuckets = builder.indexWildcardBuckets;
+        this.replyThreadIndex = builder.replyToField != null ?
+                new ReplyThreadIndex(builder.protocol, builder.replyToField) : null;
+        this.maxMessagesRetained = builder.maxMessagesRetained;
+        this.maxMessageAgeMillis = builder.maxMessageAgeMillis;
+        this.maxBytesRetained = builder.maxBytesRetained;
+        this.compactedThroughId = -1;
         this.highestMessageIdStored = -1;
 
     }
 
+    public static class Builder {
+        private Protocol protocol;
+        private boolean indexWildcardBuckets;
+        private String replyToField;
+        private int maxMessagesRetained;
+        private long maxMessageAgeMillis;
+        private long maxBytesRetained;
+        private Path writeAheadLogDirectory;
+        private long snapshotIntervalMillis;
+
+        public Builder(Protocol protocol) {
+            this.protocol = protocol;
+
+            // set optional parameters to defaults
+            this.indexWildcardBuckets = true;
+            this.replyToField = null;
+            this.maxMessagesRetained = Integer.MAX_VALUE;
+            this.maxMessageAgeMillis = Long.MAX_VALUE;
+            this.maxBytesRetained = Long.MAX_VALUE;
+            this.writeAheadLogDirectory = null;
+            this.snapshotIntervalMillis = 0;
+        }
+
+        /**
+         * When false, publications are only indexed under the fields they actually set, and a wildcard in a
+         * subscription means "no constraint on this field" rather than a lookup in a bucket holding every
+         * message. Subscriptions that are all wildcards are answered from an id-ordered log kept only then.
+         * Retrieve results are the same either way; this roughly halves publish-side index writes.
+         */
+        public Builder indexWildcardBuckets(boolean indexWildcardBuckets) {
+            this.indexWildcardBuckets = indexWildcardBuckets;
+            return this;
+        }
+
+        /**
+         * Indexes posts by the message id in replyToField, so retrieveThread() and retrieveTopLevelPosts()
+         * can answer from the reply tree instead of scanning every post.
+         */
+        public Builder indexReplyThreads(String replyToField) {
+            this.replyToField = replyToField;
+            return this;
+        }
+
+        /**
+         * Retention limits. Once any is exceeded the store compacts, dropping the lowest message ids until it
+         * is back within all of them. Unbounded by default.
+         */
+        public Builder maxMessagesRetained(int maxMessagesRetained) {
+            this.maxMessagesRetained = maxMessagesRetained;
+            return this;
+        }
+
+        public Builder maxMessageAgeMillis(long maxMessageAgeMillis) {
+            this.maxMessageAgeMillis = maxMessageAgeMillis;
+            return this;
+        }
+
+        public Builder maxBytesRetained(long maxBytesRetained) {
+            this.maxBytesRetained = maxBytesRetained;
+            return this;
+        }
+
+        /**
+         * Makes publishes durable: each is written and fsynced to a write-ahead log in this directory before it
+         * is indexed (concurrent publishes share fsyncs), and a restarted store replays the log.
+         */
+        public Builder writeAheadLog(Path writeAheadLogDirectory) {
+            this.writeAheadLogDirectory = writeAheadLogDirectory;
+            return this;
+        }
+
+        /**
+         * Snapshots the store into the write-ahead log's directory this often, after which the log it covers
+         * is deleted. A restarted store loads the latest snapshot and replays only the log written since.
+         * Requires writeAheadLog(); 0 (the default) disables periodic snapshots.
+         */
+        public Builder snapshotIntervalMillis(long snapshotIntervalMillis) {
+            this.snapshotIntervalMillis = snapshotIntervalMillis;
+            return this;
+        }
+
+        public PairedKeyMessageStore build() throws IOException {
+            PairedKeyMessageStore store = new PairedKeyMessageStore(this, new HeapMessageTable());
+            store.recover(this);
+            return store;
+        }
+    }
+
     @Override
-    public SortedSet<String> retrieve(Message subscription) {
+    public Set<String> retrieve(Message subscription) {
         if (!subscription.isSubscription()) {
             throw new IllegalArgumentException("Store retrieve() received non-subscription message.");
         }
 
+        compactIfNecessary();
         freshenOffsetsIfNecessary(subscription);
         subscription.setLastAccess(new Date());
 
-        SortedSet<String> matchedPublications = null;
-        SortedSet<String> candidates;
+        // evicted ids that haven't been pruned yet are skipped
+        int evictedThroughId = compactedThroughId;
+        int[] cursorKeys = cursorKeysFor(subscription);
+        PostingCursor[] candidates = new PostingCursor[cursorKeys.length];
+        for (int i = 0; i < cursorKeys.length; i++) {
+            candidates[i] = advanceCursor(subscription, cursorKeys[i], listFor(subscription, cursorKeys[i]),
+                    evictedThroughId);
+        }
+        if (!planRetrieve(candidates)) {
+            return new LinkedHashSet<>();
+        }
+        return resolveMessages(new PostingIntersection(candidates));
+    }
+
+    @Override
+    public Set<String> retrieveRange(Message query, long fromIdExclusive, long toIdInclusive, int limit) {
+        if (!query.isSubscription()) {
+            throw new IllegalArgumentException("Store retrieveRange() received non-subscription message.");
+        }
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Store retrieveRange() limit must be positive: " + limit);
+        }
+        PostingIntersection matches = intersectBetween(query, fromIdExclusive, toIdInclusive);
+        return matches != null ? resolveMessages(matches, limit) : new LinkedHashSet<>();
+    }
 
-        Set<String> conditions = subscription.getQueryConditions();
+    /**
+     * Reads newest-first pages backwards through the posting lists, so a page costs about as much as the ids
+     * it skips over whichever end of the store it comes from.
+     */
+    @Override
+    public List<String> retrievePage(Message query, int resumeAfterId, int limit, boolean newestFirst) {
+        if (!query.isSubscription()) {
+            throw new IllegalArgumentException("Store retrievePage() received non-subscription message.");
+        }
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Store retrievePage() limit must be positive: " + limit);
+        }
+        PostingIntersection matches;
+        if (!newestFirst) {
+            matches = intersectBetween(query, resumeAfterId, Integer.MAX_VALUE);
+        } else {
+            long throughId = resumeAfterId == FIRST_PAGE ? Integer.MAX_VALUE : resumeAfterId - 1L;
+            matches = intersectBetween(query, FIRST_PAGE, throughId);
+        }
+        List<String> page = new ArrayList<>();
+        int id;
+        while (matches != null && page.size() < limit
+                && (id = newestFirst ? matches.previousMatch() : matches.nextMatch()) != PostingCursor.NO_MORE) {
+            String publication = messageTable.get(id);
+            // null if compacted away after the cursor was taken
+            if (publication != null) {
+                page.add(publication);
+            }
+        }
+        return page;
+    }
+
+    // Intersection of query's posting lists over ids in (fromIdExclusive, toIdInclusive], or null if it is
+    // already known to be empty.
+    private PostingIntersection intersectBetween(Message query, long fromIdExclusive, long toIdInclusive) {
+        // nothing at or below the compaction point is left to return
+        int afterId = (int) Math.max(Math.max(fromIdExclusive, compactedThroughId), -1);
+        int throughId = (int) Math.min(toIdInclusive, Integer.MAX_VALUE);
+        if (throughId <= afterId) {
+            return null;
+        }
+
+        int[] cursorKeys = cursorKeysFor(query);
+        PostingCursor[] candidates = new PostingCursor[cursorKeys.length];
+        for (int i = 0; i < cursorKeys.length; i++) {
+            PublicationList publicationList = listFor(query, cursorKeys[i]);
+            candidates[i] = publicationList != null ?
+                    publicationList.getIdsBetween(afterId, throughId) : PostingCursor.EMPTY;
+        }
+        if (!planRetrieve(candidates)) {
+            return null;
+        }
+        return new PostingIntersection(candidates);
+    }
+
+    /**
+     * @return the cursor keys of the lists query is answered from: its condition ids, its open conditions'
+     * Query.openCursorKey()s, then Query.MESSAGE_ID_CURSOR and Query.CLIENT_ID_CURSOR if it sets those ids
+     * directly, or just Query.QUERY_CURSOR if it sets nothing at all
+     */
+    private int[] cursorKeysFor(Message query) {
+        int[] conditions = indexWildcardBuckets ?
+                query.getQueryConditionIds() : query.getConstrainedQueryConditionIds();
+        int numOpen = query.getOpenQueryConditionFields().length;
+        boolean hasMessageId = query.getDirectMessageId() != Query.NO_ID;
+        boolean hasClientId = query.getDirectClientId() != Query.NO_ID;
+        if (numOpen == 0 && !hasMessageId && !hasClientId) {
+            return conditions.length > 0 ? conditions : new int[]{Query.QUERY_CURSOR};
+        }
+        int[] cursorKeys = Arrays.copyOf(conditions, conditions.length + numOpen + (hasMessageId ? 1 : 0)
+                + (hasClientId ? 1 : 0));
+        int next = conditions.length;
+        for (int i = 0; i < numOpen; i++) {
+            cursorKeys[next++] = Query.openCursorKey(i);
+        }
+        if (hasMessageId) {
+            cursorKeys[next++] = Query.MESSAGE_ID_CURSOR;
+        }
+        if (hasClientId) {
+            cursorKeys[next] = Query.CLIENT_ID_CURSOR;
+        }
+        return cursorKeys;
+    }
 
-        for(String condition: conditions) {
-            String lastRetrieved = subscription.getLastRetrievedFor(condition);
+    // the list behind one of cursorKeysFor(query), or null if it doesn't exist
+    private PublicationList listFor(Message query, int cursorKey) {
+        switch (cursorKey) {
+            case Query.QUERY_CURSOR:
+                // with wildcard buckets a query always has conditions, so this is never reached without a log
+                return publicationLog;
+            case Query.MESSAGE_ID_CURSOR:
+                int messageId = query.getDirectMessageId();
+                return messageTable.get(messageId) != null ? new PublicationList(new int[]{messageId}, 1) : null;
+            case Query.CLIENT_ID_CURSOR:
+                return clientLists.get(query.getDirectClientId());
+            default:
+                if (cursorKey >= 0) {
+                    return store.get(cursorKey);
+                }
+                int openIndex = Query.openConditionIndexOf(cursorKey);
+                return openLists.get(query.getOpenQueryConditionFields()[openIndex])
+                        .get(query.getOpenQueryConditionValues()[openIndex]);
+        }
+    }
 
-            candidates = (
-                    store.containsKey(condition) ?
-                    store.get(condition).getPublicationsStartingAt(lastRetrieved)
-                    : new TreeSet<>(new MessageIdComparator(this.protocol)));
+    @Override
+    public List<String> retrieveThread(int rootMessageId) {
+        requireReplyThreadIndex();
+        List<String> thread = new ArrayList<>();
+        String root = messageTable.get(rootMessageId);
+        if (root == null) {
+            return thread;
+        }
+        thread.add(root);
+        // one cursor over the remaining replies at each level of the current path
+        Deque<PostingCursor> path = new ArrayDeque<>();
+        path.push(replyThreadIndex.getChildren(rootMessageId));
+        while (!path.isEmpty()) {
+            PostingCursor replies = path.peek();
+            if (!replies.hasNext()) {
+                path.pop();
+                continue;
+            }
+            int replyId = replies.next();
+            String reply = messageTable.get(replyId);
+            if (reply != null) {
+                thread.add(reply);
+                path.push(replyThreadIndex.getChildren(replyId));
+            }
+        }
+        return thread;
+    }
 
-            if (!candidates.isEmpty()) {
-                subscription.setLastRetrievedFor(condition, candidates.last());
+    @Override
+    public LinkedHashMap<String, Integer> retrieveTopLevelPosts() {
+        requireReplyThreadIndex();
+        LinkedHashMap<String, Integer> topLevelPosts = new LinkedHashMap<>();
+        PostingCursor topLevel = replyThreadIndex.getTopLevel();
+        while (topLevel.hasNext()) {
+            int messageId = topLevel.next();
+            String post = messageTable.get(messageId);
+            if (post != null) {
+                topLevelPosts.put(post, replyThreadIndex.getNumChildren(messageId));
             }
+        }
+        return topLevelPosts;
+    }
 
-            if (matchedPublications != null) {
-                matchedPublications.retainAll(candidates);
-            } else {
-                matchedPublications = candidates;
+    private void requireReplyThreadIndex() {
+        if (replyThreadIndex == null) {
+            throw new UnsupportedOperationException(
+                    "PairedKeyMessageStore: build with indexReplyThreads(...) to retrieve threads.");
+        }
+    }
+
+    private static PostingCursor advanceCursor(Message subscription, int conditionId,
+                                               PublicationList publicationList, int evictedThroughId) {
+        int lastRetrievedId = Math.max(subscription.getLastRetrievedIdFor(conditionId), evictedThroughId);
+        PostingCursor cursor = (publicationList != null ?
+                publicationList.getIdsAfter(lastRetrievedId) : PostingCursor.EMPTY);
+
+        if (cursor.hasNext()) {
+            subscription.setLastRetrievedIdFor(conditionId, cursor.last());
+        }
+        return cursor;
+    }
+
+    /**
+     * Orders the cursors by how many unseen ids each condition has, smallest first, so the most selective
+     * condition drives the intersection. Wildcard buckets like "type_" hold every message and end up last.
+     *
+     * @return false if some condition has nothing new, in which case the intersection is already empty
+     */
+    static boolean planRetrieve(PostingCursor[] candidates) {
+        Arrays.sort(candidates, Comparator.comparingInt(PostingCursor::remaining));
+        return candidates.length > 0 && candidates[0].hasNext();
+    }
+
+    private Set<String> resolveMessages(PostingIntersection matches) {
+        return resolveMessages(matches, Integer.MAX_VALUE);
+    }
+
+    private Set<String> resolveMessages(PostingIntersection matches, int limit) {
+        Set<String> matchedPublications = new LinkedHashSet<>();
+        int id;
+        while (matchedPublications.size() < limit && (id = matches.nextMatch()) != PostingCursor.NO_MORE) {
+            String publication = messageTable.get(id);
+            // null if compacted away after the cursor was taken
+            if (publication != null) {
+                matchedPublications.add(publication);
             }
         }
         return matchedPublications;
@@ -61,32 +421,516 @@ public class PairedKeyMessageStore implements MessageStore {
 
     private void freshenOffsetsIfNecessary(Message subscription) {
         if (subscription.getLastAccess().compareTo(lastStoreFlush) < 0) {
-            subscription.refreshAccessOffsets();
+            subscription.refreshAccessOffsets(compactedThroughId);
+        }
+    }
+
+    /**
+     * Restores whatever the configured durable state holds, then starts logging new publishes. Must be called
+     * once, right after construction and before the store is shared.
+     */
+    void recover(Builder builder) throws IOException {
+        if (builder.writeAheadLogDirectory == null) {
+            if (builder.snapshotIntervalMillis > 0) {
+                throw new IllegalArgumentException("PairedKeyMessageStore: snapshots require a write-ahead log.");
+            }
+            return;
+        }
+        this.durableStateDirectory = builder.writeAheadLogDirectory;
+        WriteAheadLog log = new WriteAheadLog(durableStateDirectory);
+        long replayFromGeneration = 0;
+        StoreSnapshot snapshot = StoreSnapshot.readLatest(durableStateDirectory, messageTable);
+        if (snapshot != null) {
+            restore(snapshot);
+            replayFromGeneration = snapshot.walGeneration;
+            LOGGER.log(Level.INFO, "Loaded snapshot with " + messageTable.size() + " publications.");
+        }
+        int[] numRecovered = new int[]{0};
+        log.replay(replayFromGeneration, rawMessage -> {
+            // not yet logging, so replayed publications aren't written again
+            if (publish(new Message(protocol, rawMessage, false))) {
+                numRecovered[0]++;
+            }
+        });
+        LOGGER.log(Level.INFO, "Recovered " + numRecovered[0] + " publications from write-ahead log.");
+        this.writeAheadLog = log;
+
+        if (builder.snapshotIntervalMillis > 0) {
+            snapshotScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread snapshotThread = new Thread(runnable, "store-snapshot");
+                snapshotThread.setDaemon(true);
+                return snapshotThread;
+            });
+            snapshotScheduler.scheduleWithFixedDelay(this::snapshotQuietly, builder.snapshotIntervalMillis,
+                    builder.snapshotIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void restore(StoreSnapshot snapshot) {
+        if (publicationLog != null) {
+            publicationLog = toPublicationList(snapshot.publicationLog);
+        }
+        String clientIdPrefix = protocol.getQueryFields().get(1) + "_";
+        for (Map.Entry<String, PostingCursor> list : snapshot.postingLists.entrySet()) {
+            String condition = list.getKey();
+            int clientId = condition.startsWith(clientIdPrefix) ?
+                    Query.directIdOf(condition.substring(clientIdPrefix.length())) : Query.NO_ID;
+            if (clientId != Query.NO_ID) {
+                clientLists.put(clientId, toPublicationList(list.getValue()));
+                continue;
+            }
+            int field = conditionDictionary.fieldOf(condition);
+            String value = conditionDictionary.valueOf(field, condition);
+            int conditionId = conditionDictionary.idOf(field, value);
+            if (conditionId != ConditionDictionary.OPEN) {
+                store.put(conditionId, toPublicationList(list.getValue()));
+            } else {
+                openLists.get(field).put(value, toPublicationList(list.getValue()));
+            }
+        }
+        compactedThroughId = snapshot.compactedThroughId;
+        highestMessageIdStored = snapshot.highestMessageIdStored;
+        if (replyThreadIndex != null) {
+            // not part of the snapshot; cheap to rebuild from the restored bodies
+            PostingCursor restored = allMessagesAfter(compactedThroughId);
+            while (restored.hasNext()) {
+                int messageId = restored.next();
+                replyThreadIndex.add(messageId, new Message(protocol, messageTable.get(messageId), false));
+            }
+        }
+    }
+
+    private String clientCondition(int clientId) {
+        return protocol.getQueryFields().get(1) + "_" + clientId;
+    }
+
+    private static PublicationList toPublicationList(PostingCursor cursor) {
+        int size = cursor.remaining();
+        int[] ids = new int[size];
+        for (int i = 0; i < size; i++) {
+            ids[i] = cursor.next();
+        }
+        return new PublicationList(ids, size);
+    }
+
+    /**
+     * Writes a snapshot of the store and deletes the log and snapshots it supersedes. Publishes are only
+     * held up while the log generation is switched and a cursor is taken on each posting list; naming the
+     * lists and writing the file happen afterwards.
+     */
+    void snapshot() throws IOException {
+        if (writeAheadLog == null) {
+            throw new IllegalStateException("PairedKeyMessageStore: snapshots require a write-ahead log.");
+        }
+        synchronized (snapshotWriteLock) {
+            long generation;
+            int highestMessageIdStored;
+            int snapshotThroughId;
+            PostingCursor publications;
+            int[] conditionIds;
+            PostingCursor[] conditionCursors;
+            int[] clientIds;
+            PostingCursor[] clientCursors;
+            List<Integer> openFields = new ArrayList<>();
+            List<String> openValues = new ArrayList<>();
+            List<PostingCursor> openCursors = new ArrayList<>();
+            snapshotLock.writeLock().lock();
+            try {
+                generation = writeAheadLog.rotate();
+                highestMessageIdStored = getHighestMessageIdStored();
+                snapshotThroughId = compactedThroughId;
+                publications = allMessagesAfter(snapshotThroughId);
+                conditionIds = store.presentIds();
+                conditionCursors = new PostingCursor[conditionIds.length];
+                for (int i = 0; i < conditionIds.length; i++) {
+                    PublicationList list = store.get(conditionIds[i]);
+                    if (list != null) {
+                        conditionCursors[i] = list.getIdsAfter(snapshotThroughId);
+                    }
+                }
+                clientIds = new int[clientLists.size()];
+                clientCursors = new PostingCursor[clientIds.length];
+                int numClients = 0;
+                for (Map.Entry<Integer, PublicationList> client : clientLists.entrySet()) {
+                    if (numClients == clientIds.length) {
+                        break;
+                    }
+                    clientIds[numClients] = client.getKey();
+                    clientCursors[numClients++] = client.getValue().getIdsAfter(snapshotThroughId);
+                }
+                for (int field = 0; field < openLists.size(); field++) {
+                    for (Map.Entry<String, PublicationList> list : openLists.get(field).entrySet()) {
+                        openFields.add(field);
+                        openValues.add(list.getKey());
+                        openCursors.add(list.getValue().getIdsAfter(snapshotThroughId));
+                    }
+                }
+            } finally {
+                snapshotLock.writeLock().unlock();
+            }
+
+            Map<String, PostingCursor> postingLists =
+                    new HashMap<>((conditionIds.length + clientIds.length + openCursors.size()) * 2);
+            for (int i = 0; i < conditionIds.length; i++) {
+                if (conditionCursors[i] != null) {
+                    postingLists.put(conditionDictionary.conditionOf(conditionIds[i]), conditionCursors[i]);
+                }
+            }
+            for (int i = 0; i < clientIds.length; i++) {
+                if (clientCursors[i] != null) {
+                    postingLists.put(clientCondition(clientIds[i]), clientCursors[i]);
+                }
+            }
+            for (int i = 0; i < openCursors.size(); i++) {
+                postingLists.put(conditionDictionary.conditionOf(openFields.get(i), openValues.get(i)),
+                        openCursors.get(i));
+            }
+            StoreSnapshot snapshot = new StoreSnapshot(generation, highestMessageIdStored, snapshotThroughId,
+                    publications, postingLists);
+            snapshot.writeTo(durableStateDirectory, messageTable);
+            StoreSnapshot.deleteBefore(durableStateDirectory, snapshot.walGeneration);
+            writeAheadLog.deleteGenerationsBefore(snapshot.walGeneration);
+        }
+    }
+
+    private void snapshotQuietly() {
+        try {
+            snapshot();
+        } catch (IOException | RuntimeException e) {
+            // the log still covers everything; try again next interval
+            LOGGER.log(Level.WARNING, "Store snapshot failed: " + e.toString());
         }
     }
 
     @Override
     public boolean publish(Message message) {
         message.setLastAccess(new Date());
-        Set<String> conditions = message.getQueryConditions();
-//        System.out.println(store.keySet().size());
-        for (String condition : conditions) {
-
-            PublicationList listToAddPublicationTo = store.get(condition);
-            if(listToAddPublicationTo == null) {
-                listToAddPublicationTo = new PublicationList(protocol);
-                store.put(condition, listToAddPublicationTo);
-//                System.out.println("Added message " + message.asRawMessage() + " to store at condition " + condition );
+        int messageId = message.getMessageIdAsInt();
+        // stored and logged without wire padding; it's added back on delivery
+        String compactMessage = protocol.stripPadding(message.asRawMessage());
+        evictionLock.readLock().lock();
+        try {
+            // Publications are idempotent: a message already in the table has already been indexed, and one at
+            // or below the compaction point was already stored and pruned.
+            if (messageId <= compactedThroughId || !messageTable.putIfAbsent(messageId, compactMessage)) {
+                return false;
             }
-            listToAddPublicationTo.synchronizedAdd(message.asRawMessage());
-            message.setLastRetrievedFor(condition, message.asRawMessage());
-            updateHighestMessageIdStored(message);
+            if (writeAheadLog == null) {
+                index(messageId, message);
+            } else {
+                snapshotLock.readLock().lock();
+                try {
+                    logBeforeIndexing(messageId, compactMessage);
+                    index(messageId, message);
+                } finally {
+                    snapshotLock.readLock().unlock();
+                }
+            }
+        } finally {
+            evictionLock.readLock().unlock();
         }
+        compactIfNecessary();
         return true;
     }
 
-    private void updateHighestMessageIdStored(Message message) {
-        int messageId = Integer.parseInt(message.getMessageId());
+    @Override
+    public int publishAll(Collection<Message> messages) {
+        Date now = new Date();
+        List<AcceptedPublication> accepted = new ArrayList<>(messages.size());
+        evictionLock.readLock().lock();
+        try {
+            for (Message message : messages) {
+                message.setLastAccess(now);
+                int messageId = message.getMessageIdAsInt();
+                String compactMessage = protocol.stripPadding(message.asRawMessage());
+                if (messageId > compactedThroughId && messageTable.putIfAbsent(messageId, compactMessage)) {
+                    accepted.add(new AcceptedPublication(messageId, compactMessage, message));
+                }
+            }
+            if (accepted.isEmpty()) {
+                return 0;
+            }
+            accepted.sort(Comparator.comparingInt(publication -> publication.messageId));
+
+            if (writeAheadLog == null) {
+                indexAll(accepted);
+            } else {
+                snapshotLock.readLock().lock();
+                try {
+                    logAllBeforeIndexing(accepted);
+                    indexAll(accepted);
+                } finally {
+                    snapshotLock.readLock().unlock();
+                }
+            }
+        } finally {
+            evictionLock.readLock().unlock();
+        }
+        compactIfNecessary();
+        return accepted.size();
+    }
+
+    // accepted must be in id order
+    private void indexAll(List<AcceptedPublication> accepted) {
+        int[] allIds = new int[accepted.size()];
+        // keyed by the batch's own conditions, so a batch costs nothing per condition the dictionary knows
+        Map<Integer, IdBuffer> idsByCondition = new HashMap<>();
+        List<Map<String, IdBuffer>> idsByOpenCondition = new ArrayList<>(openLists.size());
+        for (int field = 0; field < openLists.size(); field++) {
+            idsByOpenCondition.add(new HashMap<>());
+        }
+        Map<Integer, IdBuffer> idsByClient = new HashMap<>();
+        for (int i = 0; i < allIds.length; i++) {
+            AcceptedPublication publication = accepted.get(i);
+            allIds[i] = publication.messageId;
+            if (replyThreadIndex != null) {
+                replyThreadIndex.add(publication.messageId, publication.message);
+            }
+            int[] conditions = indexWildcardBuckets ? publication.message.getQueryConditionIds()
+                    : publication.message.getConstrainedQueryConditionIds();
+            for (int condition : conditions) {
+                idsByCondition.computeIfAbsent(condition, id -> new IdBuffer()).add(publication.messageId);
+            }
+            int[] openFields = publication.message.getOpenQueryConditionFields();
+            String[] openValues = publication.message.getOpenQueryConditionValues();
+            for (int j = 0; j < openFields.length; j++) {
+                idsByOpenCondition.get(openFields[j]).computeIfAbsent(openValues[j], value -> new IdBuffer())
+                        .add(publication.messageId);
+            }
+            int clientId = publication.message.getDirectClientId();
+            if (clientId != Query.NO_ID) {
+                idsByClient.computeIfAbsent(clientId, id -> new IdBuffer()).add(publication.messageId);
+            }
+        }
+        if (publicationLog != null) {
+            publicationLog.synchronizedAddAll(allIds, allIds.length);
+        }
+        for (Map.Entry<Integer, IdBuffer> condition : idsByCondition.entrySet()) {
+            store.addAll(condition.getKey(), condition.getValue().ids, condition.getValue().size);
+        }
+        for (int field = 0; field < openLists.size(); field++) {
+            for (Map.Entry<String, IdBuffer> condition : idsByOpenCondition.get(field).entrySet()) {
+                addAllToList(openLists.get(field), condition.getKey(), condition.getValue());
+            }
+        }
+        for (Map.Entry<Integer, IdBuffer> client : idsByClient.entrySet()) {
+            addAllToList(clientLists, client.getKey(), client.getValue());
+        }
+        updateHighestMessageIdStored(allIds[allIds.length - 1]);
+    }
+
+    private void logAllBeforeIndexing(List<AcceptedPublication> accepted) {
+        List<String> compactMessages = new ArrayList<>(accepted.size());
+        for (AcceptedPublication publication : accepted) {
+            compactMessages.add(publication.compactMessage);
+        }
+        try {
+            writeAheadLog.appendAll(compactMessages);
+        } catch (IOException e) {
+            for (AcceptedPublication publication : accepted) {
+                messageTable.remove(publication.messageId);
+            }
+            throw new RuntimeException("PairedKeyMessageStore: failed to log batch of " + accepted.size()
+                    + " publications: " + e.toString());
+        }
+    }
+
+    private static final class AcceptedPublication {
+        private final int messageId;
+        private final String compactMessage;
+        private final Message message;
+
+        AcceptedPublication(int messageId, String compactMessage, Message message) {
+            this.messageId = messageId;
+            this.compactMessage = compactMessage;
+            this.message = message;
+        }
+    }
+
+    private static final class IdBuffer {
+        private int[] ids = new int[8];
+        private int size = 0;
+
+        void add(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+    }
+
+    private void index(int messageId, Message message) {
+        if (publicationLog != null) {
+            publicationLog.synchronizedAdd(messageId);
+        }
+        if (replyThreadIndex != null) {
+            replyThreadIndex.add(messageId, message);
+        }
+        int[] conditions = indexWildcardBuckets ?
+                message.getQueryConditionIds() : message.getConstrainedQueryConditionIds();
+        for (int condition : conditions) {
+            store.add(condition, messageId);
+        }
+        int[] openFields = message.getOpenQueryConditionFields();
+        String[] openValues = message.getOpenQueryConditionValues();
+        for (int i = 0; i < openFields.length; i++) {
+            addToList(openLists.get(openFields[i]), openValues[i], messageId);
+        }
+        int clientId = message.getDirectClientId();
+        if (clientId != Query.NO_ID) {
+            addToList(clientLists, clientId, messageId);
+        }
+        updateHighestMessageIdStored(messageId);
+    }
+
+    // A list retired by pruneThrough() is on its way out of its map, so the next try creates a new one.
+    private static <K> void addToList(Map<K, PublicationList> lists, K key, int messageId) {
+        while (!lists.computeIfAbsent(key, k -> new PublicationList()).addIfLive(messageId)) {
+            Thread.yield();
+        }
+    }
+
+    private static <K> void addAllToList(Map<K, PublicationList> lists, K key, IdBuffer ids) {
+        while (!lists.computeIfAbsent(key, k -> new PublicationList()).addAllIfLive(ids.ids, ids.size)) {
+            Thread.yield();
+        }
+    }
+
+    private void logBeforeIndexing(int messageId, String compactMessage) {
+        try {
+            writeAheadLog.append(compactMessage);
+        } catch (IOException e) {
+            // not durable, so don't let it become visible either
+            messageTable.remove(messageId);
+            throw new RuntimeException("PairedKeyMessageStore: failed to log publication " + messageId + ": "
+                    + e.toString());
+        }
+    }
+
+    private void compactIfNecessary() {
+        if (isOverRetentionLimit(System.currentTimeMillis())) {
+            synchronized (compactionLock) {
+                compact();
+            }
+        }
+    }
+
+    private boolean isOverRetentionLimit(long now) {
+        if (messageTable.size() > maxMessagesRetained || messageTable.totalBytes() > maxBytesRetained) {
+            return true;
+        }
+        if (maxMessageAgeMillis == Long.MAX_VALUE) {
+            return false;
+        }
+        PostingCursor oldest = allMessagesAfter(compactedThroughId);
+        return oldest.hasNext() && isExpired(oldest.next(), now);
+    }
+
+    // every stored id after afterId in order, from publicationLog or else the messageId wildcard bucket
+    private PostingCursor allMessagesAfter(int afterId) {
+        PublicationList allMessages = publicationLog != null ?
+                publicationLog : store.get(conditionDictionary.wildcardIdOf(0));
+        return allMessages != null ? allMessages.getIdsAfter(afterId) : PostingCursor.EMPTY;
+    }
+
+    private boolean isExpired(int messageId, long now) {
+        long storedAt = messageTable.getStoredAtMillis(messageId);
+        return storedAt >= 0 && now - storedAt > maxMessageAgeMillis;
+    }
+
+    /**
+     * Evicts the lowest message ids until the store is back within its retention limits. Once enough evicted
+     * ids have built up, prunes them from every posting list and marks the flush so subscriptions' cursors
+     * are refreshed on their next retrieve. Caller must hold compactionLock.
+     */
+    private void compact() {
+        long now = System.currentTimeMillis();
+        int newCompactedThroughId;
+        evictionLock.writeLock().lock();
+        try {
+            newCompactedThroughId = compactedThroughId;
+            PostingCursor oldestFirst = allMessagesAfter(compactedThroughId);
+            while (oldestFirst.hasNext()) {
+                int messageId = oldestFirst.next();
+                if (messageTable.size() <= maxMessagesRetained
+                        && messageTable.totalBytes() <= maxBytesRetained
+                        && !isExpired(messageId, now)) {
+                    break;
+                }
+                messageTable.remove(messageId);
+                newCompactedThroughId = messageId;
+                numEvictedUnpruned++;
+            }
+            if (newCompactedThroughId == compactedThroughId) {
+                return;
+            }
+            compactedThroughId = newCompactedThroughId;
+        } finally {
+            evictionLock.writeLock().unlock();
+        }
+        if (numEvictedUnpruned >= Math.max(MIN_PRUNE_BATCH, messageTable.size() / PRUNE_BATCH_DIVISOR)) {
+            pruneThrough(newCompactedThroughId);
+        }
+    }
+
+    /**
+     * Drops every message <= lastEvictedId the way compaction does, for a caller that has stored them
+     * elsewhere (see TieredMessageStore). Later publishes of those ids are ignored.
+     */
+    void evictThrough(int lastEvictedId) {
+        synchronized (compactionLock) {
+            evictionLock.writeLock().lock();
+            try {
+                if (lastEvictedId <= compactedThroughId) {
+                    return;
+                }
+                PostingCursor oldestFirst = allMessagesAfter(compactedThroughId);
+                while (oldestFirst.hasNext()) {
+                    int messageId = oldestFirst.next();
+                    if (messageId > lastEvictedId) {
+                        break;
+                    }
+                    messageTable.remove(messageId);
+                }
+                compactedThroughId = lastEvictedId;
+            } finally {
+                evictionLock.writeLock().unlock();
+            }
+            pruneThrough(lastEvictedId);
+        }
+    }
+
+    // Drops every id <= newCompactedThroughId from the posting lists, and the lists left empty. Caller must
+    // hold compactionLock.
+    private void pruneThrough(int newCompactedThroughId) {
+        numPrunePasses++;
+        numListsPruned += getNumPostingLists();
+        if (publicationLog != null) {
+            publicationLog.removeThrough(newCompactedThroughId);
+        }
+        store.removeThrough(newCompactedThroughId);
+        for (Map<String, PublicationList> lists : openLists) {
+            removeThrough(lists, newCompactedThroughId);
+        }
+        removeThrough(clientLists, newCompactedThroughId);
+        if (replyThreadIndex != null) {
+            replyThreadIndex.removeThrough(newCompactedThroughId);
+        }
+        compactedThroughId = newCompactedThroughId;
+        numEvictedUnpruned = 0;
+        lastStoreFlush = new Date();
+    }
+
+    private static <K> void removeThrough(Map<K, PublicationList> lists, int lastRemovedId) {
+        for (Map.Entry<K, PublicationList> list : lists.entrySet()) {
+            list.getValue().removeThrough(lastRemovedId);
+            if (list.getValue().retireIfEmpty()) {
+                lists.remove(list.getKey(), list.getValue());
+            }
+        }
+    }
+
+    private void updateHighestMessageIdStored(int messageId) {
         synchronized (highestMessageIdStoredLock) {
             this.highestMessageIdStored = messageId > highestMessageIdStored ? messageId : highestMessageIdStored;
         }
@@ -99,4 +943,51 @@ public class PairedKeyMessageStore implements MessageStore {
         }
     }
 
+    int getNumMessagesStored() {
+        return messageTable.size();
+    }
+
+    int getNumPostingLists() {
+        int numOpenLists = 0;
+        for (Map<String, PublicationList> lists : openLists) {
+            numOpenLists += lists.size();
+        }
+        return store.size() + numOpenLists + clientLists.size();
+    }
+
+    long getNumPrunePasses() {
+        synchronized (compactionLock) {
+            return numPrunePasses;
+        }
+    }
+
+    long getNumListsPruned() {
+        synchronized (compactionLock) {
+            return numListsPruned;
+        }
+    }
+
+    /**
+     * @return group commit statistics, or null if this store has no write-ahead log
+     */
+    WriteAheadLog.Metrics getWriteAheadLogMetrics() {
+        return writeAheadLog != null ? writeAheadLog.getMetrics() : null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (snapshotScheduler != null) {
+            snapshotScheduler.shutdown();
+            try {
+                snapshotScheduler.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (writeAheadLog != null) {
+            writeAheadLog.close();
+        }
+        messageTable.close();
+    }
+
 }
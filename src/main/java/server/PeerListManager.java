@@ -164,7 +164,7 @@ class PeerListManager {
 
         // Do NOT lock coordinator here. Calls to this are locked.
         if(coordinationState == null) {
-            this.coordinationState = new CoordinationState();
+            this.coordinationState = new CoordinationState(thisServer.getNextUnusedMessageId());
         }
     }
 
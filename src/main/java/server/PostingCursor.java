@@ -0,0 +1,103 @@
+package server;
+
+/**
+ * Read-only, zero-copy view over the ids a PublicationList held when the cursor was created.
+ */
+final class PostingCursor {
+    static final int NO_MORE = -1;
+    static final PostingCursor EMPTY = new PostingCursor(new int[0], 0, 0);
+
+    private final int[] ids;
+    private int end;
+    private int position;
+
+    PostingCursor(int[] ids, int start, int end) {
+        this.ids = ids;
+        this.position = start;
+        this.end = end;
+    }
+
+    boolean hasNext() {
+        return position < end;
+    }
+
+    int next() {
+        return ids[position++];
+    }
+
+    /**
+     * Moves to the first id >= target and returns it without consuming it, or NO_MORE if there is none.
+     * Probes 1, 2, 4, ... positions ahead before binary searching, so skipping k ids costs O(log k).
+     */
+    int advanceTo(int target) {
+        if (position >= end || ids[position] >= target) {
+            return position < end ? ids[position] : NO_MORE;
+        }
+        int low = position;
+        int step = 1;
+        while (low + step < end && ids[low + step] < target) {
+            low += step;
+            step <<= 1;
+        }
+        int high = Math.min(low + step, end);
+        // ids[low] < target, and ids[high] >= target unless high == end
+        low++;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (ids[mid] < target) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        position = low;
+        return position < end ? ids[position] : NO_MORE;
+    }
+
+    /**
+     * Consumes the highest id left. Paired with retreatTo(), reads the cursor newest first.
+     */
+    int previous() {
+        return ids[--end];
+    }
+
+    /**
+     * Mirror of advanceTo(): drops every id > target from the top of the cursor and returns the highest id
+     * left, without consuming it, or NO_MORE if there is none.
+     */
+    int retreatTo(int target) {
+        if (position >= end || ids[end - 1] <= target) {
+            return position < end ? ids[end - 1] : NO_MORE;
+        }
+        int high = end - 1;
+        int step = 1;
+        while (high - step >= position && ids[high - step] > target) {
+            high -= step;
+            step <<= 1;
+        }
+        int low = Math.max(high - step, position - 1);
+        // ids[high] > target, and ids[low] <= target unless low is before the cursor
+        low++;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (ids[mid] > target) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        end = low;
+        return position < end ? ids[end - 1] : NO_MORE;
+    }
+
+    int remaining() {
+        return end - position;
+    }
+
+    int last() {
+        if (end == 0 || position >= end) {
+            throw new IllegalStateException("PostingCursor.last(): cursor is empty");
+        }
+        return ids[end - 1];
+    }
+}
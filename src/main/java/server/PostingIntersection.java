@@ -0,0 +1,85 @@
+package server;
+
+/**
+ * Lazily intersects the ids under several PostingCursors. The first cursor drives: each of its ids is
+ * probed against the others with a galloping search, and a miss jumps the driver straight to the id the
+ * probing cursor landed on. Cost therefore follows the number of ids skipped over rather than the total
+ * size of the lists, and no intermediate candidate sets are built.
+ *
+ * previousMatch() runs the same search from the highest ids down, for newest-first reads. An intersection is
+ * read in one direction only.
+ *
+ * Callers should order the cursors most selective first (see PairedKeyMessageStore.planRetrieve()), so the
+ * smallest list drives and the probes most likely to miss run before the others.
+ */
+final class PostingIntersection {
+    private final PostingCursor[] cursors;
+    private boolean exhausted;
+
+    PostingIntersection(PostingCursor[] cursors) {
+        this.cursors = cursors;
+        this.exhausted = cursors.length == 0;
+    }
+
+    /**
+     * @return the next id present in every cursor, or PostingCursor.NO_MORE once any cursor runs out
+     */
+    int nextMatch() {
+        int candidate = Integer.MIN_VALUE;
+        while (!exhausted) {
+            candidate = cursors[0].advanceTo(candidate);
+            if (candidate == PostingCursor.NO_MORE) {
+                break;
+            }
+            int probe = probeOthers(candidate, false);
+            if (probe == candidate) {
+                // step every cursor past the match so the next call resumes after it
+                for (PostingCursor cursor : cursors) {
+                    cursor.next();
+                }
+                return candidate;
+            }
+            candidate = probe;
+        }
+        exhausted = true;
+        return PostingCursor.NO_MORE;
+    }
+
+    /**
+     * @return the highest id not yet returned that is present in every cursor, or PostingCursor.NO_MORE
+     */
+    int previousMatch() {
+        int candidate = Integer.MAX_VALUE;
+        while (!exhausted) {
+            candidate = cursors[0].retreatTo(candidate);
+            if (candidate == PostingCursor.NO_MORE) {
+                break;
+            }
+            int probe = probeOthers(candidate, true);
+            if (probe == candidate) {
+                for (PostingCursor cursor : cursors) {
+                    cursor.previous();
+                }
+                return candidate;
+            }
+            candidate = probe;
+        }
+        exhausted = true;
+        return PostingCursor.NO_MORE;
+    }
+
+    // Returns candidate if every other cursor holds it, otherwise the id the first disagreeing cursor
+    // landed on (or NO_MORE, which ends the intersection).
+    private int probeOthers(int candidate, boolean descending) {
+        for (int i = 1; i < cursors.length; i++) {
+            int found = descending ? cursors[i].retreatTo(candidate) : cursors[i].advanceTo(candidate);
+            if (found != candidate) {
+                if (found == PostingCursor.NO_MORE) {
+                    exhausted = true;
+                }
+                return found;
+            }
+        }
+        return candidate;
+    }
+}
@@ -0,0 +1,111 @@
+package server;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Posting lists indexed by ConditionDictionary id. Reads never lock; creating a list, growing the table or
+ * dropping lists does, so a list is never created twice or lost to a concurrent grow. The ids that have a
+ * list are tracked as well, so walking the lists costs as many steps as there are lists, not the table's
+ * capacity.
+ */
+final class PostingListTable {
+    private volatile AtomicReferenceArray<PublicationList> lists;
+    // guarded by this
+    private int[] presentIds;
+    private int numPresent;
+
+    PostingListTable() {
+        this.lists = new AtomicReferenceArray<>(64);
+        this.presentIds = new int[64];
+        this.numPresent = 0;
+    }
+
+    /**
+     * @return the list for conditionId, or null if nothing is indexed under it
+     */
+    PublicationList get(int conditionId) {
+        AtomicReferenceArray<PublicationList> current = lists;
+        return conditionId < current.length() ? current.get(conditionId) : null;
+    }
+
+    void add(int conditionId, int messageId) {
+        // a list retired by removeThrough() has already left the table, so the next try creates a new one
+        while (!getOrCreate(conditionId).addIfLive(messageId)) {
+            Thread.yield();
+        }
+    }
+
+    void addAll(int conditionId, int[] messageIds, int count) {
+        while (!getOrCreate(conditionId).addAllIfLive(messageIds, count)) {
+            Thread.yield();
+        }
+    }
+
+    private PublicationList getOrCreate(int conditionId) {
+        PublicationList list = get(conditionId);
+        return list != null ? list : create(conditionId);
+    }
+
+    private synchronized PublicationList create(int conditionId) {
+        AtomicReferenceArray<PublicationList> current = lists;
+        if (conditionId >= current.length()) {
+            AtomicReferenceArray<PublicationList> grown =
+                    new AtomicReferenceArray<>(Math.max(conditionId + 1, current.length() * 2));
+            for (int i = 0; i < current.length(); i++) {
+                grown.set(i, current.get(i));
+            }
+            lists = grown;
+            current = grown;
+        }
+        PublicationList list = current.get(conditionId);
+        if (list == null) {
+            list = new PublicationList();
+            current.set(conditionId, list);
+            addPresent(conditionId);
+        }
+        return list;
+    }
+
+    synchronized void put(int conditionId, PublicationList list) {
+        create(conditionId);
+        lists.set(conditionId, list);
+    }
+
+    private void addPresent(int conditionId) {
+        if (numPresent == presentIds.length) {
+            presentIds = Arrays.copyOf(presentIds, numPresent * 2);
+        }
+        presentIds[numPresent++] = conditionId;
+    }
+
+    /**
+     * Drops every id <= lastRemovedId from every list, and drops the lists that leaves empty.
+     */
+    synchronized void removeThrough(int lastRemovedId) {
+        AtomicReferenceArray<PublicationList> current = lists;
+        int kept = 0;
+        for (int i = 0; i < numPresent; i++) {
+            int conditionId = presentIds[i];
+            PublicationList list = current.get(conditionId);
+            list.removeThrough(lastRemovedId);
+            if (list.retireIfEmpty()) {
+                current.set(conditionId, null);
+            } else {
+                presentIds[kept++] = conditionId;
+            }
+        }
+        numPresent = kept;
+    }
+
+    /**
+     * @return the ids that have a list, in no particular order
+     */
+    synchronized int[] presentIds() {
+        return Arrays.copyOf(presentIds, numPresent);
+    }
+
+    synchronized int size() {
+        return numPresent;
+    }
+}
@@ -1,44 +1,220 @@
 package server;
 
-import message.Protocol;
-
-import java.util.*;
+import java.util.Arrays;
 import java.util.logging.Logger;
 
+/**
+ * Posting list of the message ids stored under a single condition key. Ids are kept sorted in a primitive
+ * array, so adds and lookups never touch the message strings themselves; the bodies live once in the
+ * store's shared MessageTable.
+ *
+ * Readers never lock. The array and the count of ids published in it are read through one volatile
+ * reference, and ids are only ever appended past the published count in place; anything else (growing,
+ * an out-of-order insert, pruning) builds a new array and publishes it whole. So a retrieve on a hot
+ * condition never waits for publishes to it, and every PostingCursor handed out stays valid. Writers still
+ * serialize on listLock.
+ */
 class PublicationList {
-    private static final Logger LOGGER = Logger.getLogger( ReplicatedPubSubServer.class.getName() );
+    private static final Logger LOGGER = Logger.getLogger( PublicationList.class.getName() );
+
+    private static final int INITIAL_CAPACITY = 16;
 
-    private SortedSet<String> publications;
+    private volatile Published published;
     private final Object listLock = new Object();
-    private Protocol protocol;
-    PublicationList(Protocol protocol) {
-        this.protocol = protocol;
-        this.publications = new TreeSet<>(new MessageIdComparator(protocol));
+    // set under listLock once compaction has emptied the list and its table is dropping it; see addIfLive()
+    private boolean retired;
+
+    PublicationList() {
+        this.published = new Published(new int[INITIAL_CAPACITY], 0);
+    }
+
+    /**
+     * Takes ownership of ids, whose first size entries must already be sorted and distinct.
+     */
+    PublicationList(int[] ids, int size) {
+        this.published = new Published(ids, size);
+    }
+
+    PostingCursor getIdsAfter(int lastReceivedId) {
+        Published current = published;
+        int size = current.size;
+        return new PostingCursor(current.ids, firstIndexAfter(current.ids, size, lastReceivedId), size);
+    }
+
+    /**
+     * @return cursor over the ids greater than afterId and no greater than throughId
+     */
+    PostingCursor getIdsBetween(int afterId, int throughId) {
+        Published current = published;
+        int size = current.size;
+        int start = firstIndexAfter(current.ids, size, afterId);
+        int end = Math.max(start, firstIndexAfter(current.ids, size, throughId));
+        return new PostingCursor(current.ids, start, end);
+    }
+
+    boolean synchronizedAdd(int messageId) {
+        synchronized (listLock) {
+            Published current = published;
+            int[] ids = current.ids;
+            int size = current.size;
+            // Ids almost always arrive in increasing order, so check the tail before searching.
+            if (size == 0 || ids[size - 1] < messageId) {
+                if (size < ids.length) {
+                    ids[size] = messageId;
+                    // the volatile write makes the id visible to readers that see the new size
+                    current.size = size + 1;
+                } else {
+                    int[] grown = Arrays.copyOf(ids, Math.max(ids.length * 2, INITIAL_CAPACITY));
+                    grown[size] = messageId;
+                    published = new Published(grown, size + 1);
+                }
+                return true;
+            }
+            int idx = Arrays.binarySearch(ids, 0, size, messageId);
+            if (idx >= 0) {
+                return false;
+            }
+            // Shifting in place would move ids under readers, so copy instead.
+            int insertAt = -(idx + 1);
+            int[] withInsert = new int[Math.max(size + 1, ids.length)];
+            System.arraycopy(ids, 0, withInsert, 0, insertAt);
+            withInsert[insertAt] = messageId;
+            System.arraycopy(ids, insertAt, withInsert, insertAt + 1, size - insertAt);
+            published = new Published(withInsert, size + 1);
+            return true;
+        }
+    }
+
+    /**
+     * synchronizedAdd(), unless the list has been retired.
+     *
+     * @return false if retired, in which case the caller must add to its table's replacement list instead
+     */
+    boolean addIfLive(int messageId) {
+        synchronized (listLock) {
+            if (retired) {
+                return false;
+            }
+            synchronizedAdd(messageId);
+            return true;
+        }
     }
 
-    SortedSet<String> getPublicationsStartingAt(String lastReceived) {
+    /**
+     * synchronizedAddAll(), unless the list has been retired.
+     *
+     * @return false if retired, in which case the caller must add to its table's replacement list instead
+     */
+    boolean addAllIfLive(int[] newIds, int count) {
         synchronized (listLock) {
-            if (this.publications.contains(lastReceived)) {
-                SortedSet<String> result = new TreeSet<>(new MessageIdComparator(protocol));
-                result.addAll(this.publications.tailSet(lastReceived));
-                result.remove(lastReceived);
-                return result;
+            if (retired) {
+                return false;
             }
-            if (lastReceived.equals("")) {
-                SortedSet<String> result = new TreeSet<>(new MessageIdComparator(protocol));
-                result.addAll(this.publications);
-                return result;
+            synchronizedAddAll(newIds, count);
+            return true;
+        }
+    }
 
+    /**
+     * Retires the list if it holds no ids, so a table can drop it without losing a concurrent addIfLive().
+     *
+     * @return whether the list is retired
+     */
+    boolean retireIfEmpty() {
+        synchronized (listLock) {
+            if (published.size == 0) {
+                retired = true;
             }
-            return new TreeSet<>(new MessageIdComparator(protocol));
+            return retired;
         }
     }
 
-    Integer synchronizedAdd(String message) {
+    /**
+     * Adds the first count of newIds, which must be sorted and distinct, under a single lock acquisition.
+     * Ids already in the list are skipped.
+     *
+     * @return the number of ids added
+     */
+    int synchronizedAddAll(int[] newIds, int count) {
+        if (count == 0) {
+            return 0;
+        }
         synchronized (listLock) {
-            this.publications.add(message);
-            return this.publications.size() - 1;
+            Published current = published;
+            int[] ids = current.ids;
+            int size = current.size;
+            if (size == 0 || ids[size - 1] < newIds[0]) {
+                if (size + count <= ids.length) {
+                    System.arraycopy(newIds, 0, ids, size, count);
+                    current.size = size + count;
+                } else {
+                    int[] grown = Arrays.copyOf(ids, Math.max(size + count, ids.length * 2));
+                    System.arraycopy(newIds, 0, grown, size, count);
+                    published = new Published(grown, size + count);
+                }
+                return count;
+            }
+            // merge into a new array, as with a single out-of-order insert
+            int[] merged = new int[Math.max(size + count, ids.length)];
+            int i = 0;
+            int j = 0;
+            int mergedSize = 0;
+            while (i < size || j < count) {
+                if (j == count || (i < size && ids[i] < newIds[j])) {
+                    merged[mergedSize++] = ids[i++];
+                } else {
+                    if (i < size && ids[i] == newIds[j]) {
+                        i++;
+                    }
+                    merged[mergedSize++] = newIds[j++];
+                }
+            }
+            published = new Published(merged, mergedSize);
+            return mergedSize - size;
         }
     }
 
+    /**
+     * Drops every id <= lastRemovedId. Like out-of-order inserts, this replaces the array rather than
+     * shifting it, so outstanding cursors keep their view.
+     *
+     * @return the number of ids removed
+     */
+    int removeThrough(int lastRemovedId) {
+        synchronized (listLock) {
+            Published current = published;
+            int size = current.size;
+            int keepFrom = firstIndexAfter(current.ids, size, lastRemovedId);
+            if (keepFrom == 0) {
+                return 0;
+            }
+            int[] kept = new int[Math.max(size - keepFrom, INITIAL_CAPACITY)];
+            System.arraycopy(current.ids, keepFrom, kept, 0, size - keepFrom);
+            published = new Published(kept, size - keepFrom);
+            return keepFrom;
+        }
+    }
+
+    int size() {
+        return published.size;
+    }
+
+    private static int firstIndexAfter(int[] ids, int size, int lastReceivedId) {
+        int idx = Arrays.binarySearch(ids, 0, size, lastReceivedId);
+        return idx >= 0 ? idx + 1 : -(idx + 1);
+    }
+
+    /**
+     * An id array and how many of its leading entries are visible. Only the size of the current one ever
+     * changes, and only upward.
+     */
+    private static final class Published {
+        private final int[] ids;
+        private volatile int size;
+
+        Published(int[] ids, int size) {
+            this.ids = ids;
+            this.size = size;
+        }
+    }
 }
@@ -5,6 +5,7 @@ import message.Protocol;
 
 import java.io.IOException;
 import java.rmi.NotBoundException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 
@@ -49,7 +50,7 @@ public class QuorumConsistency implements ConsistencyPolicy {
     @Override
     public boolean enforceOnPublish(Message message, String fromIp, int fromPort) throws IOException, NotBoundException, InterruptedException {
         int clientIdOfSource = Integer.parseInt(dispatcher.getManagerFor(fromIp, fromPort).getClientId());
-        int clientIdInMessage = Integer.parseInt(message.getClientId());
+        int clientIdInMessage = message.getClientIdAsInt();
         // Message stores clientId of original client publisher. Manager stores id of the client currently publishing (whether
         // the original client or the intermediate server spreading through a quorum write).
         boolean publishComesFromUserClient = clientIdOfSource == clientIdInMessage;
@@ -67,15 +68,14 @@ public class QuorumConsistency implements ConsistencyPolicy {
     @Override
     public boolean enforceOnRetrieve(Message message, String fromIp, int fromPort) throws IOException, NotBoundException, InterruptedException {
         List<Message> retrieveThroughQuorum = server.createReadQuorum(message, readQuorumSize);
-        boolean publishedHereSuccessfully;
+        List<String> retrievedMessages = new ArrayList<>(retrieveThroughQuorum.size());
         for(Message retrievedMessage: retrieveThroughQuorum) {
-            publishedHereSuccessfully = dispatcher.publish(retrievedMessage.asRawMessage(),
-                    "quorumUpdatePublisher",
-                    -1);
-            if(!publishedHereSuccessfully) {
-                throw new RuntimeException("Failed to publish a result from read quorum." +
-                        " System not set up for failure in current implementation. Terminating.");
-            }
+            retrievedMessages.add(retrievedMessage.asRawMessage());
+        }
+        boolean publishedHereSuccessfully = dispatcher.publishAll(retrievedMessages, "quorumUpdatePublisher", -1);
+        if(!publishedHereSuccessfully) {
+            throw new RuntimeException("Failed to publish a result from read quorum." +
+                    " System not set up for failure in current implementation. Terminating.");
         }
         return true;
     }
@@ -87,8 +87,6 @@ public class QuorumConsistency implements ConsistencyPolicy {
 
     public void synchronize() {
         Set<String> possibleUpdates = server.getAllMessagesFromPeers();
-        for(String possibleUpdate: possibleUpdates) {
-            dispatcher.publish(possibleUpdate, "quorumUpdatePublisher", -1);
-        }
+        dispatcher.publishAll(possibleUpdates, "quorumUpdatePublisher", -1);
     }
 }
\ No newline at end of file
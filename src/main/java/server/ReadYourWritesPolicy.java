@@ -5,6 +5,7 @@ import message.Protocol;
 
 import java.io.IOException;
 import java.rmi.NotBoundException;
+import java.util.ArrayList;
 import java.util.List;
 
 public class ReadYourWritesPolicy implements ConsistencyPolicy {
@@ -26,9 +27,11 @@ public class ReadYourWritesPolicy implements ConsistencyPolicy {
             String retrieveAllQuery = protocol.getRetrieveAllQuery();
             List<Message> retrieved = server.retrieveFromPeer(previousServer, new Message(protocol, retrieveAllQuery, true));
             System.out.println(this.server.getThisServersIpPortString() + " retrieved on join cons enforcement: " + retrieved.toString() + " Adding to store");
-            for(Message byClient: retrieved) {
-                dispatcher.publish(byClient.asRawMessage(), clientIp, clientPort);
+            List<String> byClient = new ArrayList<>(retrieved.size());
+            for(Message message: retrieved) {
+                byClient.add(message.asRawMessage());
             }
+            dispatcher.publishAll(byClient, clientIp, clientPort);
         }
     }
 
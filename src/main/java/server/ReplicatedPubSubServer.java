@@ -3,15 +3,20 @@ package server;
 import communicate.Communicate;
 import message.Message;
 import message.Protocol;
+import message.WireFormat;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.file.Path;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Set;
 import java.util.logging.Level;
@@ -167,6 +172,29 @@ public class ReplicatedPubSubServer implements Communicate {
             return this;
         }
 
+        /**
+         * Replaces the in-memory store with one that logs publishes to stateDirectory and snapshots itself
+         * there, so a restarted server comes back with everything it had instead of starting empty.
+         */
+        public Builder durableStore(Path stateDirectory, long snapshotIntervalMillis) throws IOException {
+            this.store = new PairedKeyMessageStore.Builder(protocol)
+                    .writeAheadLog(stateDirectory)
+                    .snapshotIntervalMillis(snapshotIntervalMillis)
+                    .build();
+            return this;
+        }
+
+        /**
+         * Replaces the in-memory store with one that keeps only the newest hotMessages publications in memory
+         * and moves older ones to segment files in coldDirectory, so the replica can hold a long history.
+         */
+        public Builder tieredStore(Path coldDirectory, int hotMessages) throws IOException {
+            this.store = new TieredMessageStore.Builder(protocol, coldDirectory)
+                    .hotMessages(hotMessages)
+                    .build();
+            return this;
+        }
+
         public Builder consistencyPolicy(ConsistencyPolicy consistencyPolicy) {
             this.consistencyPolicy = consistencyPolicy;
             return this;
@@ -200,6 +228,7 @@ public class ReplicatedPubSubServer implements Communicate {
         try {
             peerListManager.cleanup();
             dispatcher.cleanup();
+            store.close();
             UnicastRemoteObject.unexportObject(rmiRegistry,false);
 
         } catch (IOException e) {
@@ -238,6 +267,15 @@ public class ReplicatedPubSubServer implements Communicate {
     @Override
     public boolean Join(String IP, int Port, String existingClientId, String previousServer)
             throws NotBoundException, IOException, InterruptedException {
+        return Join(IP, Port, existingClientId, previousServer, WireFormat.PADDED_TEXT);
+    }
+
+    @Override
+    public boolean Join(String IP, int Port, String existingClientId, String previousServer, WireFormat wireFormat)
+            throws NotBoundException, IOException, InterruptedException {
+        if (wireFormat == null) {
+            throw new IllegalArgumentException("Join requires a wire format");
+        }
         synchronized (numClientsLock) {
             if(numClients >= maxClients) {
                 LOGGER.log(Level.SEVERE, "Maximum clients exceeded for server " + getThisServersIpPortString());
@@ -245,14 +283,20 @@ public class ReplicatedPubSubServer implements Communicate {
             }
             numClients++;
         }
-        String finalizedId = registerClientInServer(IP, Port, existingClientId);
+        String finalizedId = registerClientInServer(IP, Port, existingClientId, wireFormat);
         consistencyPolicy.enforceOnJoin(IP, Port, finalizedId, previousServer);
 
         return true;
     }
 
-    private String registerClientInServer(String ip, int port, String existingClientId) throws IOException, NotBoundException {
-        dispatcher.addNewClient(ip, port);
+    @Override
+    public List<WireFormat> getSupportedWireFormats() throws RemoteException {
+        return new ArrayList<>(Arrays.asList(WireFormat.values()));
+    }
+
+    private String registerClientInServer(String ip, int port, String existingClientId, WireFormat wireFormat)
+            throws IOException, NotBoundException {
+        dispatcher.addNewClient(ip, port, wireFormat);
         if(existingClientId == null) {
             return generateAndReturnClientId(ip, port);
         } else {
@@ -297,6 +341,12 @@ public class ReplicatedPubSubServer implements Communicate {
         return dispatcher.retrieve(IP, Port, queryMessage);
     }
 
+    @Override
+    public boolean RetrievePage(String IP, int Port, String queryMessage, int resumeAfterId, int limit,
+                                boolean newestFirst) throws RemoteException {
+        return dispatcher.retrievePage(IP, Port, queryMessage, resumeAfterId, limit, newestFirst);
+    }
+
     @Override
     public boolean Publish(String Message, String IP, int Port) throws RemoteException {
 
@@ -306,8 +356,8 @@ public class ReplicatedPubSubServer implements Communicate {
                 peerListManager.setFromCoordinatorPort(Port);
                 return true;
             } else {
-                ensureMessageInternalsExistAndRegenerateQuery(IP, Port, newMessage);
-                return consistencyPolicy.enforceOnPublish(newMessage, IP, Port);
+                Message withInternals = ensureMessageInternalsExist(IP, Port, newMessage);
+                return consistencyPolicy.enforceOnPublish(withInternals, IP, Port);
             }
         } catch (IOException | NotBoundException | InterruptedException e) {
             LOGGER.log(Level.SEVERE, "Exception while trying to Publish():");
@@ -316,20 +366,18 @@ public class ReplicatedPubSubServer implements Communicate {
         }
     }
 
-    private void ensureMessageInternalsExistAndRegenerateQuery(String clientIp, int clientPort, Message newMessage) throws IOException, NotBoundException {
-        String clientId = newMessage.getClientId();
-        String messageId = newMessage.getMessageId();
+    // Returns newMessage, or a copy of it with the ids it was missing.
+    private Message ensureMessageInternalsExist(String clientIp, int clientPort, Message newMessage) throws IOException, NotBoundException {
+        Message withInternals = newMessage;
         // If message had no clientId, message is directly from a user client and manager will have id. If it doesn't it will throw exception.
-        if(clientId.isEmpty()) {
-            clientId = dispatcher.getClientIdFromManager(clientIp, clientPort);
-            newMessage.insertClientId(clientId);
+        if(!withInternals.hasClientId()) {
+            withInternals = withInternals.insertClientId(dispatcher.getClientIdFromManager(clientIp, clientPort));
         }
         // If message had no messageId, message is directly from a user client. Otherwise it should already have a messageId.
-        if(messageId.isEmpty()) {
-            messageId = getCoordinator().requestNewMessageId();
-            newMessage.insertMessageId(messageId);
+        if(!withInternals.hasMessageId()) {
+            withInternals = withInternals.insertMessageId(getCoordinator().requestNewMessageId());
         }
-        newMessage.regenerateQuery();
+        return withInternals;
     }
 
     @Override
@@ -359,6 +407,24 @@ public class ReplicatedPubSubServer implements Communicate {
         return store.getHighestMessageIdStored();
     }
 
+    /**
+     * @return one past the highest id this server's store holds: 0 when new, more after a durable restart
+     */
+    int getNextUnusedMessageId() {
+        return store.getHighestMessageIdStored() + 1;
+    }
+
+    // Thread reads are answered from this replica's store directly, outside the consistency policy.
+    @Override
+    public List<String> RetrieveThread(int rootMessageId) throws RemoteException {
+        return new ArrayList<>(store.retrieveThread(rootMessageId));
+    }
+
+    @Override
+    public LinkedHashMap<String, Integer> RetrieveTopLevelPosts() throws RemoteException {
+        return store.retrieveTopLevelPosts();
+    }
+
     public Set<String> getListOfServers() throws IOException {
         return peerListManager.getListOfServers();
     }
@@ -0,0 +1,91 @@
+package server;
+
+import message.Message;
+import message.Protocol;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Parent to children adjacency lists over a reply field, such as the bulletin board's "replyTo". Each
+ * parent's replies are a PublicationList, so they come back in id order and readers never lock, and posts
+ * that reply to nothing are kept in their own list. Reading a thread then touches only that thread's posts.
+ */
+class ReplyThreadIndex {
+    private static final Logger LOGGER = Logger.getLogger( ReplyThreadIndex.class.getName() );
+
+    static final int NO_PARENT = -1;
+
+    private final Protocol protocol;
+    // position of the reply field in a parsed message
+    private final int replyFieldIndex;
+
+    private final Map<Integer, PublicationList> childrenByParent;
+    private final PublicationList topLevel;
+
+    ReplyThreadIndex(Protocol protocol, String replyToField) {
+        int fieldIndex = protocol.getQueryFields().indexOf(replyToField);
+        if (fieldIndex < 0) {
+            throw new IllegalArgumentException("ReplyThreadIndex: protocol has no field " + replyToField);
+        }
+        this.protocol = protocol;
+        this.replyFieldIndex = fieldIndex;
+        this.childrenByParent = new ConcurrentHashMap<>();
+        this.topLevel = new PublicationList();
+    }
+
+    void add(int messageId, Message message) {
+        int parentId = getParentId(message);
+        if (parentId >= messageId) {
+            // ids only grow, so this can't be a real reply; indexing it could also form a cycle
+            LOGGER.log(Level.WARNING, "Indexing post " + messageId + " replying to later post " + parentId
+                    + " as top-level.");
+            parentId = NO_PARENT;
+        }
+        if (parentId == NO_PARENT) {
+            topLevel.synchronizedAdd(messageId);
+        } else {
+            childrenByParent.computeIfAbsent(parentId, key -> new PublicationList()).synchronizedAdd(messageId);
+        }
+    }
+
+    private int getParentId(Message message) {
+        String replyTo = protocol.parse(message.asRawMessage())[replyFieldIndex].trim();
+        if (replyTo.isEmpty() || replyTo.equals(protocol.getWildcard())) {
+            return NO_PARENT;
+        }
+        try {
+            return Integer.parseInt(replyTo);
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "Indexing post with unparseable reply id as top-level: " + replyTo);
+            return NO_PARENT;
+        }
+    }
+
+    PostingCursor getTopLevel() {
+        return topLevel.getIdsAfter(NO_PARENT);
+    }
+
+    PostingCursor getChildren(int parentId) {
+        PublicationList children = childrenByParent.get(parentId);
+        return children != null ? children.getIdsAfter(NO_PARENT) : PostingCursor.EMPTY;
+    }
+
+    int getNumChildren(int parentId) {
+        PublicationList children = childrenByParent.get(parentId);
+        return children != null ? children.size() : 0;
+    }
+
+    /**
+     * Drops every post <= lastRemovedId, along with the reply lists of those posts.
+     */
+    void removeThrough(int lastRemovedId) {
+        topLevel.removeThrough(lastRemovedId);
+        childrenByParent.keySet().removeIf(parentId -> parentId <= lastRemovedId);
+        for (PublicationList children : childrenByParent.values()) {
+            children.removeThrough(lastRemovedId);
+        }
+    }
+}
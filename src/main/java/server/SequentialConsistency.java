@@ -25,7 +25,8 @@ public class SequentialConsistency implements ConsistencyPolicy {
         this.dispatcher = dispatcher;
         this.toPublishQueue = Collections.synchronizedSortedMap(new TreeMap<>());
         this.messageIdToPublisherIpPortString = new ConcurrentHashMap<>();
-        this.nextExpectedMessageId = 0;
+        // a durable store may come back holding messages; the coordinator carries on from its highest id
+        this.nextExpectedMessageId = server.getNextUnusedMessageId();
     }
 
     @Override
@@ -77,7 +78,7 @@ public class SequentialConsistency implements ConsistencyPolicy {
     }
 
     private void queueMessage(Message message, String fromIp, int fromPort) {
-        int messageId = Integer.parseInt(message.getMessageId());
+        int messageId = message.getMessageIdAsInt();
         toPublishQueue.put(messageId, message.asRawMessage());
         messageIdToPublisherIpPortString.put(messageId, ServerUtils.getIpPortString(fromIp, fromPort, protocol));
     }
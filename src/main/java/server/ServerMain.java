@@ -4,31 +4,41 @@ import server.ReplicatedPubSubServer;
 import java.io.IOException;
 
 import java.net.InetAddress;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class ServerMain {
     private static final Logger LOGGER = Logger.getLogger( ReplicatedPubSubServer.class.getName() );
+    private static final String DURABLE_OPTION = "--durable=";
+    private static final long SNAPSHOT_INTERVAL_MILLIS = 60 * 1000;
 
-    private static ReplicatedPubSubServer startServer(String remoteServerIp) throws IOException {
-        ReplicatedPubSubServer replicatedPubSubServer =
-                new ReplicatedPubSubServer.Builder(CommunicateArticle.ARTICLE_PROTOCOL, InetAddress.getByName(remoteServerIp), 1)
-                .build();
+    private static ReplicatedPubSubServer startServer(String remoteServerIp, String stateDirectory) throws IOException {
+        ReplicatedPubSubServer.Builder builder =
+                new ReplicatedPubSubServer.Builder(CommunicateArticle.ARTICLE_PROTOCOL, InetAddress.getByName(remoteServerIp), 1);
+        if (stateDirectory != null) {
+            builder.durableStore(Paths.get(stateDirectory), SNAPSHOT_INTERVAL_MILLIS);
+        }
+        ReplicatedPubSubServer replicatedPubSubServer = builder.build();
 
         replicatedPubSubServer.initialize();
         return replicatedPubSubServer;
     }
 
-    private static boolean teardownTest(String remoteServerIp) throws IOException, InterruptedException {
-        ReplicatedPubSubServer server = startServer(remoteServerIp);
+    private static boolean teardownTest(String remoteServerIp, String stateDirectory)
+            throws IOException, InterruptedException {
+        ReplicatedPubSubServer server = startServer(remoteServerIp, stateDirectory);
         Thread.sleep(10000);
         server.cleanup();
         return true;
     }
 
-    private static Set<String> getListTest(String remoteServerIp) throws IOException, InterruptedException {
-        ReplicatedPubSubServer server = startServer(remoteServerIp);
+    private static Set<String> getListTest(String remoteServerIp, String stateDirectory)
+            throws IOException, InterruptedException {
+        ReplicatedPubSubServer server = startServer(remoteServerIp, stateDirectory);
         Thread.sleep(3000);
         Set<String> serverList = server.getListOfServers();
         if (serverList != null) {
@@ -41,6 +51,17 @@ public class ServerMain {
     }
 
     public static void main(String[] args) throws IOException, InterruptedException{
+        // --durable=<directory> keeps publications across restarts; everything else is positional
+        String stateDirectory = null;
+        List<String> positionalArgs = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith(DURABLE_OPTION)) {
+                stateDirectory = arg.substring(DURABLE_OPTION.length());
+            } else {
+                positionalArgs.add(arg);
+            }
+        }
+        args = positionalArgs.toArray(new String[0]);
 
         if (args.length < 1) {
             LOGGER.log(Level.SEVERE, "Need to pass single argument IPv4 address of server.");
@@ -53,19 +74,19 @@ public class ServerMain {
             String registryServerTest = args[1];
             switch (registryServerTest) {
                 case "testTeardown":
-                    teardownTest(remoteServerIp);
+                    teardownTest(remoteServerIp, stateDirectory);
                     break;
                 case "testGetList":
-                    getListTest(remoteServerIp);
+                    getListTest(remoteServerIp, stateDirectory);
                     break;
             }
 
         } else {
             if (args.length > 2) {
-                LOGGER.log(Level.SEVERE, "Usage: java ServerMain <serverIp> <test name>");
+                LOGGER.log(Level.SEVERE, "Usage: java ServerMain <serverIp> [<test name>] [--durable=<state directory>]");
                 return;
             }
-            startServer(remoteServerIp);
+            startServer(remoteServerIp, stateDirectory);
         }
     }
 }
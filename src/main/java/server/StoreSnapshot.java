@@ -0,0 +1,209 @@
+package server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Point-in-time image of a PairedKeyMessageStore: its message bodies, its posting lists and its highest
+ * stored id, together with the write-ahead log generation it was taken at. Every publication logged in an
+ * earlier generation is in the image, so recovery loads the latest snapshot and replays only the log from
+ * that generation on.
+ *
+ * Capturing is cheap because PublicationLists never change the ids under a cursor: the image is just a
+ * cursor per list, and the file is written from them afterwards without holding any store lock. Bodies
+ * compacted away in the meantime are skipped and the compaction point written after them.
+ *
+ * File layout (snapshot-<walGeneration>.snap, ids delta-encoded as varints where marked):
+ *   [int magic][int version][long walGeneration][int highestMessageIdStored]
+ *   repeated ([int messageId][long storedAtMillis][int bodyLength][UTF-8 body]), ended by messageId -1
+ *   [int compactedThroughId]
+ *   [int numLists] numLists x ([UTF condition][int numIds] numIds x [varint id delta])
+ */
+class StoreSnapshot {
+    static final String SNAPSHOT_PREFIX = "snapshot-";
+    static final String SNAPSHOT_SUFFIX = ".snap";
+    private static final int MAGIC = 0x5105_5A70;
+    private static final int VERSION = 1;
+    private static final int END_OF_MESSAGES = -1;
+
+    final long walGeneration;
+    final int highestMessageIdStored;
+    final int compactedThroughId;
+    final PostingCursor publicationLog;
+    final Map<String, PostingCursor> postingLists;
+
+    StoreSnapshot(long walGeneration, int highestMessageIdStored, int compactedThroughId,
+                  PostingCursor publicationLog, Map<String, PostingCursor> postingLists) {
+        this.walGeneration = walGeneration;
+        this.highestMessageIdStored = highestMessageIdStored;
+        this.compactedThroughId = compactedThroughId;
+        this.publicationLog = publicationLog;
+        this.postingLists = postingLists;
+    }
+
+    /**
+     * Writes the image to directory, reading bodies from messageTable. The file only appears under its
+     * final name once it is complete and synced.
+     */
+    void writeTo(Path directory, MessageTable messageTable) throws IOException {
+        Path file = directory.resolve(fileName(walGeneration));
+        Path partial = directory.resolve(fileName(walGeneration) + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(partial.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(walGeneration);
+            out.writeInt(highestMessageIdStored);
+
+            // compaction only ever removes the lowest ids, so a missing body means everything up to it is gone
+            int writtenCompactedThroughId = compactedThroughId;
+            while (publicationLog.hasNext()) {
+                int messageId = publicationLog.next();
+                String message = messageTable.get(messageId);
+                long storedAtMillis = messageTable.getStoredAtMillis(messageId);
+                if (message == null || storedAtMillis < 0) {
+                    writtenCompactedThroughId = messageId;
+                    continue;
+                }
+                byte[] body = message.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(messageId);
+                out.writeLong(storedAtMillis);
+                out.writeInt(body.length);
+                out.write(body);
+            }
+            out.writeInt(END_OF_MESSAGES);
+            out.writeInt(writtenCompactedThroughId);
+
+            out.writeInt(postingLists.size());
+            for (Map.Entry<String, PostingCursor> list : postingLists.entrySet()) {
+                PostingCursor ids = list.getValue();
+                ids.advanceTo(writtenCompactedThroughId + 1);
+                out.writeUTF(list.getKey());
+                out.writeInt(ids.remaining());
+                int previous = -1;
+                while (ids.hasNext()) {
+                    int id = ids.next();
+                    writeVarint(out, id - previous);
+                    previous = id;
+                }
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        Files.move(partial, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Loads the newest snapshot in directory, putting its bodies into messageTable.
+     *
+     * @return the loaded image, with cursors over the restored posting lists, or null if there is none
+     */
+    static StoreSnapshot readLatest(Path directory, MessageTable messageTable) throws IOException {
+        TreeMap<Long, Path> snapshots = listSnapshots(directory);
+        if (snapshots.isEmpty()) {
+            return null;
+        }
+        Path file = snapshots.lastEntry().getValue();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("StoreSnapshot: unrecognized snapshot file " + file);
+            }
+            long walGeneration = in.readLong();
+            int highestMessageIdStored = in.readInt();
+
+            int[] logIds = new int[1024];
+            int logSize = 0;
+            int messageId;
+            while ((messageId = in.readInt()) != END_OF_MESSAGES) {
+                long storedAtMillis = in.readLong();
+                byte[] body = new byte[in.readInt()];
+                in.readFully(body);
+                messageTable.putIfAbsent(messageId, new String(body, StandardCharsets.UTF_8), storedAtMillis);
+                if (logSize == logIds.length) {
+                    logIds = Arrays.copyOf(logIds, logSize * 2);
+                }
+                logIds[logSize++] = messageId;
+            }
+            int compactedThroughId = in.readInt();
+            PostingCursor publicationLog = new PostingCursor(logIds, 0, logSize);
+            // bodies compacted away while the snapshot was written were written before it found out
+            int firstRetained = publicationLog.advanceTo(compactedThroughId + 1);
+            for (int i = 0; i < logSize && logIds[i] != firstRetained; i++) {
+                messageTable.remove(logIds[i]);
+            }
+
+            int numLists = in.readInt();
+            Map<String, PostingCursor> postingLists = new HashMap<>(numLists * 2);
+            for (int i = 0; i < numLists; i++) {
+                String condition = in.readUTF();
+                int[] ids = new int[in.readInt()];
+                int previous = -1;
+                for (int j = 0; j < ids.length; j++) {
+                    previous += readVarint(in);
+                    ids[j] = previous;
+                }
+                postingLists.put(condition, new PostingCursor(ids, 0, ids.length));
+            }
+            return new StoreSnapshot(walGeneration, highestMessageIdStored, compactedThroughId,
+                    publicationLog, postingLists);
+        }
+    }
+
+    /**
+     * Deletes every snapshot older than the given generation, along with any partial file left by a crash.
+     */
+    static void deleteBefore(Path directory, long walGeneration) throws IOException {
+        for (Path snapshot : listSnapshots(directory).headMap(walGeneration).values()) {
+            Files.deleteIfExists(snapshot);
+        }
+        try (DirectoryStream<Path> partials =
+                     Files.newDirectoryStream(directory, SNAPSHOT_PREFIX + "*" + SNAPSHOT_SUFFIX + ".tmp")) {
+            for (Path partial : partials) {
+                if (!partial.getFileName().toString().equals(fileName(walGeneration) + ".tmp")) {
+                    Files.deleteIfExists(partial);
+                }
+            }
+        }
+    }
+
+    private static TreeMap<Long, Path> listSnapshots(Path directory) throws IOException {
+        TreeMap<Long, Path> snapshots = new TreeMap<>();
+        try (DirectoryStream<Path> files =
+                     Files.newDirectoryStream(directory, SNAPSHOT_PREFIX + "*" + SNAPSHOT_SUFFIX)) {
+            for (Path snapshot : files) {
+                String name = snapshot.getFileName().toString();
+                snapshots.put(Long.parseLong(
+                        name.substring(SNAPSHOT_PREFIX.length(), name.length() - SNAPSHOT_SUFFIX.length())), snapshot);
+            }
+        }
+        return snapshots;
+    }
+
+    private static String fileName(long walGeneration) {
+        return String.format("%s%016d%s", SNAPSHOT_PREFIX, walGeneration, SNAPSHOT_SUFFIX);
+    }
+
+    static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+}
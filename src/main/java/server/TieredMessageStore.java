@@ -0,0 +1,431 @@
+package server;
+
+import message.Message;
+import message.Protocol;
+import message.Query;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * MessageStore for long histories. The newest publications, with their posting lists, are kept in memory in a
+ * PairedKeyMessageStore (the hot tier). Once segmentMessages more than hotMessages have built up, the oldest
+ * segmentMessages are written to an immutable ColdSegment on disk and evicted from the hot tier. Retrieves
+ * read both tiers and merge them in id order. Subscriptions mostly want what arrived in the last few minutes:
+ * a cold segment wholly at or below a query's cursor is skipped without being read.
+ *
+ * Cold segments are reopened when the store is rebuilt on the same directory, so history outlives the
+ * process. The hot tier is in memory only.
+ */
+public class TieredMessageStore implements MessageStore {
+    private static final Logger LOGGER = Logger.getLogger( TieredMessageStore.class.getName() );
+
+    private final Protocol protocol;
+    private final boolean indexWildcardBuckets;
+    private final PairedKeyMessageStore hot;
+    private final int hotMessages;
+    private final int segmentMessages;
+    private final Message allMessagesQuery;
+
+    private final Path coldDirectory;
+    private final List<ColdSegment> coldSegments;
+    private final AtomicInteger nextSegmentNumber;
+    private volatile int demotedThroughId;
+    private volatile int highestColdId;
+
+    // Publishes and retrieves hold the read lock. Moving publications from the hot tier to a cold segment
+    // holds the write lock, so no reader sees them in both tiers or in neither.
+    private final ReadWriteLock tierLock = new ReentrantReadWriteLock();
+    private final Lock demotionLock = new ReentrantLock();
+
+    private TieredMessageStore(Builder builder, PairedKeyMessageStore hot) {
+        this.protocol = builder.protocol;
+        this.indexWildcardBuckets = builder.indexWildcardBuckets;
+        this.hot = hot;
+        this.hotMessages = builder.hotMessages;
+        this.segmentMessages = builder.segmentMessages;
+        this.allMessagesQuery = new Message(protocol, protocol.getRetrieveAllQuery(), true);
+        this.coldDirectory = builder.coldDirectory;
+        this.coldSegments = new CopyOnWriteArrayList<>();
+        this.nextSegmentNumber = new AtomicInteger(0);
+        this.demotedThroughId = -1;
+        this.highestColdId = -1;
+    }
+
+    public static class Builder {
+        private Protocol protocol;
+        private Path coldDirectory;
+        private boolean indexWildcardBuckets;
+        private int hotMessages;
+        private int segmentMessages;
+
+        public Builder(Protocol protocol, Path coldDirectory) {
+            this.protocol = protocol;
+            this.coldDirectory = coldDirectory;
+
+            // set optional parameters to defaults
+            this.indexWildcardBuckets = true;
+            this.hotMessages = 100_000;
+            this.segmentMessages = 10_000;
+        }
+
+        /**
+         * How many of the newest publications stay in memory. The hot tier grows to hotMessages +
+         * segmentMessages before the oldest segmentMessages are demoted together.
+         */
+        public Builder hotMessages(int hotMessages) {
+            this.hotMessages = hotMessages;
+            return this;
+        }
+
+        public Builder segmentMessages(int segmentMessages) {
+            this.segmentMessages = segmentMessages;
+            return this;
+        }
+
+        /**
+         * See PairedKeyMessageStore.Builder.indexWildcardBuckets(). Applies to both tiers.
+         */
+        public Builder indexWildcardBuckets(boolean indexWildcardBuckets) {
+            this.indexWildcardBuckets = indexWildcardBuckets;
+            return this;
+        }
+
+        public TieredMessageStore build() throws IOException {
+            if (hotMessages < 0 || segmentMessages <= 0) {
+                throw new IllegalArgumentException("TieredMessageStore: invalid tier sizes " + hotMessages
+                        + " hot, " + segmentMessages + " per segment");
+            }
+            PairedKeyMessageStore hot = new PairedKeyMessageStore.Builder(protocol)
+                    .indexWildcardBuckets(indexWildcardBuckets)
+                    .build();
+            TieredMessageStore store = new TieredMessageStore(this, hot);
+            store.openColdSegments();
+            return store;
+        }
+    }
+
+    private void openColdSegments() throws IOException {
+        Files.createDirectories(coldDirectory);
+        try (DirectoryStream<Path> partials = Files.newDirectoryStream(coldDirectory,
+                ColdSegment.SEGMENT_PREFIX + "*" + ColdSegment.SEGMENT_SUFFIX + ".tmp")) {
+            for (Path partial : partials) {
+                Files.delete(partial);
+            }
+        }
+        try (DirectoryStream<Path> segments = Files.newDirectoryStream(coldDirectory,
+                ColdSegment.SEGMENT_PREFIX + "*" + ColdSegment.SEGMENT_SUFFIX)) {
+            for (Path file : segments) {
+                String name = file.getFileName().toString();
+                int number = Integer.parseInt(name.substring(
+                        ColdSegment.SEGMENT_PREFIX.length(), name.length() - ColdSegment.SEGMENT_SUFFIX.length()));
+                nextSegmentNumber.set(Math.max(nextSegmentNumber.get(), number + 1));
+                addColdSegment(ColdSegment.open(file));
+            }
+        }
+        if (!coldSegments.isEmpty()) {
+            LOGGER.log(Level.INFO, "Reopened " + coldSegments.size() + " cold segments through message "
+                    + highestColdId);
+        }
+    }
+
+    @Override
+    public Set<String> retrieve(Message subscription) {
+        if (!subscription.isSubscription()) {
+            throw new IllegalArgumentException("Store retrieve() received non-subscription message.");
+        }
+        subscription.setLastAccess(new Date());
+        tierLock.readLock().lock();
+        try {
+            // a subscription's place in the merged id order
+            int lastRetrievedId = subscription.getLastRetrievedIdFor(Query.QUERY_CURSOR);
+            int throughId = getHighestMessageIdStored();
+            if (throughId <= lastRetrievedId) {
+                return new LinkedHashSet<>();
+            }
+            subscription.setLastRetrievedIdFor(Query.QUERY_CURSOR, throughId);
+            return new LinkedHashSet<>(
+                    collectMatches(subscription, lastRetrievedId, throughId, Integer.MAX_VALUE, false));
+        } finally {
+            tierLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Set<String> retrieveRange(Message query, long fromIdExclusive, long toIdInclusive, int limit) {
+        if (!query.isSubscription()) {
+            throw new IllegalArgumentException("Store retrieveRange() received non-subscription message.");
+        }
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Store retrieveRange() limit must be positive: " + limit);
+        }
+        int afterId = (int) Math.max(fromIdExclusive, -1);
+        int throughId = (int) Math.min(toIdInclusive, Integer.MAX_VALUE);
+        tierLock.readLock().lock();
+        try {
+            return new LinkedHashSet<>(collectMatches(query, afterId, throughId, limit, false));
+        } finally {
+            tierLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<String> retrievePage(Message query, int resumeAfterId, int limit, boolean newestFirst) {
+        if (!query.isSubscription()) {
+            throw new IllegalArgumentException("Store retrievePage() received non-subscription message.");
+        }
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Store retrievePage() limit must be positive: " + limit);
+        }
+        tierLock.readLock().lock();
+        try {
+            if (!newestFirst) {
+                return collectMatches(query, resumeAfterId, Integer.MAX_VALUE, limit, false);
+            }
+            int throughId = resumeAfterId == FIRST_PAGE ? Integer.MAX_VALUE : resumeAfterId - 1;
+            return collectMatches(query, FIRST_PAGE, throughId, limit, true);
+        } finally {
+            tierLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Merges the first limit matches with ids in (afterId, throughId], in id order or newest first, from the
+     * hot tier and every cold segment that overlaps the range. Segments are visited from the requested end
+     * and the search stops at the first one that starts beyond a full page. Caller must hold the read lock.
+     */
+    private List<String> collectMatches(Message query, int afterId, int throughId, int limit, boolean newestFirst) {
+        if (throughId <= afterId) {
+            return new ArrayList<>();
+        }
+        TreeMap<Integer, String> matches = new TreeMap<>(
+                newestFirst ? Comparator.<Integer>reverseOrder() : Comparator.<Integer>naturalOrder());
+        Collection<String> hotMatches = newestFirst ?
+                hot.retrievePage(query, throughId == Integer.MAX_VALUE ? FIRST_PAGE : throughId + 1, limit, true)
+                : hot.retrieveRange(query, afterId, throughId, limit);
+        for (String publication : hotMatches) {
+            int id = protocol.getMessageIdAsInt(publication);
+            // a newest-first page has no lower bound of its own
+            if (id > afterId) {
+                matches.put(id, publication);
+            }
+        }
+
+        List<ColdSegment> segments = new ArrayList<>(coldSegments);
+        segments.sort(newestFirst ?
+                Comparator.comparingInt(ColdSegment::getLastId).reversed()
+                : Comparator.comparingInt(ColdSegment::getFirstId));
+        Set<String> conditions = getConditions(query);
+        for (ColdSegment segment : segments) {
+            if (segment.getLastId() <= afterId || segment.getFirstId() > throughId) {
+                continue;
+            }
+            if (matches.size() == limit && (newestFirst ?
+                    segment.getLastId() < matches.lastKey() : segment.getFirstId() > matches.lastKey())) {
+                break;
+            }
+            segment.collectMatches(conditions, afterId, throughId, limit, newestFirst, matches);
+            while (matches.size() > limit) {
+                matches.pollLastEntry();
+            }
+        }
+        return new ArrayList<>(matches.values());
+    }
+
+    private Set<String> getConditions(Message message) {
+        return indexWildcardBuckets ? message.getQueryConditions() : message.getConstrainedQueryConditions();
+    }
+
+    @Override
+    public boolean publish(Message message) {
+        boolean isLate;
+        boolean stored = false;
+        tierLock.readLock().lock();
+        try {
+            isLate = message.getMessageIdAsInt() <= demotedThroughId;
+            if (!isLate) {
+                stored = hot.publish(message);
+            }
+        } finally {
+            tierLock.readLock().unlock();
+        }
+        if (isLate) {
+            return publishLate(Collections.singletonList(message)) > 0;
+        }
+        demoteIfNecessary();
+        return stored;
+    }
+
+    @Override
+    public int publishAll(Collection<Message> messages) {
+        List<Message> late = new ArrayList<>();
+        int numStored;
+        tierLock.readLock().lock();
+        try {
+            List<Message> current = new ArrayList<>(messages.size());
+            for (Message message : messages) {
+                if (message.getMessageIdAsInt() <= demotedThroughId) {
+                    late.add(message);
+                } else {
+                    current.add(message);
+                }
+            }
+            numStored = hot.publishAll(current);
+        } finally {
+            tierLock.readLock().unlock();
+        }
+        if (!late.isEmpty()) {
+            numStored += publishLate(late);
+        }
+        demoteIfNecessary();
+        return numStored;
+    }
+
+    /**
+     * Stores publications that arrived after the ones around them were demoted. Cold segments are immutable
+     * and this is rare (a replica catching up on old history), so they get a small segment of their own.
+     *
+     * @return how many were not already stored
+     */
+    private int publishLate(List<Message> messages) {
+        tierLock.writeLock().lock();
+        try {
+            TreeMap<Integer, String> missing = new TreeMap<>();
+            for (Message message : messages) {
+                int messageId = message.getMessageIdAsInt();
+                if (getCold(messageId) == null) {
+                    missing.put(messageId, message.asRawMessage());
+                }
+            }
+            if (!missing.isEmpty()) {
+                LOGGER.log(Level.INFO, "Writing " + missing.size() + " publications older than the hot tier "
+                        + "to their own cold segment.");
+                addColdSegment(writeSegment(missing.values()));
+            }
+            return missing.size();
+        } catch (IOException e) {
+            throw new RuntimeException("TieredMessageStore: failed to store late publications: " + e.toString());
+        } finally {
+            tierLock.writeLock().unlock();
+        }
+    }
+
+    private String getCold(int messageId) {
+        for (ColdSegment segment : coldSegments) {
+            String publication = segment.get(messageId);
+            if (publication != null) {
+                return publication;
+            }
+        }
+        return null;
+    }
+
+    private void demoteIfNecessary() {
+        // publishers that find a demotion running leave it to finish the job
+        if (hot.getNumMessagesStored() < hotMessages + segmentMessages || !demotionLock.tryLock()) {
+            return;
+        }
+        try {
+            while (hot.getNumMessagesStored() >= hotMessages + segmentMessages && demoteOldest()) {
+                LOGGER.log(Level.FINE, "Demoted publications through " + demotedThroughId + " to cold segment "
+                        + (nextSegmentNumber.get() - 1));
+            }
+        } catch (IOException e) {
+            // the publications are still hot; try again on a later publish
+            LOGGER.log(Level.SEVERE, "Failed to demote publications to a cold segment: " + e.toString());
+        } finally {
+            demotionLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the oldest segmentMessages hot publications to a segment, then swaps them out of the hot tier.
+     * The hot tier keeps answering for them while the segment is written. Caller must hold demotionLock.
+     *
+     * @return false if there was nothing to demote
+     */
+    private boolean demoteOldest() throws IOException {
+        Set<String> oldest = hot.retrieveRange(allMessagesQuery, -1, Integer.MAX_VALUE, segmentMessages);
+        if (oldest.isEmpty()) {
+            return false;
+        }
+        ColdSegment segment = writeSegment(oldest);
+        int lastId = segment.getLastId();
+
+        tierLock.writeLock().lock();
+        try {
+            // ids below lastId published while the segment was being written
+            Set<String> arrivedMeanwhile = hot.retrieveRange(allMessagesQuery, -1, lastId, Integer.MAX_VALUE);
+            arrivedMeanwhile.removeAll(oldest);
+            addColdSegment(segment);
+            if (!arrivedMeanwhile.isEmpty()) {
+                addColdSegment(writeSegment(arrivedMeanwhile));
+            }
+            hot.evictThrough(lastId);
+        } finally {
+            tierLock.writeLock().unlock();
+        }
+        return true;
+    }
+
+    // publications must be in id order
+    private ColdSegment writeSegment(Collection<String> publications) throws IOException {
+        ColdSegment.Writer writer = new ColdSegment.Writer();
+        for (String publication : publications) {
+            String compactPublication = protocol.stripPadding(publication);
+            Message message = new Message(protocol, protocol.padMessage(compactPublication), false);
+            writer.add(protocol.getMessageIdAsInt(compactPublication), compactPublication, getConditions(message));
+        }
+        Path file = coldDirectory.resolve(String.format("%s%08d%s",
+                ColdSegment.SEGMENT_PREFIX, nextSegmentNumber.getAndIncrement(), ColdSegment.SEGMENT_SUFFIX));
+        return writer.writeTo(file);
+    }
+
+    // Caller must hold the write lock, or be building the store.
+    private void addColdSegment(ColdSegment segment) {
+        coldSegments.add(segment);
+        demotedThroughId = Math.max(demotedThroughId, segment.getLastId());
+        highestColdId = Math.max(highestColdId, segment.getLastId());
+    }
+
+    int getNumColdSegments() {
+        return coldSegments.size();
+    }
+
+    int getNumHotMessages() {
+        return hot.getNumMessagesStored();
+    }
+
+    @Override
+    public int getHighestMessageIdStored() {
+        return Math.max(hot.getHighestMessageIdStored(), highestColdId);
+    }
+
+    @Override
+    public void close() throws IOException {
+        demotionLock.lock();
+        tierLock.writeLock().lock();
+        try {
+            // no retrieve is reading a segment while the write lock is held, and none can reach one afterwards
+            for (ColdSegment segment : coldSegments) {
+                segment.close();
+            }
+            coldSegments.clear();
+        } finally {
+            tierLock.writeLock().unlock();
+            demotionLock.unlock();
+        }
+        hot.close();
+    }
+}
@@ -0,0 +1,331 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Durable log of publications, written before a message is indexed. append() only returns once its record
+ * has been fsynced, but concurrent appends share fsyncs through group commit: whichever appender finds no
+ * flush in progress becomes the leader and writes and forces every record queued so far in one batch,
+ * while the others wait for it. Under load from the Dispatcher's worker pool, batches grow on their own
+ * and the cost of each fsync is spread across them.
+ *
+ * The log is a sequence of generation files (wal-<generation>.log). A new generation is started every time
+ * the log is opened, so a torn record at the end of a crashed generation is never appended after, and
+ * whenever the store takes a snapshot, so generations the snapshot covers can be deleted whole.
+ *
+ * Record layout: [int payloadLength][int crc32 of payload][UTF-8 payload].
+ */
+class WriteAheadLog implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger( WriteAheadLog.class.getName() );
+
+    static final String LOG_PREFIX = "wal-";
+    static final String LOG_SUFFIX = ".log";
+    private static final int RECORD_HEADER_BYTES = 4 + 4;
+    private static final int METRICS_LOG_INTERVAL_BATCHES = 1000;
+
+    private final Path directory;
+    private FileChannel channel;
+    private long generation;
+
+    private final Lock logLock = new ReentrantLock();
+    private final Condition batchCommitted = logLock.newCondition();
+    private List<byte[]> pending;
+    private long appendedSequence;
+    private long durableSequence;
+    private boolean flushInProgress;
+    private IOException failure;
+
+    private final Metrics metrics;
+
+    WriteAheadLog(Path directory) throws IOException {
+        this.directory = directory;
+        this.pending = new ArrayList<>();
+        this.appendedSequence = 0;
+        this.durableSequence = 0;
+        this.flushInProgress = false;
+        this.failure = null;
+        this.metrics = new Metrics();
+
+        Files.createDirectories(directory);
+        TreeMap<Long, Path> existing = listGenerations();
+        this.generation = existing.isEmpty() ? 0 : existing.lastKey() + 1;
+        this.channel = openGeneration(generation);
+    }
+
+    private TreeMap<Long, Path> listGenerations() throws IOException {
+        TreeMap<Long, Path> generations = new TreeMap<>();
+        try (DirectoryStream<Path> logs = Files.newDirectoryStream(directory, LOG_PREFIX + "*" + LOG_SUFFIX)) {
+            for (Path log : logs) {
+                String name = log.getFileName().toString();
+                generations.put(Long.parseLong(
+                        name.substring(LOG_PREFIX.length(), name.length() - LOG_SUFFIX.length())), log);
+            }
+        }
+        return generations;
+    }
+
+    private FileChannel openGeneration(long generation) throws IOException {
+        return FileChannel.open(directory.resolve(String.format("%s%016d%s", LOG_PREFIX, generation, LOG_SUFFIX)),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Passes every intact record of the generations from fromGeneration up to (not including) the current
+     * one to recovered, oldest first. Stops reading a generation at its first torn or corrupt record.
+     */
+    void replay(long fromGeneration, Consumer<String> recovered) throws IOException {
+        for (Path log : listGenerations().subMap(fromGeneration, generation).values()) {
+            replayGeneration(log, recovered);
+        }
+    }
+
+    private void replayGeneration(Path log, Consumer<String> recovered) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(log)))) {
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length;
+                int expectedCrc;
+                byte[] payload;
+                try {
+                    length = in.readInt();
+                    expectedCrc = in.readInt();
+                    if (length < 0) {
+                        break;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(payload, 0, payload.length);
+                if ((int) crc.getValue() != expectedCrc) {
+                    LOGGER.log(Level.WARNING, "Stopped replaying " + log + " at a corrupt record.");
+                    break;
+                }
+                recovered.accept(new String(payload, StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    /**
+     * Blocks until message is durably on disk.
+     */
+    void append(String message) throws IOException {
+        appendAll(Collections.singletonList(message));
+    }
+
+    /**
+     * Blocks until every one of messages is durably on disk. They go into the log together, in order.
+     */
+    void appendAll(Collection<String> messages) throws IOException {
+        long waitStart = System.nanoTime();
+        List<byte[]> payloads = new ArrayList<>(messages.size());
+        for (String message : messages) {
+            payloads.add(message.getBytes(StandardCharsets.UTF_8));
+        }
+        logLock.lock();
+        try {
+            throwIfFailed();
+            pending.addAll(payloads);
+            appendedSequence += payloads.size();
+            long sequence = appendedSequence;
+            while (durableSequence < sequence) {
+                if (flushInProgress) {
+                    batchCommitted.awaitUninterruptibly();
+                    throwIfFailed();
+                } else {
+                    commitPendingAsLeader();
+                }
+            }
+        } finally {
+            logLock.unlock();
+        }
+        metrics.recordCommitWait(System.nanoTime() - waitStart);
+    }
+
+    // Caller must hold logLock; it is released while writing so followers can keep queueing.
+    private void commitPendingAsLeader() throws IOException {
+        flushInProgress = true;
+        List<byte[]> batch = pending;
+        pending = new ArrayList<>();
+        long batchEnd = appendedSequence;
+        FileChannel batchChannel = channel;
+        logLock.unlock();
+
+        IOException batchFailure = null;
+        long fsyncNanos = 0;
+        try {
+            writeBatch(batchChannel, batch);
+            long fsyncStart = System.nanoTime();
+            batchChannel.force(false);
+            fsyncNanos = System.nanoTime() - fsyncStart;
+        } catch (IOException e) {
+            batchFailure = e;
+        } finally {
+            logLock.lock();
+        }
+
+        flushInProgress = false;
+        if (batchFailure == null) {
+            durableSequence = batchEnd;
+            if (metrics.recordBatch(batch.size(), fsyncNanos) % METRICS_LOG_INTERVAL_BATCHES == 0) {
+                LOGGER.log(Level.INFO, "Write-ahead log: " + metrics);
+            }
+        } else {
+            // the log may now hold a partial batch; refuse further appends rather than report them durable
+            failure = batchFailure;
+            LOGGER.log(Level.SEVERE, "Write-ahead log commit failed: " + batchFailure.toString());
+        }
+        batchCommitted.signalAll();
+        throwIfFailed();
+    }
+
+    private static void writeBatch(FileChannel channel, List<byte[]> batch) throws IOException {
+        int batchBytes = 0;
+        for (byte[] payload : batch) {
+            batchBytes += RECORD_HEADER_BYTES + payload.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(batchBytes);
+        CRC32 crc = new CRC32();
+        for (byte[] payload : batch) {
+            crc.reset();
+            crc.update(payload, 0, payload.length);
+            buffer.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    // Caller must hold logLock.
+    private void throwIfFailed() throws IOException {
+        if (failure != null) {
+            throw new IOException("Write-ahead log unusable after failed commit: " + failure.toString());
+        }
+    }
+
+    /**
+     * Closes the current generation and starts appending to a new one. Appends queued but not yet written
+     * go to the new generation.
+     *
+     * @return the new generation
+     */
+    long rotate() throws IOException {
+        logLock.lock();
+        try {
+            // the leader writes to the channel outside the lock
+            while (flushInProgress) {
+                batchCommitted.awaitUninterruptibly();
+            }
+            throwIfFailed();
+            channel.close();
+            channel = openGeneration(++generation);
+            return generation;
+        } finally {
+            logLock.unlock();
+        }
+    }
+
+    /**
+     * Deletes every generation older than the given one.
+     */
+    void deleteGenerationsBefore(long keepFromGeneration) throws IOException {
+        for (Path log : listGenerations().headMap(keepFromGeneration).values()) {
+            Files.deleteIfExists(log);
+        }
+    }
+
+    Metrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void close() throws IOException {
+        logLock.lock();
+        try {
+            channel.close();
+        } finally {
+            logLock.unlock();
+        }
+        LOGGER.log(Level.INFO, "Write-ahead log closed: " + metrics);
+    }
+
+    /**
+     * Group commit statistics: how many records each fsync covered, how long the fsyncs took, and how long
+     * append() blocked callers in total (queueing behind the current batch plus their own commit).
+     */
+    static final class Metrics {
+        private long batches;
+        private long records;
+        private int maxBatchSize;
+        private long totalFsyncNanos;
+        private long commitWaits;
+        private long totalCommitWaitNanos;
+
+        synchronized long recordBatch(int batchSize, long fsyncNanos) {
+            batches++;
+            records += batchSize;
+            maxBatchSize = Math.max(maxBatchSize, batchSize);
+            totalFsyncNanos += fsyncNanos;
+            return batches;
+        }
+
+        synchronized void recordCommitWait(long waitNanos) {
+            commitWaits++;
+            totalCommitWaitNanos += waitNanos;
+        }
+
+        synchronized long getBatches() {
+            return batches;
+        }
+
+        synchronized long getRecords() {
+            return records;
+        }
+
+        synchronized double getAverageBatchSize() {
+            return batches == 0 ? 0 : (double) records / batches;
+        }
+
+        synchronized int getMaxBatchSize() {
+            return maxBatchSize;
+        }
+
+        synchronized double getAverageFsyncMillis() {
+            return batches == 0 ? 0 : totalFsyncNanos / 1e6 / batches;
+        }
+
+        synchronized double getAverageCommitWaitMillis() {
+            return commitWaits == 0 ? 0 : totalCommitWaitNanos / 1e6 / commitWaits;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("%d records in %d fsyncs (avg batch %.1f, max %d), avg fsync %.3f ms, " +
+                            "avg added publish latency %.3f ms",
+                    records, batches, getAverageBatchSize(), maxBatchSize, getAverageFsyncMillis(),
+                    getAverageCommitWaitMillis());
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package message;
+
+import communicate.CommunicateArticle;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Tokenizing a publication the way the Message constructor used to (a String.split per check, eight in all,
+ * plus a regex for the empty-contents check) against MessageFields' single pass shared by every check.
+ * constructMessage is the whole constructor, query generation included, for scale.
+ *
+ * Run with: gradle jmh -PjmhArgs='MessageParseBenchmark'
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MessageParseBenchmark {
+    private Protocol protocol;
+    private String rawPublication;
+
+    @Setup(Level.Trial)
+    public void createPublication() {
+        protocol = CommunicateArticle.ARTICLE_PROTOCOL;
+        rawPublication = "Sports;orig1;UMN;Some article contents of moderate length";
+    }
+
+    @Benchmark
+    public void splitPerCheck(Blackhole blackhole) {
+        String delimiter = protocol.getDelimiter();
+        String controlDelimiter = protocol.getControlDelimiter();
+        // isControlMessage(): one split per kind of control message
+        for (int i = 0; i < 3; i++) {
+            blackhole.consume(rawPublication.split(controlDelimiter, -1));
+        }
+        String processed = rawPublication;
+        if (rawPublication.split(delimiter, -1).length == protocol.getNumExternalFields() + 1) {
+            processed = protocol.getEmptyInternalFields() + rawPublication;
+        }
+        String padded = protocol.padMessage(processed);
+        // validate(): isControlMessage() again, then isBasicallyValid(), adheresToValueRestrictions() and
+        // the empty-contents check each split, and generateQuery() splits once more
+        for (int i = 0; i < 3; i++) {
+            blackhole.consume(padded.split(controlDelimiter, -1));
+        }
+        for (int i = 0; i < 3; i++) {
+            blackhole.consume(padded.split(delimiter, -1));
+        }
+        String[] parsed = padded.split(delimiter, -1);
+        blackhole.consume(Pattern.matches("^" + protocol.getWildcard() + "\\s*$", parsed[parsed.length - 1]));
+        blackhole.consume(padded.split(delimiter, -1));
+    }
+
+    @Benchmark
+    public void singlePass(Blackhole blackhole) {
+        blackhole.consume(protocol.isControlMessage(rawPublication));
+        String processed = rawPublication;
+        if (protocol.countFields(rawPublication) == protocol.getNumExternalFields() + 1) {
+            processed = protocol.getEmptyInternalFields() + rawPublication;
+        }
+        MessageFields fields = protocol.fieldsOf(protocol.padMessage(processed));
+        blackhole.consume(protocol.validate(fields, false));
+        blackhole.consume(fields.toArray());
+    }
+
+    @Benchmark
+    public Message constructMessage() {
+        return new Message(protocol, rawPublication, false);
+    }
+}
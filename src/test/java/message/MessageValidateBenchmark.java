@@ -0,0 +1,70 @@
+package message;
+
+import communicate.CommunicateArticle;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Validation cost per publication, tokenization excluded. interpreted walks the protocol's rules the way
+ * Protocol.validate used to: allowed values in a LinkedList scanned one by one per field, and the
+ * empty-contents check as a regex compiled from a pattern string built on every call. compiled is the
+ * MessageValidator every Message now goes through. The publication's type is the last allowed value, the
+ * worst case for the scan.
+ *
+ * Run with: gradle jmh -PjmhArgs='MessageValidateBenchmark'
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MessageValidateBenchmark {
+    private Protocol protocol;
+    private MessageFields fields;
+    private List<String[]> allowedFieldValues;
+
+    @Setup(Level.Trial)
+    public void tokenizePublication() {
+        protocol = CommunicateArticle.ARTICLE_PROTOCOL;
+        fields = protocol.fieldsOf(protocol.padMessage("12;3;Health;orig1;UMN;Some article contents"));
+        allowedFieldValues = new LinkedList<>();
+        allowedFieldValues.add(new String[]{""});
+        allowedFieldValues.add(new String[]{""});
+        allowedFieldValues.add(new String[]{"", "Sports", "Lifestyle", "Entertainment", "Business", "Technology",
+                "Science", "Politics", "Health"});
+        allowedFieldValues.add(new String[]{""});
+        allowedFieldValues.add(new String[]{""});
+    }
+
+    @Benchmark
+    public boolean interpreted() {
+        String wildcard = protocol.getWildcard();
+        if (fields.getMessage().length() != protocol.getMessageSize()
+                || fields.count() != protocol.getQueryFields().size() + 1) {
+            return false;
+        }
+        for (int i = 0; i < allowedFieldValues.size(); i++) {
+            String[] allowedValues = allowedFieldValues.get(i);
+            if (!(allowedValues.length == 1 && allowedValues[0].equals(wildcard))) {
+                boolean foundValidValue = false;
+                for (int j = 0; !foundValidValue && j < allowedValues.length; j++) {
+                    foundValidValue = fields.fieldEquals(i, allowedValues[j]);
+                }
+                if (!foundValidValue) {
+                    return false;
+                }
+            }
+        }
+        return !Pattern.matches("^" + wildcard + "\\s*$", fields.get(fields.count() - 1));
+    }
+
+    @Benchmark
+    public boolean compiled() {
+        return protocol.validate(fields, false);
+    }
+}
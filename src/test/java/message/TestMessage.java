@@ -0,0 +1,144 @@
+package message;
+
+import communicate.CommunicateArticle;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestMessage {
+    private static final Protocol PROTOCOL = CommunicateArticle.ARTICLE_PROTOCOL;
+
+    @Test
+    public void testQueryIsBuiltOnFirstUseAndDroppedOnRegenerate() {
+        Message subscription = new Message(PROTOCOL, ";;Sports;;UMN;", true);
+        assertTrue(subscription.getConstrainedQueryConditions().contains("type_Sports"));
+        int sports = PROTOCOL.getConditionDictionary().idOf("type_Sports");
+        subscription.setLastRetrievedIdFor(sports, 12);
+        subscription.setLastRetrievedIdFor(Query.QUERY_CURSOR, 7);
+        assertEquals(12, subscription.getLastRetrievedIdFor(sports));
+        assertEquals(7, subscription.getLastRetrievedIdFor(Query.QUERY_CURSOR));
+
+        subscription.regenerateQuery();
+        assertEquals(Query.NONE_RETRIEVED, subscription.getLastRetrievedIdFor(sports));
+        assertEquals(Query.NONE_RETRIEVED, subscription.getLastRetrievedIdFor(Query.QUERY_CURSOR));
+    }
+
+    @Test
+    public void testConditionIdsMatchConditionStrings() {
+        ConditionDictionary dictionary = PROTOCOL.getConditionDictionary();
+        Message publication = new Message(PROTOCOL, "3;1;Sports;orig0;UMN;content", false);
+        Set<String> expected = new HashSet<>();
+        for (int id : publication.getQueryConditionIds()) {
+            assertTrue(expected.add(dictionary.conditionOf(id)));
+        }
+        assertEquals(new HashSet<>(Arrays.asList("messageId_", "clientId_", "type_Sports", "type_", "orginator_",
+                "org_")), expected);
+        // free-form values are open conditions, and numeric ids are looked up directly
+        int[] openFields = publication.getOpenQueryConditionFields();
+        String[] openValues = publication.getOpenQueryConditionValues();
+        for (int i = 0; i < openFields.length; i++) {
+            assertTrue(expected.add(dictionary.conditionOf(openFields[i], openValues[i])));
+        }
+        assertTrue(expected.containsAll(Arrays.asList("orginator_orig0", "org_UMN")));
+        assertEquals(3, publication.getDirectMessageId());
+        assertEquals(1, publication.getDirectClientId());
+        expected.addAll(Arrays.asList("messageId_3", "clientId_1"));
+        assertEquals(expected, publication.getQueryConditions());
+
+        // so new values and ids never grow the dictionary, while other id forms stay conditions of their own
+        int dictionarySize = dictionary.size();
+        for (int id = 1000; id < 1100; id++) {
+            new Message(PROTOCOL, id + ";" + id + ";Sports;orig" + id + ";org" + id + ";content", false)
+                    .getQueryConditionIds();
+        }
+        assertEquals(dictionarySize, dictionary.size());
+        Message padded = new Message(PROTOCOL, "007;c1;Sports;orig0;UMN;content", false);
+        assertEquals(Query.NO_ID, padded.getDirectMessageId());
+        assertEquals(Query.NO_ID, padded.getDirectClientId());
+        assertTrue(padded.getConstrainedQueryConditions().containsAll(Arrays.asList("messageId_007", "clientId_c1")));
+
+        // "org" prefixes "orginator", so string lookups must pick the longer field
+        assertEquals(3, dictionary.fieldOf("orginator_x"));
+        assertEquals(4, dictionary.fieldOf("org_orginator_x"));
+        assertEquals("orginator_x", dictionary.valueOf(4, "org_orginator_x"));
+        assertEquals(dictionary.idOf(2, "Sports"), dictionary.idOf("type_Sports"));
+        assertEquals(ConditionDictionary.OPEN, dictionary.idOf("org_UMN"));
+    }
+
+    @Test
+    public void testValidatorEnforcesFieldCountValuesAndContents() {
+        for (String type : new String[]{"", "Sports", "Health", "Science"}) {
+            assertTrue(type, PROTOCOL.validate(PROTOCOL.padMessage("1;2;" + type + ";o;UMN;text"), false));
+        }
+        for (String type : new String[]{"sports", "Sport", "Sportss", "Healt", "Health "}) {
+            assertFalse(type, PROTOCOL.validate(PROTOCOL.padMessage("1;2;" + type + ";o;UMN;text"), false));
+        }
+        // publications need contents, subscriptions of a protocol without text search must not have any
+        assertFalse(PROTOCOL.validate(PROTOCOL.padMessage("1;2;Sports;o;UMN;  "), false));
+        assertTrue(PROTOCOL.validate(PROTOCOL.padMessage(";;Sports;;;"), true));
+        assertFalse(PROTOCOL.validate(PROTOCOL.padMessage(";;Sports;;;terms"), true));
+        assertFalse(PROTOCOL.validate(PROTOCOL.padMessage("1;2;Sports;o;text"), false));
+        assertFalse(PROTOCOL.validate("1;2;Sports;o;UMN;unpadded", false));
+    }
+
+    @Test
+    public void testInsertingIdsReturnsACopyWithParsedIds() {
+        Message fromClient = new Message(PROTOCOL, "Sports;orig1;UMN;Gophers win", false);
+        assertFalse(fromClient.hasMessageId());
+        assertFalse(fromClient.hasClientId());
+
+        Message withIds = fromClient.insertClientId("12").insertMessageId("105");
+        assertEquals(PROTOCOL.padMessage("105;12;Sports;orig1;UMN;Gophers win"), withIds.asRawMessage());
+        assertEquals(105, withIds.getMessageIdAsInt());
+        assertEquals(12, withIds.getClientIdAsInt());
+        assertTrue(withIds.getQueryConditions().contains("messageId_105"));
+        // the original is untouched
+        assertFalse(fromClient.hasMessageId());
+        assertTrue(fromClient.getQueryConditions().contains("messageId_"));
+        try {
+            fromClient.getMessageIdAsInt();
+            fail("got an id from a message without one");
+        } catch (IllegalArgumentException expected) {
+            // as Integer.parseInt("") would
+        }
+    }
+
+    @Test
+    public void testIdsThatAreNotNumbersArePresentButHaveNoIntValue() {
+        Message message = new Message(PROTOCOL, "m7;c3;Sports;orig1;UMN;Gophers win", false);
+        // present, so Publish won't overwrite them
+        assertTrue(message.hasMessageId());
+        assertTrue(message.hasClientId());
+        assertEquals("m7", message.getMessageId());
+        try {
+            message.getClientIdAsInt();
+            fail("got an int from client id c3");
+        } catch (IllegalArgumentException expected) {
+            // as Integer.parseInt("c3") would
+        }
+    }
+
+    @Test
+    public void testReceivedMessagesKeepIdsButHaveNoQuery() {
+        Message received = Message.received(PROTOCOL, "105;12;Sports;orig1;UMN;Gophers win");
+        assertEquals(PROTOCOL.padMessage("105;12;Sports;orig1;UMN;Gophers win"), received.asRawMessage());
+        assertEquals("105", received.getMessageId());
+        assertEquals("12", received.getClientId());
+        try {
+            received.getQueryConditions();
+            fail("received message built a query");
+        } catch (IllegalStateException expected) {
+            // received messages are never indexed or matched
+        }
+
+        Message clientIdMessage = Message.received(PROTOCOL, "clientId:7");
+        assertEquals("7", PROTOCOL.stripPadding(clientIdMessage.extractIdIfThisIsIdMessage()));
+    }
+}
@@ -0,0 +1,51 @@
+package message;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestMessageFields {
+
+    @Test
+    public void testSplitsLikeStringSplit() {
+        Random random = new Random(5105);
+        char[] alphabet = {'a', 'b', ';', ':', ' '};
+        for (String delimiter : new String[]{";", ":", "::"}) {
+            for (int trial = 0; trial < 1000; trial++) {
+                char[] message = new char[random.nextInt(40)];
+                for (int i = 0; i < message.length; i++) {
+                    message[i] = alphabet[random.nextInt(alphabet.length)];
+                }
+                String raw = new String(message);
+                String[] expected = raw.split(Pattern.quote(delimiter), -1);
+                MessageFields fields = MessageFields.of(raw, delimiter);
+                assertEquals(raw, expected.length, MessageFields.count(raw, delimiter));
+                assertEquals(raw, expected.length, fields.count());
+                for (int i = 0; i < expected.length; i++) {
+                    assertEquals(raw, expected[i], fields.get(i));
+                    assertTrue(raw, fields.fieldEquals(i, expected[i]));
+                }
+                assertArrayEquals(raw, expected, fields.toArray());
+            }
+        }
+    }
+
+    @Test
+    public void testFieldComparisons() {
+        MessageFields fields = MessageFields.of("1;2;Sports;;x   ;", ";");
+        assertTrue(fields.fieldEquals(2, "Sports"));
+        assertFalse(fields.fieldEquals(2, "Sport"));
+        assertTrue(fields.isEmpty(3));
+        assertTrue(fields.equalsIgnoringTrailingWhitespace(4, "x"));
+        assertTrue(fields.equalsIgnoringTrailingWhitespace(3, ""));
+        assertFalse(fields.equalsIgnoringTrailingWhitespace(2, ""));
+        assertEquals(Arrays.asList("1", "2", "Sports", "", "x   ", ""), Arrays.asList(fields.toArray()));
+    }
+}
@@ -0,0 +1,74 @@
+package message;
+
+import communicate.CommunicateArticle;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestMessageFrameCodec {
+    private static final Protocol PROTOCOL = CommunicateArticle.ARTICLE_PROTOCOL;
+
+    @Test
+    public void testFramesDecodeToTheUnpaddedMessage() throws IOException {
+        Random random = new Random(5105);
+        String[] values = {"", "0", "7", "42", "007", "-3", "2147483647", "UMN", "a b", "line\nbreak",
+                "\u00e9t\u00e9", "\ud83d\udcf0", "\ud83d", ":"};
+        List<String> messages = new ArrayList<>(Arrays.asList(
+                "", "clientId:12", "retrieveNotification:;;Sports;;;:3",
+                PROTOCOL.padMessage("fromCoordinator:1099"),
+                PROTOCOL.padMessage("12;3;Science;orig0;UMN;content")));
+        for (int trial = 0; trial < 2000; trial++) {
+            StringBuilder message = new StringBuilder();
+            // mostly a full set of fields, sometimes one too few or too many
+            int numFields = PROTOCOL.getQueryFields().size() + random.nextInt(3);
+            for (int field = 0; field < numFields; field++) {
+                if (field > 0) {
+                    message.append(PROTOCOL.getDelimiter());
+                }
+                message.append(values[random.nextInt(values.length)]);
+            }
+            messages.add(random.nextBoolean() ? message.toString() : message + "   ");
+        }
+
+        MessageFrameCodec writer = new MessageFrameCodec(PROTOCOL);
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        for (String message : messages) {
+            writer.write(frames, message);
+        }
+        MessageFrameCodec reader = new MessageFrameCodec(PROTOCOL);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frames.toByteArray()));
+        for (String message : messages) {
+            String expected = new String(PROTOCOL.stripPadding(message).getBytes("UTF-8"), "UTF-8");
+            assertEquals(expected, reader.read(in));
+        }
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void testPublicationsAreSmallerThanPaddedAndTruncationIsDetected() throws IOException {
+        String publication = "105;12;Sports;orig1;UMN;Gophers win";
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        new MessageFrameCodec(PROTOCOL).write(frame, PROTOCOL.padMessage(publication));
+        assertTrue(frame.size() < publication.length());
+
+        byte[] truncated = Arrays.copyOf(frame.toByteArray(), frame.size() - 1);
+        try {
+            new MessageFrameCodec(PROTOCOL).read(new DataInputStream(new ByteArrayInputStream(truncated)));
+            fail("read a truncated frame");
+        } catch (EOFException expected) {
+            // the frame's length prefix promised one more byte
+        }
+    }
+}
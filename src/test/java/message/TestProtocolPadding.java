@@ -0,0 +1,46 @@
+package message;
+
+import communicate.CommunicateArticle;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class TestProtocolPadding {
+    private static final Protocol PROTOCOL = CommunicateArticle.ARTICLE_PROTOCOL;
+
+    @Test
+    public void testPadsAndStripsLikeTheRegexVersions() throws IOException {
+        Random random = new Random(5105);
+        char[] alphabet = {'a', ';', ' ', '\t', '\n', '\r', '\f', '\u000B', '\u00A0'};
+        for (int trial = 0; trial < 1000; trial++) {
+            char[] message = new char[random.nextInt(60)];
+            for (int i = 0; i < message.length; i++) {
+                message[i] = alphabet[random.nextInt(alphabet.length)];
+            }
+            String raw = new String(message);
+            String stripped = raw.replaceAll("^\\s+", "").replaceAll("\\s+$", "");
+            StringBuilder padded = new StringBuilder(stripped);
+            while (padded.length() < PROTOCOL.getMessageSize()) {
+                padded.append(" ");
+            }
+            assertEquals(raw, stripped, PROTOCOL.stripPadding(raw));
+            assertEquals(raw, padded.toString(), PROTOCOL.padMessage(raw));
+            StringWriter written = new StringWriter();
+            PROTOCOL.writePadded(written, raw);
+            assertEquals(raw, padded.toString(), written.toString());
+        }
+    }
+
+    @Test
+    public void testAlreadyPaddedMessagesAreNotCopied() {
+        String padded = PROTOCOL.padMessage("1;;Sports;;UMN;content");
+        assertSame(padded, PROTOCOL.padMessage(padded));
+        String stripped = PROTOCOL.stripPadding(padded);
+        assertSame(stripped, PROTOCOL.stripPadding(stripped));
+    }
+}
@@ -0,0 +1,67 @@
+package server;
+
+import message.Message;
+import message.Protocol;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Multi-condition retrieve over a store of 1M messages. Each constrained field cycles through a different
+ * number of values, so adding conditions shrinks the result while the per-condition lists stay large.
+ *
+ * Run with: gradle jmh -PjmhArgs='StoreRetrieveBenchmark'
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class StoreRetrieveBenchmark {
+    private static final int NUM_MESSAGES = 1_000_000;
+    // values per field for clientId, f1, f2, f3, f4
+    private static final int[] FIELD_CARDINALITIES = {4, 5, 7, 3, 11};
+
+    @Param({"2", "3", "4", "5"})
+    public int numConditions;
+
+    private Protocol protocol;
+    private PairedKeyMessageStore store;
+    private String subscriptionQuery;
+
+    @Setup(Level.Trial)
+    public void populateStore() {
+        String[] anyValue = new String[]{""};
+        protocol = new Protocol(
+                Arrays.asList("f1", "f2", "f3", "f4"),
+                Arrays.asList(anyValue, anyValue, anyValue, anyValue),
+                ";",
+                "",
+                64);
+        store = new PairedKeyMessageStore(protocol);
+
+        for (int id = 0; id < NUM_MESSAGES; id++) {
+            StringBuilder raw = new StringBuilder().append(id);
+            for (int cardinality : FIELD_CARDINALITIES) {
+                raw.append(';').append(id % cardinality);
+            }
+            raw.append(";content").append(id);
+            store.publish(new Message(protocol, raw.toString(), false));
+        }
+
+        StringBuilder query = new StringBuilder();
+        for (int field = 0; field < FIELD_CARDINALITIES.length; field++) {
+            query.append(';').append(field < numConditions ? "0" : "");
+        }
+        subscriptionQuery = query.append(';').toString();
+    }
+
+    @Benchmark
+    public void retrieveFromStart(Blackhole blackhole) {
+        // a fresh subscription has no cursors, so it scans every list from the start
+        blackhole.consume(store.retrieve(new Message(protocol, subscriptionQuery, true)));
+    }
+}
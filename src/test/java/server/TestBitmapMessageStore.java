@@ -0,0 +1,46 @@
+package server;
+
+import communicate.CommunicateArticle;
+import message.Message;
+import message.Protocol;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestBitmapMessageStore {
+    private static final Protocol PROTOCOL = CommunicateArticle.ARTICLE_PROTOCOL;
+    private static final String[] TYPES = {"Sports", "Science", "Politics"};
+
+    private static Message article(int id, Random random) {
+        return new Message(PROTOCOL, id + ";" + random.nextInt(4) + ";" + TYPES[random.nextInt(TYPES.length)]
+                + ";orig" + random.nextInt(3) + ";UMN;content" + id, false);
+    }
+
+    @Test
+    public void testIncrementalRetrievesMatchPairedKeyStore() {
+        Random random = new Random(5105);
+        MessageStore bitmapStore = new BitmapMessageStore(PROTOCOL);
+        MessageStore pairedKeyStore = new PairedKeyMessageStore(PROTOCOL);
+        String[] queries = {";;Sports;;;", ";2;;orig1;;", ";;;;;", ";1;Science;orig0;UMN;", ";;Health;;;"};
+        List<Message[]> subscriptions = new ArrayList<>();
+        for (String query : queries) {
+            subscriptions.add(new Message[]{new Message(PROTOCOL, query, true), new Message(PROTOCOL, query, true)});
+        }
+
+        int nextId = 0;
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 50; i++) {
+                Message publication = article(nextId++, random);
+                bitmapStore.publish(publication);
+                pairedKeyStore.publish(publication);
+            }
+            for (Message[] pair : subscriptions) {
+                assertEquals(new ArrayList<>(pairedKeyStore.retrieve(pair[1])),
+                        new ArrayList<>(bitmapStore.retrieve(pair[0])));
+            }
+        }
+        assertEquals(nextId - 1, bitmapStore.getHighestMessageIdStored());
+    }
+}
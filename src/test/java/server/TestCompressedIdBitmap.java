@@ -0,0 +1,91 @@
+package server;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestCompressedIdBitmap {
+
+    private static TreeSet<Integer> randomIds(Random random, int maxId, int density) {
+        TreeSet<Integer> ids = new TreeSet<>();
+        for (int id = 0; id < maxId; id++) {
+            if (random.nextInt(density) == 0) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    private static CompressedIdBitmap toBitmap(Collection<Integer> ids, Random random) {
+        List<Integer> shuffled = new ArrayList<>(ids);
+        Collections.shuffle(shuffled, random);
+        CompressedIdBitmap bitmap = new CompressedIdBitmap();
+        for (int id : shuffled) {
+            bitmap.add(id);
+        }
+        return bitmap;
+    }
+
+    private static List<Integer> toList(CompressedIdBitmap bitmap) {
+        List<Integer> ids = new ArrayList<>();
+        for (int id = bitmap.nextAfter(-1); id >= 0; id = bitmap.nextAfter(id)) {
+            ids.add(id);
+        }
+        return ids;
+    }
+
+    @Test
+    public void testAndOrMatchSetOperations() {
+        Random random = new Random(5105);
+        // densities on both sides of the array/bitmap container threshold
+        int[] densities = {1, 2, 20, 300};
+        for (int a : densities) {
+            for (int b : densities) {
+                TreeSet<Integer> first = randomIds(random, 300_000, a);
+                TreeSet<Integer> second = randomIds(random, 300_000, b);
+                CompressedIdBitmap firstBitmap = toBitmap(first, random);
+                CompressedIdBitmap secondBitmap = toBitmap(second, random);
+                assertEquals(new ArrayList<>(first), toList(firstBitmap));
+                assertEquals(first.size(), firstBitmap.cardinality());
+
+                TreeSet<Integer> intersection = new TreeSet<>(first);
+                intersection.retainAll(second);
+                CompressedIdBitmap anded = firstBitmap.and(secondBitmap);
+                assertEquals(new ArrayList<>(intersection), toList(anded));
+                assertEquals(intersection.size(), anded.cardinality());
+
+                TreeSet<Integer> union = new TreeSet<>(first);
+                union.addAll(second);
+                CompressedIdBitmap ored = firstBitmap.or(secondBitmap);
+                assertEquals(new ArrayList<>(union), toList(ored));
+                assertEquals(union.size(), ored.cardinality());
+            }
+        }
+    }
+
+    @Test
+    public void testNextAfterAndDuplicates() {
+        CompressedIdBitmap bitmap = new CompressedIdBitmap();
+        assertTrue(bitmap.add(70_000));
+        assertTrue(bitmap.add(3));
+        assertTrue(!bitmap.add(3));
+        assertEquals(2, bitmap.cardinality());
+        assertEquals(3, bitmap.nextAfter(-1));
+        assertEquals(70_000, bitmap.nextAfter(3));
+        assertEquals(-1, bitmap.nextAfter(70_000));
+        assertEquals(70_000, bitmap.last());
+    }
+
+    @Test
+    public void testDenseIndexCostsAboutABitPerId() {
+        CompressedIdBitmap bitmap = new CompressedIdBitmap();
+        for (int id = 0; id < 1_000_000; id++) {
+            bitmap.add(id);
+        }
+        // dense buckets are whole 8KB bitmaps, so allow for the partially filled last one
+        assertTrue(bitmap.sizeInBytes() < 1_000_000 / 8 + 16 * 1024);
+    }
+}
@@ -0,0 +1,94 @@
+package server;
+
+import communicate.CommunicateArticle;
+import message.Message;
+import message.Protocol;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestMappedSegmentMessageStore {
+    private static final Protocol PROTOCOL = CommunicateArticle.ARTICLE_PROTOCOL;
+    private static final String[] TYPES = {"Sports", "Science", "Politics"};
+
+    private Path segmentDirectory;
+
+    @Before
+    public void createSegmentDirectory() throws IOException {
+        segmentDirectory = Files.createTempDirectory("segments");
+    }
+
+    @After
+    public void deleteSegmentDirectory() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(segmentDirectory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(segmentDirectory);
+    }
+
+    private static Message article(int id, Random random) {
+        return new Message(PROTOCOL, id + ";" + random.nextInt(4) + ";" + TYPES[random.nextInt(TYPES.length)]
+                + ";orig" + random.nextInt(3) + ";UMN;content" + id, false);
+    }
+
+    private int numSegmentFiles() throws IOException {
+        int count = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(segmentDirectory)) {
+            for (Path ignored : files) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testRetrievesMatchHeapStoreAcrossSegments() throws IOException {
+        Random random = new Random(5105);
+        // small segments so the test rolls over many of them
+        MessageStore mappedStore = new MappedSegmentMessageStore(
+                new PairedKeyMessageStore.Builder(PROTOCOL), segmentDirectory, 4096);
+        MessageStore heapStore = new PairedKeyMessageStore(PROTOCOL);
+        String[] queries = {";;Sports;;;", ";2;;orig1;;", ";;;;;"};
+        List<Message[]> subscriptions = new ArrayList<>();
+        for (String query : queries) {
+            subscriptions.add(new Message[]{new Message(PROTOCOL, query, true), new Message(PROTOCOL, query, true)});
+        }
+        for (int id = 0; id < 2000; id++) {
+            Message publication = article(id, random);
+            mappedStore.publish(publication);
+            heapStore.publish(publication);
+            if (id % 250 == 0) {
+                for (Message[] pair : subscriptions) {
+                    assertEquals(new ArrayList<>(heapStore.retrieve(pair[1])),
+                            new ArrayList<>(mappedStore.retrieve(pair[0])));
+                }
+            }
+        }
+        mappedStore.close();
+    }
+
+    @Test
+    public void testCompactionDeletesEmptiedSegments() throws IOException {
+        Random random = new Random(5105);
+        MessageStore mappedStore = new MappedSegmentMessageStore(
+                new PairedKeyMessageStore.Builder(PROTOCOL).maxMessagesRetained(100),
+                segmentDirectory, 4096);
+        for (int id = 0; id < 2000; id++) {
+            mappedStore.publish(article(id, random));
+        }
+        assertEquals(100, mappedStore.retrieve(new Message(PROTOCOL, ";;;;;", true)).size());
+        // 100 unpadded articles fit in a couple of 4KB segments; the rest were deleted
+        assertEquals(true, numSegmentFiles() < 10);
+        mappedStore.close();
+    }
+}
@@ -0,0 +1,387 @@
+package server;
+
+import bulletinboard.BulletinBoard;
+import communicate.CommunicateArticle;
+import message.Message;
+import message.Protocol;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestPairedKeyMessageStore {
+    private static final Protocol PROTOCOL = CommunicateArticle.ARTICLE_PROTOCOL;
+    private static final String[] TYPES = {"Sports", "Science", "Politics"};
+    private static final String[] QUERIES = {";;Sports;;;", ";2;;orig1;;", ";;;;;", ";1;Science;orig0;UMN;", ";;Health;;;",
+            "117;;;;;", "450;3;;;;"};
+
+    private static Message article(int id, Random random) {
+        return new Message(PROTOCOL, id + ";" + random.nextInt(4) + ";" + TYPES[random.nextInt(TYPES.length)]
+                + ";orig" + random.nextInt(3) + ";UMN;content" + id, false);
+    }
+
+    // Two digit ids only, so every one is the same size. The store keeps them unpadded.
+    private static Message fixedSizeArticle(int id) {
+        return new Message(PROTOCOL, id + ";1;Sports;orig0;UMN;content", false);
+    }
+
+    private static List<Message> subscriptions() {
+        List<Message> subscriptions = new ArrayList<>();
+        for (String query : QUERIES) {
+            subscriptions.add(new Message(PROTOCOL, query, true));
+        }
+        return subscriptions;
+    }
+
+    @Test
+    public void testWildcardFreeIndexMatchesWildcardBuckets() throws IOException {
+        Random random = new Random(5105);
+        MessageStore withBuckets = new PairedKeyMessageStore(PROTOCOL);
+        MessageStore withoutBuckets = new PairedKeyMessageStore.Builder(PROTOCOL)
+                .indexWildcardBuckets(false)
+                .build();
+        List<Message> bucketSubscriptions = subscriptions();
+        List<Message> bucketFreeSubscriptions = subscriptions();
+
+        int nextId = 0;
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 50; i++) {
+                // publish pairs of ids swapped, as replicas catching up do
+                Message publication = article(nextId + (i ^ 1), random);
+                withBuckets.publish(publication);
+                withoutBuckets.publish(publication);
+            }
+            nextId += 50;
+            for (int s = 0; s < QUERIES.length; s++) {
+                Set<String> expected = withBuckets.retrieve(bucketSubscriptions.get(s));
+                Set<String> actual = withoutBuckets.retrieve(bucketFreeSubscriptions.get(s));
+                assertEquals(new ArrayList<>(expected), new ArrayList<>(actual));
+            }
+        }
+    }
+
+    @Test
+    public void testPublishAllMatchesSinglePublishes() throws IOException {
+        Random random = new Random(5105);
+        MessageStore reference = new PairedKeyMessageStore(PROTOCOL);
+        MessageStore[] batched = {
+                new PairedKeyMessageStore(PROTOCOL),
+                new PairedKeyMessageStore.Builder(PROTOCOL).indexWildcardBuckets(false).build(),
+                new BitmapMessageStore(PROTOCOL)};
+        List<List<Message>> subscriptions = new ArrayList<>();
+        for (MessageStore ignored : batched) {
+            subscriptions.add(subscriptions());
+        }
+        List<Message> referenceSubscriptions = subscriptions();
+
+        List<Message> published = new ArrayList<>();
+        for (int round = 0; round < 10; round++) {
+            List<Message> batch = new ArrayList<>();
+            for (int id = round * 100; id < (round + 1) * 100; id++) {
+                batch.add(article(id, random));
+            }
+            // out of order, with repeats within the batch and of earlier batches
+            Collections.shuffle(batch, random);
+            batch.add(batch.get(0));
+            if (!published.isEmpty()) {
+                batch.add(published.get(random.nextInt(published.size())));
+            }
+            int numNew = 0;
+            for (Message publication : batch) {
+                numNew += reference.publish(publication) ? 1 : 0;
+            }
+            for (MessageStore store : batched) {
+                assertEquals(numNew, store.publishAll(batch));
+            }
+            published.addAll(batch);
+
+            for (int q = 0; q < QUERIES.length; q++) {
+                List<String> expected = new ArrayList<>(reference.retrieve(referenceSubscriptions.get(q)));
+                for (int b = 0; b < batched.length; b++) {
+                    assertEquals(expected, new ArrayList<>(batched[b].retrieve(subscriptions.get(b).get(q))));
+                }
+            }
+        }
+        for (MessageStore store : batched) {
+            assertEquals(999, store.getHighestMessageIdStored());
+        }
+    }
+
+    @Test
+    public void testRetrieveRangeIsASliceOfRetrieveWithoutSideEffects() throws IOException {
+        Random random = new Random(5105);
+        MessageStore[] stores = {
+                new PairedKeyMessageStore(PROTOCOL),
+                new PairedKeyMessageStore.Builder(PROTOCOL).indexWildcardBuckets(false).build(),
+                new BitmapMessageStore(PROTOCOL)};
+        for (int id = 0; id < 1000; id++) {
+            Message publication = article(id, random);
+            for (MessageStore store : stores) {
+                store.publish(publication);
+            }
+        }
+        for (MessageStore store : stores) {
+            for (String query : QUERIES) {
+                Message subscription = new Message(PROTOCOL, query, true);
+                List<String> all = new ArrayList<>(store.retrieve(new Message(PROTOCOL, query, true)));
+                List<String> inRange = new ArrayList<>();
+                for (String publication : all) {
+                    int id = PROTOCOL.getMessageIdAsInt(publication);
+                    if (id > 250 && id <= 700 && inRange.size() < 40) {
+                        inRange.add(publication);
+                    }
+                }
+                assertEquals(inRange, new ArrayList<>(store.retrieveRange(subscription, 250, 700, 40)));
+                assertEquals(0, store.retrieveRange(subscription, 700, 700, 40).size());
+                // the subscription's cursors weren't moved
+                assertEquals(all, new ArrayList<>(store.retrieve(subscription)));
+            }
+        }
+    }
+
+    @Test
+    public void testPagesCoverMatchesInEitherOrder() throws IOException {
+        Random random = new Random(5105);
+        MessageStore[] stores = {
+                new PairedKeyMessageStore(PROTOCOL),
+                new PairedKeyMessageStore.Builder(PROTOCOL).indexWildcardBuckets(false).build(),
+                new BitmapMessageStore(PROTOCOL)};
+        for (int id = 0; id < 1000; id++) {
+            Message publication = article(id, random);
+            for (MessageStore store : stores) {
+                store.publish(publication);
+            }
+        }
+        for (MessageStore store : stores) {
+            for (String query : QUERIES) {
+                Message subscription = new Message(PROTOCOL, query, true);
+                List<String> all = new ArrayList<>(store.retrieve(new Message(PROTOCOL, query, true)));
+                List<String> newestFirst = new ArrayList<>(all);
+                Collections.reverse(newestFirst);
+                assertEquals(all, readInPages(store, subscription, 37, false));
+                assertEquals(newestFirst, readInPages(store, subscription, 37, true));
+                // the subscription's cursors weren't moved
+                assertEquals(all, new ArrayList<>(store.retrieve(subscription)));
+            }
+        }
+    }
+
+    private static List<String> readInPages(MessageStore store, Message query, int limit, boolean newestFirst) {
+        List<String> read = new ArrayList<>();
+        int resumeAfterId = MessageStore.FIRST_PAGE;
+        List<String> page;
+        while (!(page = store.retrievePage(query, resumeAfterId, limit, newestFirst)).isEmpty()) {
+            assertTrue(page.size() <= limit);
+            read.addAll(page);
+            resumeAfterId = PROTOCOL.getMessageIdAsInt(page.get(page.size() - 1));
+        }
+        return read;
+    }
+
+    @Test
+    public void testReplyThreadsAreReadDepthFirst() throws IOException {
+        Protocol bbProtocol = BulletinBoard.BBPROTOCOL;
+        MessageStore store = new PairedKeyMessageStore.Builder(bbProtocol)
+                .indexReplyThreads("replyTo")
+                .build();
+        // 0 -> {1 -> {3, 5}, 4}, 2 -> {6}, and 7 claiming to reply to a later post
+        int[] replyTo = {-1, 0, -1, 1, 0, 1, 2, 9};
+        List<Message> posts = new ArrayList<>();
+        for (int id = 0; id < replyTo.length; id++) {
+            String parent = replyTo[id] < 0 ? "" : String.valueOf(replyTo[id]);
+            posts.add(new Message(bbProtocol, id + ";1;" + parent + ";title" + id + ";body", false));
+        }
+        store.publishAll(posts.subList(0, 4));
+        for (Message post : posts.subList(4, posts.size())) {
+            store.publish(post);
+        }
+
+        List<String> thread = store.retrieveThread(0);
+        List<Integer> threadIds = new ArrayList<>();
+        for (String post : thread) {
+            threadIds.add(bbProtocol.getMessageIdAsInt(post));
+        }
+        assertEquals(Arrays.asList(0, 1, 3, 5, 4), threadIds);
+        assertEquals(2, store.retrieveThread(2).size());
+        assertEquals(0, store.retrieveThread(42).size());
+
+        Map<Integer, Integer> topLevelReplies = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> post : store.retrieveTopLevelPosts().entrySet()) {
+            topLevelReplies.put(bbProtocol.getMessageIdAsInt(post.getKey()), post.getValue());
+        }
+        Map<Integer, Integer> expected = new LinkedHashMap<>();
+        expected.put(0, 2);
+        expected.put(2, 1);
+        expected.put(7, 0);
+        assertEquals(expected, topLevelReplies);
+    }
+
+    @Test
+    public void testTermSearchCombinesWithFieldConditions() throws IOException {
+        Protocol bbProtocol = BulletinBoard.BBPROTOCOL;
+        MessageStore withBuckets = new PairedKeyMessageStore(bbProtocol);
+        MessageStore withoutBuckets = new PairedKeyMessageStore.Builder(bbProtocol)
+                .indexWildcardBuckets(false)
+                .build();
+        String[] posts = {
+                "0;1;;Rust tips;Borrowing, explained.",
+                "1;2;;Java tips;The borrow checker is Rust's",
+                "2;1;0;Re: Rust tips;RUST borrowing again",
+                "3;2;;Lunch;nothing to see"};
+        for (String post : posts) {
+            withBuckets.publish(new Message(bbProtocol, post, false));
+            withoutBuckets.publish(new Message(bbProtocol, post, false));
+        }
+
+        Map<String, List<Integer>> expected = new LinkedHashMap<>();
+        // terms come from the title and contents alike, case-insensitively
+        expected.put(";;;;rust", Arrays.asList(0, 1, 2));
+        expected.put(";;;;Rust borrowing", Arrays.asList(0, 2));
+        expected.put(";1;;;rust tips", Arrays.asList(0, 2));
+        expected.put(";2;;;rust tips", Arrays.asList(1));
+        expected.put(";;;;rust lunch", Collections.emptyList());
+        for (Map.Entry<String, List<Integer>> search : expected.entrySet()) {
+            for (MessageStore store : Arrays.asList(withBuckets, withoutBuckets)) {
+                List<Integer> ids = new ArrayList<>();
+                for (String post : store.retrieve(new Message(bbProtocol, search.getKey(), true))) {
+                    ids.add(bbProtocol.getMessageIdAsInt(post));
+                }
+                assertEquals(search.getKey(), search.getValue(), ids);
+            }
+        }
+
+        // a standing search only returns what was published since it last ran
+        Message standing = new Message(bbProtocol, ";;;;borrowing", true);
+        assertEquals(2, withBuckets.retrieve(standing).size());
+        withBuckets.publish(new Message(bbProtocol, "4;1;;Borrowing;more", false));
+        Set<String> newMatches = withBuckets.retrieve(standing);
+        assertEquals(1, newMatches.size());
+        assertEquals(4, bbProtocol.getMessageIdAsInt(newMatches.iterator().next()));
+    }
+
+    @Test
+    public void testRepublishIsIgnored() {
+        Random random = new Random(5105);
+        MessageStore store = new PairedKeyMessageStore(PROTOCOL);
+        Message publication = article(7, random);
+        assertTrue(store.publish(publication));
+        assertTrue(!store.publish(publication));
+        assertEquals(1, store.retrieve(new Message(PROTOCOL, ";;;;;", true)).size());
+        assertEquals(7, store.getHighestMessageIdStored());
+    }
+
+    @Test
+    public void testStoresMessagesWithoutPadding() {
+        MessageStore store = new PairedKeyMessageStore(PROTOCOL);
+        Message publication = fixedSizeArticle(12);
+        assertEquals(PROTOCOL.getMessageSize(), publication.asRawMessage().length());
+        store.publish(publication);
+        assertEquals(Collections.singleton("12;1;Sports;orig0;UMN;content"),
+                store.retrieve(new Message(PROTOCOL, ";;Sports;;;", true)));
+    }
+
+    @Test
+    public void testRetentionByCountPrunesOldestAndKeepsCursors() throws IOException {
+        Random random = new Random(5105);
+        MessageStore store = new PairedKeyMessageStore.Builder(PROTOCOL)
+                .maxMessagesRetained(100)
+                .build();
+        Message subscription = new Message(PROTOCOL, ";;;;;", true);
+        for (int id = 0; id < 150; id++) {
+            store.publish(article(id, random));
+        }
+        assertEquals(100, store.retrieve(subscription).size());
+
+        for (int id = 150; id < 160; id++) {
+            store.publish(article(id, random));
+        }
+        // only the new messages, even though compaction ran in between
+        assertEquals(10, store.retrieve(subscription).size());
+        assertEquals(100, store.retrieve(new Message(PROTOCOL, ";;;;;", true)).size());
+        // already pruned, so a late replica copy isn't resurrected
+        assertTrue(!store.publish(article(3, random)));
+    }
+
+    @Test
+    public void testCostAndPostingListsStayFlatAtRetentionLimit() throws IOException {
+        PairedKeyMessageStore bounded = new PairedKeyMessageStore.Builder(PROTOCOL).maxMessagesRetained(1000).build();
+        int dictionarySize = PROTOCOL.getConditionDictionary().size();
+        int id = 0;
+        for (int round = 0; round < 6; round++) {
+            long prunePasses = bounded.getNumPrunePasses();
+            long listsPruned = bounded.getNumListsPruned();
+            for (int i = 0; i < 5000; i++, id++) {
+                // a new client and org on every post, so each leaves two lists behind that compaction must drop
+                bounded.publish(new Message(PROTOCOL, id + ";" + id + ";" + TYPES[id % TYPES.length]
+                        + ";orig0;org" + id + ";content", false));
+            }
+            assertTrue(bounded.getNumMessagesStored() <= 1000);
+            assertTrue("posting lists: " + bounded.getNumPostingLists(), bounded.getNumPostingLists() < 3 * 1000);
+            // free-form orgs get lists of their own, not dictionary ids that would outlive them
+            assertEquals(dictionarySize, PROTOCOL.getConditionDictionary().size());
+            // Round after round, lists are pruned in batches rather than on every publish, and a pass walks only
+            // the lists still live. Pruning per eviction, over every list ever made, grew with the history.
+            prunePasses = bounded.getNumPrunePasses() - prunePasses;
+            listsPruned = bounded.getNumListsPruned() - listsPruned;
+            assertTrue("round " + round + ": " + prunePasses + " prune passes",
+                    prunePasses <= 5000 / PairedKeyMessageStore.MIN_PRUNE_BATCH + 1);
+            assertTrue("round " + round + ": " + listsPruned + " lists pruned", listsPruned <= prunePasses * 3 * 1000);
+        }
+    }
+
+    @Test
+    public void testConcurrentPublishesLeaveNothingBelowCompaction() throws Exception {
+        PairedKeyMessageStore store = new PairedKeyMessageStore.Builder(PROTOCOL).maxMessagesRetained(50).build();
+        int numThreads = 8;
+        AtomicInteger nextId = new AtomicInteger(0);
+        ExecutorService publishers = Executors.newFixedThreadPool(numThreads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> done = new ArrayList<>();
+        for (int t = 0; t < numThreads; t++) {
+            Random random = new Random(5105 + t);
+            done.add(publishers.submit(() -> {
+                start.await();
+                // ids are handed out in order but reach the store slightly out of order, racing compaction
+                for (int id = nextId.getAndIncrement(); id < 100000; id = nextId.getAndIncrement()) {
+                    store.publish(article(id, random));
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : done) {
+            future.get();
+        }
+        publishers.shutdown();
+
+        // a body left in the table below the compaction point would be counted but never retrieved
+        assertEquals(store.getNumMessagesStored(), store.retrieve(new Message(PROTOCOL, ";;;;;", true)).size());
+        assertTrue(store.getNumMessagesStored() <= 50);
+    }
+
+    @Test
+    public void testRetentionByBytesAndAge() throws IOException, InterruptedException {
+        Random random = new Random(5105);
+        long bytesPerMessage = "10;1;Sports;orig0;UMN;content".length();
+        MessageStore bytesBounded = new PairedKeyMessageStore.Builder(PROTOCOL)
+                .maxBytesRetained(bytesPerMessage * 20)
+                .build();
+        MessageStore ageBounded = new PairedKeyMessageStore.Builder(PROTOCOL)
+                .maxMessageAgeMillis(50)
+                .build();
+        for (int id = 10; id < 40; id++) {
+            bytesBounded.publish(fixedSizeArticle(id));
+            ageBounded.publish(article(id, random));
+        }
+        assertEquals(20, bytesBounded.retrieve(new Message(PROTOCOL, ";;;;;", true)).size());
+
+        Thread.sleep(100);
+        ageBounded.publish(article(40, random));
+        assertEquals(1, ageBounded.retrieve(new Message(PROTOCOL, ";;;;;", true)).size());
+    }
+}
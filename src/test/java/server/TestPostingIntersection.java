@@ -0,0 +1,119 @@
+package server;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestPostingIntersection {
+
+    @Test
+    public void testIntersectionMatchesNaiveIntersection() {
+        Random random = new Random(5105);
+        for (int trial = 0; trial < 200; trial++) {
+            int numLists = 1 + random.nextInt(5);
+            PublicationList[] lists = new PublicationList[numLists];
+            Set<Integer> expected = null;
+            for (int l = 0; l < numLists; l++) {
+                lists[l] = new PublicationList();
+                Set<Integer> ids = new TreeSet<>();
+                int density = 1 + random.nextInt(4);
+                for (int id = 0; id < 2000; id++) {
+                    if (random.nextInt(density) == 0) {
+                        ids.add(id);
+                    }
+                }
+                // exercise the out-of-order insert path as well as appends
+                List<Integer> shuffled = new ArrayList<>(ids);
+                Collections.shuffle(shuffled.subList(shuffled.size() / 2, shuffled.size()), random);
+                for (int id : shuffled) {
+                    lists[l].synchronizedAdd(id);
+                }
+                if (expected == null) {
+                    expected = ids;
+                } else {
+                    expected.retainAll(ids);
+                }
+            }
+
+            int after = random.nextInt(500) - 1;
+            PostingCursor[] cursors = new PostingCursor[numLists];
+            for (int l = 0; l < numLists; l++) {
+                cursors[l] = lists[l].getIdsAfter(after);
+            }
+            List<Integer> actual = new ArrayList<>();
+            PostingIntersection intersection = new PostingIntersection(cursors);
+            int id;
+            while ((id = intersection.nextMatch()) != PostingCursor.NO_MORE) {
+                actual.add(id);
+            }
+
+            List<Integer> expectedAfter = new ArrayList<>();
+            for (int e : expected) {
+                if (e > after) {
+                    expectedAfter.add(e);
+                }
+            }
+            assertEquals(expectedAfter, actual);
+        }
+    }
+
+    @Test
+    public void testPreviousMatchReadsNewestFirst() {
+        Random random = new Random(5105);
+        for (int trial = 0; trial < 200; trial++) {
+            int numLists = 1 + random.nextInt(4);
+            PublicationList[] lists = new PublicationList[numLists];
+            Set<Integer> expected = null;
+            for (int l = 0; l < numLists; l++) {
+                lists[l] = new PublicationList();
+                Set<Integer> ids = new TreeSet<>();
+                int density = 1 + random.nextInt(4);
+                for (int id = 0; id < 2000; id++) {
+                    if (random.nextInt(density) == 0) {
+                        ids.add(id);
+                        lists[l].synchronizedAdd(id);
+                    }
+                }
+                if (expected == null) {
+                    expected = ids;
+                } else {
+                    expected.retainAll(ids);
+                }
+            }
+
+            int after = random.nextInt(1000) - 1;
+            int through = after + random.nextInt(1000);
+            PostingCursor[] cursors = new PostingCursor[numLists];
+            for (int l = 0; l < numLists; l++) {
+                cursors[l] = lists[l].getIdsBetween(after, through);
+            }
+            List<Integer> actual = new ArrayList<>();
+            PostingIntersection intersection = new PostingIntersection(cursors);
+            int id;
+            while ((id = intersection.previousMatch()) != PostingCursor.NO_MORE) {
+                actual.add(id);
+            }
+
+            List<Integer> expectedBetween = new ArrayList<>();
+            for (int e : expected) {
+                if (e > after && e <= through) {
+                    expectedBetween.add(e);
+                }
+            }
+            Collections.reverse(expectedBetween);
+            assertEquals(expectedBetween, actual);
+        }
+    }
+
+    @Test
+    public void testEmptyCursorEndsIntersection() {
+        PublicationList list = new PublicationList();
+        list.synchronizedAdd(1);
+        list.synchronizedAdd(2);
+        PostingIntersection intersection = new PostingIntersection(
+                new PostingCursor[]{list.getIdsAfter(-1), PostingCursor.EMPTY});
+        assertEquals(PostingCursor.NO_MORE, intersection.nextMatch());
+    }
+}
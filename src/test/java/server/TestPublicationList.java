@@ -0,0 +1,81 @@
+package server;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestPublicationList {
+
+    @Test
+    public void testReadersSeeSortedGrowingListsDuringWrites() throws Exception {
+        PublicationList list = new PublicationList();
+        int numWriters = 4;
+        int idsPerWriter = 20000;
+        ExecutorService threads = Executors.newFixedThreadPool(numWriters + 2);
+        AtomicBoolean writing = new AtomicBoolean(true);
+        List<Future<?>> writers = new ArrayList<>();
+        for (int w = 0; w < numWriters; w++) {
+            int writer = w;
+            writers.add(threads.submit(() -> {
+                // interleaved ids, so writers race on appends and sometimes insert out of order
+                for (int i = 0; i < idsPerWriter; i++) {
+                    list.synchronizedAdd(i * numWriters + writer);
+                }
+            }));
+        }
+        List<Future<Integer>> readers = new ArrayList<>();
+        for (int r = 0; r < 2; r++) {
+            readers.add(threads.submit(() -> {
+                int reads = 0;
+                int lastSize = 0;
+                while (writing.get()) {
+                    PostingCursor cursor = list.getIdsAfter(PostingCursor.NO_MORE);
+                    int size = cursor.remaining();
+                    assertTrue(size >= lastSize);
+                    int previous = -1;
+                    while (cursor.hasNext()) {
+                        int id = cursor.next();
+                        assertTrue(id > previous);
+                        previous = id;
+                    }
+                    lastSize = size;
+                    reads++;
+                }
+                return reads;
+            }));
+        }
+        for (Future<?> writer : writers) {
+            writer.get();
+        }
+        writing.set(false);
+        for (Future<Integer> reader : readers) {
+            assertTrue(reader.get() > 0);
+        }
+        threads.shutdown();
+
+        assertEquals(numWriters * idsPerWriter, list.size());
+        PostingCursor all = list.getIdsAfter(PostingCursor.NO_MORE);
+        for (int id = 0; id < numWriters * idsPerWriter; id++) {
+            assertEquals(id, all.next());
+        }
+    }
+
+    @Test
+    public void testCursorKeepsViewAcrossPruneAndInsert() {
+        PublicationList list = new PublicationList(new int[0], 0);
+        for (int id = 0; id < 100; id += 2) {
+            list.synchronizedAdd(id);
+        }
+        PostingCursor before = list.getIdsAfter(PostingCursor.NO_MORE);
+        list.removeThrough(49);
+        list.synchronizedAdd(51);
+        assertEquals(50, before.remaining());
+        assertEquals(26, list.size());
+        assertEquals(50, list.getIdsAfter(PostingCursor.NO_MORE).next());
+    }
+}
@@ -0,0 +1,113 @@
+package server;
+
+import communicate.CommunicateArticle;
+import message.Message;
+import message.Protocol;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class TestStoreSnapshot {
+    private static final Protocol PROTOCOL = CommunicateArticle.ARTICLE_PROTOCOL;
+    private static final String[] TYPES = {"Sports", "Science", "Politics"};
+    private static final String[] QUERIES = {";;Sports;;;", ";2;;orig1;;", ";;;;;", ";3;;;;", "450;;;;;"};
+
+    private Path stateDirectory;
+
+    @Before
+    public void createStateDirectory() throws IOException {
+        stateDirectory = Files.createTempDirectory("store-state");
+    }
+
+    @After
+    public void deleteStateDirectory() throws IOException {
+        for (Path file : listFiles()) {
+            Files.delete(file);
+        }
+        Files.delete(stateDirectory);
+    }
+
+    private List<Path> listFiles() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(stateDirectory)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
+    private static Message article(int id, Random random) {
+        return new Message(PROTOCOL, id + ";" + random.nextInt(4) + ";" + TYPES[random.nextInt(TYPES.length)]
+                + ";orig" + random.nextInt(3) + ";UMN;content" + id, false);
+    }
+
+    private PairedKeyMessageStore.Builder durableBuilder() {
+        return new PairedKeyMessageStore.Builder(PROTOCOL).writeAheadLog(stateDirectory);
+    }
+
+    private static void assertSameRetrieves(MessageStore expected, MessageStore actual) {
+        for (String query : QUERIES) {
+            assertEquals(new ArrayList<>(expected.retrieve(new Message(PROTOCOL, query, true))),
+                    new ArrayList<>(actual.retrieve(new Message(PROTOCOL, query, true))));
+        }
+    }
+
+    @Test
+    public void testRestartLoadsSnapshotAndReplaysTail() throws IOException {
+        Random random = new Random(5105);
+        PairedKeyMessageStore store = durableBuilder().build();
+        MessageStore expected = new PairedKeyMessageStore(PROTOCOL);
+        for (int id = 0; id < 600; id++) {
+            Message publication = article(id, random);
+            store.publish(publication);
+            expected.publish(publication);
+            if (id == 399) {
+                store.snapshot();
+            }
+        }
+        store.close();
+
+        // the snapshot and the log generation it started; everything older was deleted
+        int numSnapshots = 0;
+        for (Path file : listFiles()) {
+            numSnapshots += file.getFileName().toString().startsWith(StoreSnapshot.SNAPSHOT_PREFIX) ? 1 : 0;
+        }
+        assertEquals(1, numSnapshots);
+        assertEquals(2, listFiles().size());
+
+        MessageStore restarted = durableBuilder().build();
+        assertEquals(599, restarted.getHighestMessageIdStored());
+        assertSameRetrieves(expected, restarted);
+        restarted.close();
+    }
+
+    @Test
+    public void testSnapshotKeepsCompactionPoint() throws IOException {
+        Random random = new Random(5105);
+        PairedKeyMessageStore store = durableBuilder().maxMessagesRetained(100).build();
+        MessageStore expected = new PairedKeyMessageStore.Builder(PROTOCOL).maxMessagesRetained(100).build();
+        for (int id = 0; id < 500; id++) {
+            Message publication = article(id, random);
+            store.publish(publication);
+            expected.publish(publication);
+        }
+        store.snapshot();
+        store.close();
+
+        MessageStore restarted = durableBuilder().maxMessagesRetained(100).build();
+        assertSameRetrieves(expected, restarted);
+        // already compacted away before the restart, so not accepted again
+        assertFalse(restarted.publish(article(42, random)));
+        restarted.close();
+    }
+}
@@ -0,0 +1,142 @@
+package server;
+
+import communicate.CommunicateArticle;
+import message.Message;
+import message.Protocol;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestTieredMessageStore {
+    private static final Protocol PROTOCOL = CommunicateArticle.ARTICLE_PROTOCOL;
+    private static final String[] TYPES = {"Sports", "Science", "Politics"};
+    private static final String[] QUERIES = {";;Sports;;;", ";2;;orig1;;", ";;;;;", ";1;Science;orig0;UMN;", ";;Health;;;",
+            "117;;;;;", "450;3;;;;"};
+
+    private Path coldDirectory;
+
+    @Before
+    public void createColdDirectory() throws IOException {
+        coldDirectory = Files.createTempDirectory("cold");
+    }
+
+    @After
+    public void deleteColdDirectory() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(coldDirectory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(coldDirectory);
+    }
+
+    private static Message article(int id, Random random) {
+        return new Message(PROTOCOL, id + ";" + random.nextInt(4) + ";" + TYPES[random.nextInt(TYPES.length)]
+                + ";orig" + random.nextInt(3) + ";UMN;content" + id, false);
+    }
+
+    private TieredMessageStore tieredStore(boolean indexWildcardBuckets) throws IOException {
+        return new TieredMessageStore.Builder(PROTOCOL, coldDirectory)
+                .hotMessages(100)
+                .segmentMessages(64)
+                .indexWildcardBuckets(indexWildcardBuckets)
+                .build();
+    }
+
+    @Test
+    public void testTiersMergeLikeASingleStore() throws IOException {
+        for (boolean indexWildcardBuckets : new boolean[]{true, false}) {
+            Random random = new Random(5105);
+            MessageStore expected = new PairedKeyMessageStore(PROTOCOL);
+            TieredMessageStore tiered = tieredStore(indexWildcardBuckets);
+            List<Message> expectedSubscriptions = new ArrayList<>();
+            List<Message> tieredSubscriptions = new ArrayList<>();
+            for (String query : QUERIES) {
+                expectedSubscriptions.add(new Message(PROTOCOL, query, true));
+                tieredSubscriptions.add(new Message(PROTOCOL, query, true));
+            }
+
+            int nextId = 0;
+            for (int round = 0; round < 20; round++) {
+                List<Message> batch = new ArrayList<>();
+                for (int i = 0; i < 50; i++) {
+                    // publish pairs of ids swapped, as replicas catching up do
+                    batch.add(article(nextId + (i ^ 1), random));
+                }
+                nextId += 50;
+                for (Message publication : batch.subList(0, 25)) {
+                    expected.publish(publication);
+                    tiered.publish(publication);
+                }
+                expected.publishAll(batch.subList(25, 50));
+                tiered.publishAll(batch.subList(25, 50));
+                for (int s = 0; s < QUERIES.length; s++) {
+                    assertEquals(new ArrayList<>(expected.retrieve(expectedSubscriptions.get(s))),
+                            new ArrayList<>(tiered.retrieve(tieredSubscriptions.get(s))));
+                }
+            }
+            assertTrue(tiered.getNumColdSegments() > 0);
+            assertTrue(tiered.getNumHotMessages() < 100 + 64);
+
+            for (String query : QUERIES) {
+                Message subscription = new Message(PROTOCOL, query, true);
+                assertEquals(new ArrayList<>(expected.retrieve(new Message(PROTOCOL, query, true))),
+                        new ArrayList<>(tiered.retrieve(new Message(PROTOCOL, query, true))));
+                // ranges and pages that straddle the tiers
+                assertEquals(new ArrayList<>(expected.retrieveRange(subscription, 150, 950, 60)),
+                        new ArrayList<>(tiered.retrieveRange(subscription, 150, 950, 60)));
+                assertEquals(expected.retrievePage(subscription, 990, 30, true),
+                        tiered.retrievePage(subscription, 990, 30, true));
+                assertEquals(expected.retrievePage(subscription, MessageStore.FIRST_PAGE, 1000, true),
+                        tiered.retrievePage(subscription, MessageStore.FIRST_PAGE, 1000, true));
+            }
+            assertEquals(expected.getHighestMessageIdStored(), tiered.getHighestMessageIdStored());
+            tiered.close();
+            deleteColdDirectory();
+            createColdDirectory();
+        }
+    }
+
+    @Test
+    public void testLatePublicationsAndRestartKeepColdHistory() throws IOException {
+        Random random = new Random(5105);
+        TieredMessageStore tiered = tieredStore(true);
+        Map<Integer, Message> published = new TreeMap<>();
+        for (int id = 0; id < 1000; id++) {
+            // 500 turns up last, long after its neighbours went cold
+            if (id != 500) {
+                published.put(id, article(id, random));
+                tiered.publish(published.get(id));
+            }
+        }
+        Message late = article(500, random);
+        published.put(500, late);
+        assertTrue(tiered.publish(late));
+        assertEquals(false, tiered.publish(late));
+        Message all = new Message(PROTOCOL, ";;;;;", true);
+        assertEquals(1000, tiered.retrieve(all).size());
+        int coldThroughId = 1000 - tiered.getNumHotMessages() - 1;
+        tiered.close();
+        // every segment is unmapped and dropped, so its file can go
+        assertEquals(0, tiered.getNumColdSegments());
+
+        TieredMessageStore restarted = tieredStore(true);
+        List<String> expected = new ArrayList<>();
+        for (Message message : published.values()) {
+            if (PROTOCOL.getMessageIdAsInt(message.asRawMessage()) <= coldThroughId) {
+                expected.add(PROTOCOL.stripPadding(message.asRawMessage()));
+            }
+        }
+        assertEquals(expected, new ArrayList<>(restarted.retrieve(new Message(PROTOCOL, ";;;;;", true))));
+        restarted.close();
+    }
+}
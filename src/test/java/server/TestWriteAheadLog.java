@@ -0,0 +1,153 @@
+package server;
+
+import communicate.CommunicateArticle;
+import message.Message;
+import message.Protocol;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestWriteAheadLog {
+    private static final Protocol PROTOCOL = CommunicateArticle.ARTICLE_PROTOCOL;
+    private static final String[] TYPES = {"Sports", "Science", "Politics"};
+
+    private Path logDirectory;
+
+    @Before
+    public void createLogDirectory() throws IOException {
+        logDirectory = Files.createTempDirectory("wal");
+    }
+
+    @After
+    public void deleteLogDirectory() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(logDirectory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(logDirectory);
+    }
+
+    private static Message article(int id, Random random) {
+        return new Message(PROTOCOL, id + ";" + random.nextInt(4) + ";" + TYPES[random.nextInt(TYPES.length)]
+                + ";orig" + random.nextInt(3) + ";UMN;content" + id, false);
+    }
+
+    private PairedKeyMessageStore durableStore() throws IOException {
+        return new PairedKeyMessageStore.Builder(PROTOCOL)
+                .writeAheadLog(logDirectory)
+                .build();
+    }
+
+    @Test
+    public void testRestartedStoreRecoversPublications() throws IOException {
+        Random random = new Random(5105);
+        PairedKeyMessageStore store = durableStore();
+        MessageStore expected = new PairedKeyMessageStore(PROTOCOL);
+        for (int id = 0; id < 500; id++) {
+            Message publication = article(id, random);
+            store.publish(publication);
+            expected.publish(publication);
+        }
+        store.close();
+
+        PairedKeyMessageStore restarted = durableStore();
+        restarted.publish(article(500, random));
+        restarted.close();
+        // the second restart replays both earlier generations
+        PairedKeyMessageStore restartedAgain = durableStore();
+        assertEquals(500, restartedAgain.getHighestMessageIdStored());
+        for (String query : new String[]{";;Sports;;;", ";2;;orig1;;"}) {
+            List<String> recovered = new ArrayList<>(restartedAgain.retrieve(new Message(PROTOCOL, query, true)));
+            List<String> published = new ArrayList<>(expected.retrieve(new Message(PROTOCOL, query, true)));
+            assertEquals(published, recovered.subList(0, published.size()));
+        }
+        restartedAgain.close();
+    }
+
+    @Test
+    public void testIdsHandedOutAfterRestartAreNew() throws IOException {
+        Random random = new Random(5105);
+        PairedKeyMessageStore store = durableStore();
+        CoordinationState coordinationState = new CoordinationState(store.getHighestMessageIdStored() + 1);
+        for (int i = 0; i < 20; i++) {
+            assertTrue(store.publish(article(Integer.parseInt(coordinationState.requestNewMessageId()), random)));
+        }
+        store.close();
+
+        PairedKeyMessageStore restarted = durableStore();
+        coordinationState = new CoordinationState(restarted.getHighestMessageIdStored() + 1);
+        int newId = Integer.parseInt(coordinationState.requestNewMessageId());
+        assertEquals(20, newId);
+        assertTrue(restarted.publish(article(newId, random)));
+        assertEquals(21, restarted.getNumMessagesStored());
+        restarted.close();
+    }
+
+    @Test
+    public void testReplayStopsAtTornRecord() throws IOException {
+        WriteAheadLog log = new WriteAheadLog(logDirectory);
+        log.append("first");
+        log.append("second");
+        log.close();
+        Path generation;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(logDirectory)) {
+            generation = files.iterator().next();
+        }
+        // a crash part way through a record leaves a header with a short payload
+        Files.write(generation, new byte[]{0, 0, 0, 100, 1, 2, 3, 4, 'x'}, StandardOpenOption.APPEND);
+
+        WriteAheadLog reopened = new WriteAheadLog(logDirectory);
+        List<String> replayed = new ArrayList<>();
+        reopened.replay(0, replayed::add);
+        reopened.close();
+        assertEquals(Arrays.asList("first", "second"), replayed);
+    }
+
+    @Test
+    public void testConcurrentAppendsShareFsyncs() throws Exception {
+        WriteAheadLog log = new WriteAheadLog(logDirectory);
+        int numThreads = 8;
+        int appendsPerThread = 200;
+        ExecutorService appenders = Executors.newFixedThreadPool(numThreads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> done = new ArrayList<>();
+        for (int t = 0; t < numThreads; t++) {
+            int thread = t;
+            done.add(appenders.submit(() -> {
+                start.await();
+                for (int i = 0; i < appendsPerThread; i++) {
+                    log.append(thread + ";" + i);
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : done) {
+            future.get();
+        }
+        appenders.shutdown();
+        log.close();
+
+        WriteAheadLog.Metrics metrics = log.getMetrics();
+        assertEquals(numThreads * appendsPerThread, metrics.getRecords());
+        assertTrue(metrics.getBatches() < metrics.getRecords());
+
+        WriteAheadLog reopened = new WriteAheadLog(logDirectory);
+        List<String> replayed = new ArrayList<>();
+        reopened.replay(0, replayed::add);
+        reopened.close();
+        assertEquals(numThreads * appendsPerThread, replayed.size());
+    }
+}